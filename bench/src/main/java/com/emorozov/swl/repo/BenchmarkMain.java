@@ -0,0 +1,20 @@
+package com.emorozov.swl.repo;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the usual JMH command line, always adding the GC
+ * profiler so that allocation rates are reported next to throughput and
+ * latency.
+ */
+public class BenchmarkMain {
+
+  public static void main(String[] args) throws Exception {
+    Options options = new OptionsBuilder().parent(new CommandLineOptions(args)).addProfiler(GCProfiler.class).build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,377 @@
+package com.emorozov.swl.repo;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.HdrHistogram.Histogram;
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.streams.KafkaStreams;
+import org.apache.kafka.streams.StreamsBuilder;
+import org.apache.kafka.streams.StreamsConfig;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.kafka.core.DefaultKafkaProducerFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.test.EmbeddedKafkaBroker;
+import org.springframework.util.FileSystemUtils;
+
+import com.emorozov.swl.connector.sparql.HttpRdfUpdateSinkConnector;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Runs the whole pipeline in one JVM: the load generator publishing commands
+ * to an embedded broker, the version assigner and risk calculator topology,
+ * and the SPARQL sink task posting to a local endpoint. Unlike the JMH
+ * benchmarks it drives a fixed event rate for a fixed time and reports the
+ * sustained throughput, the latency from the event time of a command to the
+ * endpoint acknowledging the provenance derived from it, and the lag of the
+ * risk calculator and the sink. Options are given as --name=value, see
+ * {@link #DEFAULTS}. Options starting with sparql. are passed to the sink
+ * task as they are.
+ */
+public class PipelineBenchmark {
+
+  private static final Map<String, String> DEFAULTS = new HashMap<>();
+
+  static {
+    // Commands per second, over all load generator threads
+    DEFAULTS.put("rate", "1000");
+    DEFAULTS.put("threads", "4");
+    DEFAULTS.put("trades", "10000");
+    DEFAULTS.put("counterparties", "100");
+    DEFAULTS.put("skew", "1.0");
+    DEFAULTS.put("partitions", "4");
+    // Risk calculator instances sharing the application id, and the seconds
+    // between starting them, rounded up to the next report, so that later ones
+    // join under load and the partitions are rebalanced. 0 starts them all
+    // before the load
+    DEFAULTS.put("instances", "1");
+    DEFAULTS.put("stagger", "0");
+    // Seconds of load before measuring, while measuring, and between reports
+    DEFAULTS.put("warmup", "30");
+    DEFAULTS.put("duration", "60");
+    DEFAULTS.put("report", "10");
+    // Same names as swl.prov.format and sparql.payload.format
+    DEFAULTS.put("format", "turtle");
+    DEFAULTS.put("templates", "false");
+    DEFAULTS.put("async", "false");
+    // Milliseconds PROV payloads are gathered into one record for, 0 writes a
+    // record per event
+    DEFAULTS.put("prov-batch", "0");
+    DEFAULTS.put("transactional", "false");
+    // stub only acknowledges requests, jena stores the triples in memory
+    DEFAULTS.put("endpoint", "stub");
+  }
+
+  private static final String STREAMS_APPLICATION_ID = "risk-bench";
+
+  private static final String SINK_GROUP_ID = "connect-sparql-sink-bench";
+
+  private static final String[] TOPICS = { TradeEventProcessor.COMMANDS_TOPIC,
+      CounterpartyEventProcessor.COMMANDS_TOPIC, "trades", "counterparties", RiskCalculatorConfiguration.RISK_TOPIC,
+      RiskCalculatorConfiguration.RISK_ERRORS_TOPIC, EventPublisher.PROV_TOPIC };
+
+  public static void main(String[] args) throws Exception {
+
+    Map<String, String> options = new HashMap<>(DEFAULTS);
+    for (String arg : args) {
+      int equals = arg.indexOf('=');
+      if (!arg.startsWith("--") || equals < 0) {
+        throw new IllegalArgumentException(String.format("Expected --name=value but got %s", arg));
+      }
+      options.put(arg.substring(2, equals), arg.substring(equals + 1));
+    }
+    System.out.printf("Pipeline benchmark with %s%n", options);
+
+    EmbeddedKafkaBroker broker = new EmbeddedKafkaBroker(1, false, Integer.parseInt(options.get("partitions")),
+        TOPICS);
+    Map<String, String> brokerProperties = new HashMap<>();
+    brokerProperties.put("transaction.state.log.replication.factor", "1");
+    brokerProperties.put("transaction.state.log.min.isr", "1");
+    broker.brokerProperties(brokerProperties);
+    broker.afterPropertiesSet();
+    try {
+      run(broker.getBrokersAsString(), options);
+    } finally {
+      broker.destroy();
+    }
+  }
+
+  private static void run(String bootstrapServers, Map<String, String> options) throws Exception {
+
+    Path stateDir = Files.createTempDirectory("pipeline-benchmark");
+    try (AnnotationConfigApplicationContext context = createContext(bootstrapServers, options);
+        StubSparqlEndpoint endpoint = new StubSparqlEndpoint("jena".equals(options.get("endpoint")), 8);
+        AdminClient admin = AdminClient
+            .create(Collections.singletonMap(AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers));
+        KafkaConsumer<byte[], byte[]> lagConsumer = createLagConsumer(bootstrapServers)) {
+
+      StreamsProperties streamsProperties = context.getBean(StreamsProperties.class);
+      RiskCalculatorConfiguration riskCalculatorConfiguration = new RiskCalculatorConfiguration();
+      VersionAssignerConfiguration versionAssignerConfiguration = new VersionAssignerConfiguration();
+      ExecutorService riskCalculatorExecutor = riskCalculatorConfiguration.riskCalculatorExecutor(streamsProperties);
+      ProvEmitter provEmitter = context.getBean(ProvEmitter.class);
+      List<KafkaStreams> instances = new ArrayList<>();
+      for (int i = 0; i < Integer.parseInt(options.get("instances")); i++) {
+        StreamsBuilder builder = new StreamsBuilder();
+        versionAssignerConfiguration.tradeVersionKStream(builder, context.getBean(TradeEventProcessor.class),
+            provEmitter, streamsProperties);
+        versionAssignerConfiguration.counterpartyVersionKStream(builder,
+            context.getBean(CounterpartyEventProcessor.class), provEmitter, streamsProperties);
+        riskCalculatorConfiguration.provKStream(builder, context.getBean(RiskCalculator.class), provEmitter,
+            streamsProperties, riskCalculatorExecutor);
+        Properties streamsConfig = riskCalculatorConfiguration.kStreamsConfigs(streamsProperties).asProperties();
+        streamsConfig.put(StreamsConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        streamsConfig.put(StreamsConfig.APPLICATION_ID_CONFIG, STREAMS_APPLICATION_ID);
+        // Each instance keeps its own state like a separate process would
+        streamsConfig.put(StreamsConfig.STATE_DIR_CONFIG, stateDir.resolve(String.valueOf(i)).toString());
+        instances.add(new KafkaStreams(builder.build(), streamsConfig));
+      }
+
+      Map<String, String> sinkProps = new HashMap<>();
+      sinkProps.put("name", "pipeline-benchmark");
+      sinkProps.put(HttpRdfUpdateSinkConnector.TOPIC_CONFIG, EventPublisher.PROV_TOPIC);
+      sinkProps.put(HttpRdfUpdateSinkConnector.SPARQL_HTTP_ENDPOINT, endpoint.getUrl());
+      sinkProps.put(HttpRdfUpdateSinkConnector.PAYLOAD_FORMAT, options.get("format"));
+      options.forEach((name, value) -> {
+        if (name.startsWith("sparql.")) {
+          sinkProps.put(name, value);
+        }
+      });
+      SinkDriver sinkDriver = new SinkDriver(bootstrapServers, SINK_GROUP_ID, sinkProps);
+      Thread sinkThread = new Thread(sinkDriver, "sink-driver");
+      LoadGenerator loadGenerator = context.getBean(LoadGenerator.class);
+
+      long staggerMs = TimeUnit.SECONDS.toMillis(Long.parseLong(options.get("stagger")));
+      int started = 0;
+      try {
+        for (; started < (staggerMs > 0 ? 1 : instances.size()); started++) {
+          instances.get(started).start();
+        }
+        for (int i = 0; i < started; i++) {
+          awaitRunning(instances.get(i));
+        }
+        sinkThread.start();
+        loadGenerator.start();
+
+        long reportMs = TimeUnit.SECONDS.toMillis(Long.parseLong(options.get("report")));
+        long warmupMs = TimeUnit.SECONDS.toMillis(Long.parseLong(options.get("warmup")));
+        long durationMs = TimeUnit.SECONDS.toMillis(Long.parseLong(options.get("duration")));
+        MeterRegistry meterRegistry = context.getBean(MeterRegistry.class);
+
+        Interval measurement = null;
+        Interval report = new Interval(meterRegistry, sinkDriver);
+        long start = System.currentTimeMillis();
+        for (long elapsedMs = 0; elapsedMs < warmupMs + durationMs;) {
+          Thread.sleep(Math.min(reportMs, warmupMs + durationMs - elapsedMs));
+          if (sinkDriver.getError() != null) {
+            throw new IllegalStateException("SPARQL sink task failed", sinkDriver.getError());
+          }
+          elapsedMs = System.currentTimeMillis() - start;
+          for (; started < instances.size() && elapsedMs >= started * staggerMs; started++) {
+            System.out.printf("%4d s starting risk calculator instance %d%n",
+                TimeUnit.MILLISECONDS.toSeconds(elapsedMs), started + 1);
+            instances.get(started).start();
+          }
+          Histogram latency = sinkDriver.getIntervalLatency();
+          if (measurement != null) {
+            measurement.latency.add(latency);
+          }
+          report.latency.add(latency);
+          System.out.printf("%4d s %-11s %s, lag risk %d sink %d, instances %s%n",
+              TimeUnit.MILLISECONDS.toSeconds(elapsedMs), measurement == null ? "warmup" : "measurement",
+              report.end(), lag(admin, lagConsumer, STREAMS_APPLICATION_ID), lag(admin, lagConsumer, SINK_GROUP_ID),
+              states(instances.subList(0, started)));
+          if (measurement == null && elapsedMs >= warmupMs) {
+            measurement = new Interval(meterRegistry, sinkDriver);
+          }
+          report = new Interval(meterRegistry, sinkDriver);
+        }
+
+        System.out.printf("Sustained %s%n", measurement == null ? "not measured" : measurement.end());
+        System.out.printf("Sink failures %d, lag risk %d sink %d, quads stored %d%n", sinkDriver.getFailures(),
+            lag(admin, lagConsumer, STREAMS_APPLICATION_ID), lag(admin, lagConsumer, SINK_GROUP_ID),
+            endpoint.size());
+
+      } finally {
+        loadGenerator.stop();
+        sinkDriver.stop();
+        if (sinkThread.isAlive()) {
+          sinkThread.join();
+        }
+        for (KafkaStreams streams : instances) {
+          streams.close();
+          streams.cleanUp();
+        }
+        riskCalculatorExecutor.shutdownNow();
+      }
+    } finally {
+      FileSystemUtils.deleteRecursively(stateDir);
+    }
+  }
+
+  /**
+   * Wires the repo application like {@link ProvBenchmarks}, with a producer
+   * for the embedded broker and the load generator enabled.
+   */
+  private static AnnotationConfigApplicationContext createContext(String bootstrapServers,
+      Map<String, String> options) {
+
+    // Same batching as the producers in application.yml
+    Map<String, Object> producerProps = new HashMap<>();
+    producerProps.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+    producerProps.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
+    producerProps.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class);
+    producerProps.put(ProducerConfig.BATCH_SIZE_CONFIG, 65536);
+    producerProps.put(ProducerConfig.LINGER_MS_CONFIG, 5);
+    producerProps.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, "lz4");
+    DefaultKafkaProducerFactory<String, byte[]> producerFactory = new DefaultKafkaProducerFactory<>(producerProps);
+    if (Boolean.parseBoolean(options.get("transactional"))) {
+      producerFactory.setTransactionIdPrefix("bench-tx-");
+    }
+
+    AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+    context.getEnvironment().getPropertySources()
+        .addFirst(new MapPropertySource("benchmark", Collections.singletonMap("swl.load.enabled", "true")));
+    context.register(EventProcessorConfiguration.class, TransactionProperties.class, LineageProperties.class,
+        ProvEmitter.class, EventPublisher.class, LineageIndex.class, RiskCalculator.class,
+        TradeEventProcessor.class, CounterpartyEventProcessor.class, LoadGenerator.class);
+    context.registerBean(MeterRegistry.class, SimpleMeterRegistry::new);
+    context.registerBean(KafkaTemplate.class, () -> new KafkaTemplate<>(producerFactory));
+    context.registerBean(LoadProperties.class, () -> {
+      LoadProperties loadProperties = new LoadProperties();
+      loadProperties.setEnabled(true);
+      loadProperties.setEventsPerSecond(Integer.parseInt(options.get("rate")));
+      loadProperties.setThreads(Integer.parseInt(options.get("threads")));
+      loadProperties.setTrades(Integer.parseInt(options.get("trades")));
+      loadProperties.setCounterparties(Integer.parseInt(options.get("counterparties")));
+      loadProperties.setSkew(Double.parseDouble(options.get("skew")));
+      return loadProperties;
+    });
+    context.registerBean(ProvProperties.class, () -> {
+      ProvProperties provProperties = new ProvProperties();
+      provProperties
+          .setFormat(ProvPayloadFormat.valueOf(options.get("format").toUpperCase(Locale.ROOT).replace('-', '_')));
+      provProperties.setTemplates(Boolean.parseBoolean(options.get("templates")));
+      return provProperties;
+    });
+    context.registerBean(StreamsProperties.class, () -> {
+      StreamsProperties streamsProperties = new StreamsProperties();
+      streamsProperties.getAsync().setEnabled(Boolean.parseBoolean(options.get("async")));
+      long provBatchMs = Long.parseLong(options.get("prov-batch"));
+      streamsProperties.getProvBatch().setEnabled(provBatchMs > 0);
+      streamsProperties.getProvBatch().setMaxDelayMs(Math.max(provBatchMs, 1));
+      return streamsProperties;
+    });
+    context.refresh();
+    return context;
+  }
+
+  private static KafkaConsumer<byte[], byte[]> createLagConsumer(String bootstrapServers) {
+    Map<String, Object> consumerProps = new HashMap<>();
+    consumerProps.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+    // End offsets stop at the last stable offset, as the consumers see them
+    consumerProps.put(ConsumerConfig.ISOLATION_LEVEL_CONFIG, "read_committed");
+    consumerProps.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class);
+    consumerProps.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class);
+    return new KafkaConsumer<>(consumerProps);
+  }
+
+  private static void awaitRunning(KafkaStreams streams) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1);
+    while (streams.state() != KafkaStreams.State.RUNNING) {
+      if (System.currentTimeMillis() > deadline || !streams.state().isRunning()) {
+        throw new IllegalStateException(String.format("Risk calculator is %s", streams.state()));
+      }
+      Thread.sleep(100);
+    }
+  }
+
+  /**
+   * The state of each started instance and the number of stream tasks it
+   * runs, which shows how the partitions were spread by the last rebalance.
+   */
+  private static String states(List<KafkaStreams> instances) {
+    return instances.stream()
+        .map(streams -> String.format("%s/%d", streams.state(),
+            streams.localThreadsMetadata().stream().mapToInt(thread -> thread.activeTasks().size()).sum()))
+        .collect(Collectors.joining(" "));
+  }
+
+  /**
+   * Records not yet consumed by a group, summed over the partitions it has
+   * committed offsets for.
+   */
+  private static long lag(AdminClient admin, KafkaConsumer<?, ?> lagConsumer, String groupId) throws Exception {
+    Map<TopicPartition, OffsetAndMetadata> committed = admin.listConsumerGroupOffsets(groupId)
+        .partitionsToOffsetAndMetadata().get();
+    Map<TopicPartition, Long> endOffsets = lagConsumer.endOffsets(committed.keySet());
+    return committed.entrySet().stream()
+        .mapToLong(entry -> Math.max(endOffsets.get(entry.getKey()) - entry.getValue().offset(), 0)).sum();
+  }
+
+  /**
+   * Commands sent and PROV records delivered between two points in time, and
+   * the latency of the records delivered in between.
+   */
+  private static class Interval {
+
+    private final MeterRegistry meterRegistry;
+
+    private final SinkDriver sinkDriver;
+
+    private final long startNanos = System.nanoTime();
+
+    private final long sentAtStart;
+
+    private final long deliveredAtStart;
+
+    private final Histogram latency = new Histogram(3);
+
+    Interval(MeterRegistry meterRegistry, SinkDriver sinkDriver) {
+      this.meterRegistry = meterRegistry;
+      this.sinkDriver = sinkDriver;
+      this.sentAtStart = sent(meterRegistry);
+      this.deliveredAtStart = sinkDriver.getDelivered();
+    }
+
+    String end() {
+      double seconds = (System.nanoTime() - startNanos) / 1e9;
+      return String.format(
+          "sent %.0f commands/s, delivered %.0f PROV records/s, latency p50 %d ms p99 %d ms p99.9 %d ms max %d ms",
+          (sent(meterRegistry) - sentAtStart) / seconds, (sinkDriver.getDelivered() - deliveredAtStart) / seconds,
+          latency.getValueAtPercentile(50), latency.getValueAtPercentile(99), latency.getValueAtPercentile(99.9),
+          latency.getMaxValue());
+    }
+
+    private static long sent(MeterRegistry meterRegistry) {
+      return Arrays.asList(TradeEventProcessor.COMMANDS_TOPIC, CounterpartyEventProcessor.COMMANDS_TOPIC).stream()
+          .flatMap(topic -> meterRegistry.find("swl.publish").tags("topic", topic, "outcome", "success").timers()
+              .stream())
+          .mapToLong(Timer::count).sum();
+    }
+  }
+}
@@ -0,0 +1,44 @@
+package com.emorozov.swl.repo;
+
+import java.time.OffsetDateTime;
+import java.util.Collections;
+
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.kafka.core.DefaultKafkaProducerFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Wires the PROV beans of the repo application without Kafka, scheduling or
+ * Spring Boot auto-configuration.
+ */
+final class ProvBenchmarks {
+
+  static final String TRADE_ID = "8c1ba8a4-7e5b-4d2f-9d3e-6f3b7b0c2a11";
+
+  static final String COUNTERPARTY_ID = "bank-x";
+
+  static final String EVENT_ID = "0f6d3c52-1b7a-4a8e-b5e2-3c9a4d7e8f10";
+
+  static final OffsetDateTime EVENT_TIME = OffsetDateTime.parse("2020-11-05T10:15:30Z");
+
+  private ProvBenchmarks() {
+  }
+
+  static AnnotationConfigApplicationContext createContext(ProvPayloadFormat format) {
+    AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+    context.register(EventProcessorConfiguration.class, ProvProperties.class, LoadProperties.class,
+        TransactionProperties.class, LineageProperties.class, ProvEmitter.class, EventPublisher.class,
+        LineageIndex.class, RiskCalculator.class, TradeEventProcessor.class, CounterpartyEventProcessor.class);
+    // The processors are only used to build documents, the producer is never
+    // created
+    context.registerBean(MeterRegistry.class, SimpleMeterRegistry::new);
+    context.registerBean(KafkaTemplate.class,
+        () -> new KafkaTemplate<>(new DefaultKafkaProducerFactory<>(Collections.emptyMap())));
+    context.refresh();
+    context.getBean(ProvProperties.class).setFormat(format);
+    return context;
+  }
+}
@@ -0,0 +1,78 @@
+package com.emorozov.swl.repo;
+
+import static com.emorozov.swl.repo.ProvBenchmarks.COUNTERPARTY_ID;
+import static com.emorozov.swl.repo.ProvBenchmarks.EVENT_ID;
+import static com.emorozov.swl.repo.ProvBenchmarks.EVENT_TIME;
+import static com.emorozov.swl.repo.ProvBenchmarks.TRADE_ID;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+/**
+ * Cost of one PROV event end to end, from building the document to the payload
+ * sent to the prov topic, for every payload format.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ProvEmissionBenchmark {
+
+  @Param({ "TURTLE", "NTRIPLES", "NTRIPLES_GZIP", "NTRIPLES_ZSTD", "RDF_THRIFT" })
+  public ProvPayloadFormat format;
+
+  private AnnotationConfigApplicationContext context;
+
+  private ProvEmitter provEmitter;
+
+  private RiskCalculator riskCalculator;
+
+  private TradeEventProcessor tradeEventProcessor;
+
+  private CounterpartyEventProcessor counterpartyEventProcessor;
+
+  @Setup
+  public void setUp() {
+    context = ProvBenchmarks.createContext(format);
+    provEmitter = context.getBean(ProvEmitter.class);
+    riskCalculator = context.getBean(RiskCalculator.class);
+    tradeEventProcessor = context.getBean(TradeEventProcessor.class);
+    counterpartyEventProcessor = context.getBean(CounterpartyEventProcessor.class);
+  }
+
+  @TearDown
+  public void tearDown() {
+    context.close();
+  }
+
+  @Benchmark
+  public byte[] riskCalculation() {
+    return riskCalculator.calculateRiskAndRecordProvenance(TRADE_ID + "-2", COUNTERPARTY_ID + "-1");
+  }
+
+  @Benchmark
+  public byte[] tradeProvMessage() {
+    return provEmitter.emit(tradeEventProcessor.createProvDocument(TRADE_ID, 1, 2, EVENT_ID, EVENT_TIME));
+  }
+
+  @Benchmark
+  public byte[] counterpartyProvMessage() {
+    return provEmitter
+        .emit(counterpartyEventProcessor.createProvDocument(COUNTERPARTY_ID, 1, 2, EVENT_ID, EVENT_TIME));
+  }
+}
@@ -0,0 +1,89 @@
+package com.emorozov.swl.repo;
+
+import static com.emorozov.swl.repo.ProvBenchmarks.EVENT_ID;
+import static com.emorozov.swl.repo.ProvBenchmarks.EVENT_TIME;
+import static com.emorozov.swl.repo.ProvBenchmarks.TRADE_ID;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.GregorianCalendar;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openprovenance.prov.interop.Formats;
+import org.openprovenance.prov.interop.InteropFramework;
+import org.openprovenance.prov.model.Document;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+/**
+ * Compares the cached emitter with the per-event setup the producers used
+ * before it, a new DatatypeFactory for every timestamp and a new buffer and
+ * String for every Turtle payload.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ProvEmitterBenchmark {
+
+  private AnnotationConfigApplicationContext context;
+
+  private ProvEmitter provEmitter;
+
+  private InteropFramework interopFramework;
+
+  private Document document;
+
+  @Setup
+  public void setUp() {
+    context = ProvBenchmarks.createContext(ProvPayloadFormat.TURTLE);
+    provEmitter = context.getBean(ProvEmitter.class);
+    interopFramework = context.getBean(InteropFramework.class);
+    document = context.getBean(TradeEventProcessor.class).createProvDocument(TRADE_ID, 1, 2, EVENT_ID, EVENT_TIME);
+  }
+
+  @TearDown
+  public void tearDown() {
+    context.close();
+  }
+
+  @Benchmark
+  public XMLGregorianCalendar cachedCalendar() {
+    return provEmitter.toXmlGregorianCalendar(EVENT_TIME);
+  }
+
+  @Benchmark
+  public XMLGregorianCalendar uncachedCalendar() throws DatatypeConfigurationException {
+    GregorianCalendar gc = GregorianCalendar.from(EVENT_TIME.atZoneSameInstant(ZoneId.of("Z")));
+    return DatatypeFactory.newInstance().newXMLGregorianCalendar(gc);
+  }
+
+  @Benchmark
+  public byte[] cachedTurtle() {
+    return provEmitter.emit(document);
+  }
+
+  @Benchmark
+  public byte[] uncachedTurtle() {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    interopFramework.writeDocument(baos, Formats.ProvFormat.TURTLE, document);
+    return baos.toString().getBytes(StandardCharsets.UTF_8);
+  }
+}
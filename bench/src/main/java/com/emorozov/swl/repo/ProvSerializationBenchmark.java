@@ -0,0 +1,86 @@
+package com.emorozov.swl.repo;
+
+import static com.emorozov.swl.repo.ProvBenchmarks.EVENT_ID;
+import static com.emorozov.swl.repo.ProvBenchmarks.EVENT_TIME;
+import static com.emorozov.swl.repo.ProvBenchmarks.TRADE_ID;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openprovenance.prov.interop.Formats;
+import org.openprovenance.prov.interop.InteropFramework;
+import org.openprovenance.prov.model.Document;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+/**
+ * Cost of serialising an already built trade correction document in each
+ * output format. Turtle and N-Triples go through the emitter as on the prov
+ * topic, PROV-N and JSON straight through ProvToolbox.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ProvSerializationBenchmark {
+
+  public enum OutputFormat {
+    TURTLE, NTRIPLES, PROVN, JSON
+  }
+
+  @Param({ "TURTLE", "NTRIPLES", "PROVN", "JSON" })
+  public OutputFormat format;
+
+  private AnnotationConfigApplicationContext context;
+
+  private ProvEmitter provEmitter;
+
+  private InteropFramework interopFramework;
+
+  private Document document;
+
+  @Setup
+  public void setUp() {
+    context = ProvBenchmarks
+        .createContext(format == OutputFormat.NTRIPLES ? ProvPayloadFormat.NTRIPLES : ProvPayloadFormat.TURTLE);
+    provEmitter = context.getBean(ProvEmitter.class);
+    interopFramework = context.getBean(InteropFramework.class);
+    document = context.getBean(TradeEventProcessor.class).createProvDocument(TRADE_ID, 1, 2, EVENT_ID, EVENT_TIME);
+  }
+
+  @TearDown
+  public void tearDown() {
+    context.close();
+  }
+
+  @Benchmark
+  public byte[] serialize() {
+    switch (format) {
+    case PROVN:
+      return write(Formats.ProvFormat.PROVN);
+    case JSON:
+      return write(Formats.ProvFormat.JSON);
+    default:
+      return provEmitter.emit(document);
+    }
+  }
+
+  private byte[] write(Formats.ProvFormat provFormat) {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    interopFramework.writeDocument(baos, provFormat, document);
+    return baos.toByteArray();
+  }
+}
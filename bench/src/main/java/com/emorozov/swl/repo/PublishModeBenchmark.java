@@ -0,0 +1,119 @@
+package com.emorozov.swl.repo;
+
+import static com.emorozov.swl.repo.ProvBenchmarks.COUNTERPARTY_ID;
+import static com.emorozov.swl.repo.ProvBenchmarks.EVENT_TIME;
+import static com.emorozov.swl.repo.ProvBenchmarks.TRADE_ID;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.kafka.core.DefaultKafkaProducerFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.test.EmbeddedKafkaBroker;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Throughput of publishing trade correction commands, as the trade event
+ * processor does, to an embedded broker, fire-and-forget against
+ * transactions of different sizes.
+ * Every invocation waits until all of its events are acknowledged or
+ * committed, so the cost of the commits is included.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class PublishModeBenchmark {
+
+  private static final int EVENTS_PER_INVOCATION = 1000;
+
+  // 0 publishes fire-and-forget, otherwise the most events per transaction
+  @Param({ "0", "100", "1000" })
+  public int transactionBatch;
+
+  private EmbeddedKafkaBroker broker;
+
+  private AnnotationConfigApplicationContext context;
+
+  private EventPublisher eventPublisher;
+
+  private byte[] command;
+
+  @Setup
+  public void setUp() {
+
+    broker = new EmbeddedKafkaBroker(1, false, 1, TradeEventProcessor.COMMANDS_TOPIC);
+    Map<String, String> brokerProperties = new HashMap<>();
+    brokerProperties.put("transaction.state.log.replication.factor", "1");
+    brokerProperties.put("transaction.state.log.min.isr", "1");
+    broker.brokerProperties(brokerProperties);
+    broker.afterPropertiesSet();
+
+    // Same batching as the producers in application.yml
+    Map<String, Object> producerProps = new HashMap<>();
+    producerProps.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, broker.getBrokersAsString());
+    producerProps.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
+    producerProps.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class);
+    producerProps.put(ProducerConfig.BATCH_SIZE_CONFIG, 65536);
+    producerProps.put(ProducerConfig.LINGER_MS_CONFIG, 5);
+    producerProps.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, "lz4");
+    DefaultKafkaProducerFactory<String, byte[]> producerFactory = new DefaultKafkaProducerFactory<>(producerProps);
+    if (transactionBatch > 0) {
+      producerFactory.setTransactionIdPrefix("bench-tx-");
+    }
+
+    context = new AnnotationConfigApplicationContext();
+    context.register(EventPublisher.class);
+    context.registerBean(MeterRegistry.class, SimpleMeterRegistry::new);
+    context.registerBean(KafkaTemplate.class, () -> new KafkaTemplate<>(producerFactory));
+    context.registerBean(TransactionProperties.class, () -> {
+      TransactionProperties transactionProperties = new TransactionProperties();
+      transactionProperties.setMaxBatchEvents(Math.max(transactionBatch, 1));
+      return transactionProperties;
+    });
+    context.refresh();
+    eventPublisher = context.getBean(EventPublisher.class);
+
+    command = EventPayload.format(COUNTERPARTY_ID, EVENT_TIME).getBytes(StandardCharsets.UTF_8);
+  }
+
+  @TearDown
+  public void tearDown() {
+    context.close();
+    broker.destroy();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(EVENTS_PER_INVOCATION)
+  public void publish() {
+    CompletableFuture<?>[] results = new CompletableFuture<?>[EVENTS_PER_INVOCATION];
+    for (int i = 0; i < EVENTS_PER_INVOCATION; i++) {
+      results[i] = eventPublisher.publish(TradeEventProcessor.COMMANDS_TOPIC, TRADE_ID, command);
+    }
+    CompletableFuture.allOf(results).join();
+  }
+}
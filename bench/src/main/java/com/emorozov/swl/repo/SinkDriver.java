@@ -0,0 +1,222 @@
+package com.emorozov.swl.repo;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.connect.errors.ConnectException;
+import org.apache.kafka.connect.errors.RetriableException;
+import org.apache.kafka.connect.sink.SinkRecord;
+import org.apache.kafka.connect.sink.SinkTaskContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.emorozov.swl.connector.sparql.HttpRdfUpdateSinkConnector;
+import com.emorozov.swl.connector.sparql.HttpRdfUpdateSinkTask;
+
+/**
+ * Runs the SPARQL sink task on its own thread the way a Connect worker would:
+ * it polls prov with a read committed consumer, hands the records to put()
+ * and commits the offsets that preCommit() returns. A record counts as
+ * delivered once its offset is committable, that is once the endpoint has
+ * acknowledged it, and its latency is taken from its timestamp, the event
+ * time of the command it was derived from.
+ */
+final class SinkDriver implements Runnable {
+
+  private static final Logger log = LoggerFactory.getLogger(SinkDriver.class);
+
+  // Far more often than Connect's default of a minute, so that the lag of the
+  // sink can be read from its committed offsets like that of the risk
+  // calculator
+  private static final long COMMIT_INTERVAL_MS = 1000;
+
+  private final KafkaConsumer<byte[], byte[]> consumer;
+
+  private final HttpRdfUpdateSinkTask task = new HttpRdfUpdateSinkTask();
+
+  private final Map<String, String> taskProps;
+
+  private final Map<TopicPartition, Deque<SinkRecord>> undelivered = new HashMap<>();
+
+  private final Map<TopicPartition, OffsetAndMetadata> consumed = new HashMap<>();
+
+  private final Recorder latency = new Recorder(3);
+
+  private final AtomicLong delivered = new AtomicLong();
+
+  private final AtomicLong failures = new AtomicLong();
+
+  private volatile boolean running = true;
+
+  private volatile ConnectException error;
+
+  SinkDriver(String bootstrapServers, String groupId, Map<String, String> taskProps) {
+    Map<String, Object> consumerProps = new HashMap<>();
+    consumerProps.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+    consumerProps.put(ConsumerConfig.GROUP_ID_CONFIG, groupId);
+    consumerProps.put(ConsumerConfig.ISOLATION_LEVEL_CONFIG, "read_committed");
+    consumerProps.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+    consumerProps.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+    consumerProps.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class);
+    consumerProps.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class);
+    this.consumer = new KafkaConsumer<>(consumerProps);
+    this.taskProps = taskProps;
+  }
+
+  /**
+   * Latencies in milliseconds of the records delivered since the last call.
+   */
+  Histogram getIntervalLatency() {
+    return latency.getIntervalHistogram();
+  }
+
+  long getDelivered() {
+    return delivered.get();
+  }
+
+  long getFailures() {
+    return failures.get();
+  }
+
+  /**
+   * The error that stopped the task, as it would have stopped a Connect task.
+   */
+  ConnectException getError() {
+    return error;
+  }
+
+  void stop() {
+    running = false;
+  }
+
+  @Override
+  public void run() {
+
+    String topic = taskProps.get(HttpRdfUpdateSinkConnector.TOPIC_CONFIG);
+    Set<TopicPartition> partitions = consumer.partitionsFor(topic).stream()
+        .map(info -> new TopicPartition(topic, info.partition())).collect(Collectors.toSet());
+    consumer.assign(partitions);
+    task.initialize(new Context());
+    task.start(taskProps);
+    task.open(partitions);
+
+    long lastCommit = System.currentTimeMillis();
+    try {
+      while (running) {
+        ConsumerRecords<byte[], byte[]> records = consumer.poll(Duration.ofMillis(10));
+        List<SinkRecord> sinkRecords = new ArrayList<>(records.count());
+        for (ConsumerRecord<byte[], byte[]> record : records) {
+          TopicPartition tp = new TopicPartition(record.topic(), record.partition());
+          SinkRecord sinkRecord = new SinkRecord(record.topic(), record.partition(), null, record.key(), null,
+              record.value(), record.offset(), record.timestamp(), record.timestampType());
+          sinkRecords.add(sinkRecord);
+          undelivered.computeIfAbsent(tp, key -> new ArrayDeque<>()).add(sinkRecord);
+          consumed.put(tp, new OffsetAndMetadata(record.offset() + 1));
+        }
+        try {
+          task.put(sinkRecords);
+          Map<TopicPartition, OffsetAndMetadata> committable = task.preCommit(new HashMap<>(consumed));
+          track(committable);
+          long now = System.currentTimeMillis();
+          if (now - lastCommit >= COMMIT_INTERVAL_MS) {
+            consumer.commitAsync(committable, null);
+            lastCommit = now;
+          }
+        } catch (RetriableException re) {
+          // Connect delivers the same records again after the rewind requested by
+          // the task
+          failures.incrementAndGet();
+          log.warn("Sink task failed, records are delivered again: {}", re.getMessage());
+        }
+      }
+    } catch (ConnectException ce) {
+      error = ce;
+    } finally {
+      task.close(partitions);
+      task.stop();
+      consumer.close();
+    }
+  }
+
+  /**
+   * Counts the records below the committable offsets as delivered.
+   */
+  private void track(Map<TopicPartition, OffsetAndMetadata> committable) {
+    long now = System.currentTimeMillis();
+    committable.forEach((tp, offset) -> {
+      Deque<SinkRecord> records = undelivered.getOrDefault(tp, new ArrayDeque<>());
+      while (!records.isEmpty() && records.peekFirst().kafkaOffset() < offset.offset()) {
+        latency.recordValue(Math.max(now - records.pollFirst().timestamp(), 0));
+        delivered.incrementAndGet();
+      }
+    });
+  }
+
+  private class Context implements SinkTaskContext {
+
+    @Override
+    public Map<String, String> configs() {
+      return taskProps;
+    }
+
+    /**
+     * Applied straight away, which is the same as Connect applying it before
+     * the next poll since the task is only called on this thread.
+     */
+    @Override
+    public void offset(Map<TopicPartition, Long> offsets) {
+      offsets.forEach(this::offset);
+    }
+
+    @Override
+    public void offset(TopicPartition tp, long offset) {
+      consumer.seek(tp, offset);
+      consumed.put(tp, new OffsetAndMetadata(offset));
+      undelivered.getOrDefault(tp, new ArrayDeque<>()).removeIf(record -> record.kafkaOffset() >= offset);
+    }
+
+    @Override
+    public void timeout(long timeoutMs) {
+      // The driver retries on the next poll anyway
+    }
+
+    @Override
+    public Set<TopicPartition> assignment() {
+      return Collections.unmodifiableSet(consumer.assignment());
+    }
+
+    @Override
+    public void pause(TopicPartition... partitions) {
+      consumer.pause(Arrays.asList(partitions));
+    }
+
+    @Override
+    public void resume(TopicPartition... partitions) {
+      consumer.resume(Arrays.asList(partitions));
+    }
+
+    @Override
+    public void requestCommit() {
+      // Offsets are committed every second anyway
+    }
+  }
+}
@@ -0,0 +1,132 @@
+package com.emorozov.swl.repo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.jena.atlas.iterator.Iter;
+import org.apache.jena.atlas.web.ContentType;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.riot.RDFParser;
+import org.apache.jena.riot.RiotException;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.sparql.core.DatasetGraphFactory;
+import org.apache.jena.system.Txn;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Graph Store endpoint on an ephemeral local port for the pipeline benchmark.
+ * It either acknowledges every POST after reading the body, to measure the
+ * pipeline on its own, or parses the triples into an in-memory Jena dataset
+ * with one writer at a time, as Fuseki would store them.
+ */
+final class StubSparqlEndpoint implements AutoCloseable {
+
+  private static final String PATH = "/dcaf/data";
+
+  private final HttpServer server;
+
+  private final ExecutorService handlers;
+
+  private final DatasetGraph dataset;
+
+  StubSparqlEndpoint(boolean store, int threads) throws IOException {
+    this.dataset = store ? DatasetGraphFactory.createTxnMem() : null;
+    AtomicInteger threadCount = new AtomicInteger();
+    this.handlers = Executors.newFixedThreadPool(threads, r -> {
+      Thread thread = new Thread(r, String.format("sparql-endpoint-%s", threadCount.incrementAndGet()));
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    this.server.createContext(PATH, this::handle);
+    this.server.setExecutor(handlers);
+    this.server.start();
+  }
+
+  String getUrl() {
+    return String.format("http://localhost:%s%s?default", server.getAddress().getPort(), PATH);
+  }
+
+  /**
+   * Quads stored so far, always 0 for the stub.
+   */
+  long size() {
+    return dataset == null ? 0 : Txn.calculateRead(dataset, () -> Iter.count(dataset.find()));
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    handlers.shutdown();
+    try {
+      handlers.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try (InputStream body = exchange.getRequestBody()) {
+      if (!"POST".equals(exchange.getRequestMethod())) {
+        respond(exchange, 405, "Only POST is supported");
+      } else if (dataset == null) {
+        byte[] buffer = new byte[8192];
+        while (body.read(buffer) >= 0) {
+          // Read the whole request like a real endpoint would
+        }
+        respond(exchange, 204, null);
+      } else {
+        store(exchange, body);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void store(HttpExchange exchange, InputStream body) throws IOException {
+    String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+    Lang lang = contentType == null ? null
+        : RDFLanguages.contentTypeToLang(ContentType.create(contentType).getContentTypeStr());
+    if (lang == null) {
+      respond(exchange, 415, "Unsupported content type");
+      return;
+    }
+    // The sink names a graph per task with ?graph=, otherwise it writes to the
+    // default graph
+    String query = exchange.getRequestURI().getQuery();
+    try {
+      Txn.executeWrite(dataset, () -> {
+        Graph graph = query != null && query.startsWith("graph=")
+            ? dataset.getGraph(NodeFactory.createURI(query.substring("graph=".length())))
+            : dataset.getDefaultGraph();
+        RDFParser.source(body).lang(lang).parse(graph);
+      });
+    } catch (RiotException re) {
+      respond(exchange, 400, re.getMessage());
+      return;
+    }
+    respond(exchange, 204, null);
+  }
+
+  private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+    if (message == null) {
+      exchange.sendResponseHeaders(status, -1);
+      return;
+    }
+    byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(status, bytes.length);
+    exchange.getResponseBody().write(bytes);
+  }
+}
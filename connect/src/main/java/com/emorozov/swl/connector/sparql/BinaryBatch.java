@@ -0,0 +1,64 @@
+package com.emorozov.swl.connector.sparql;
+
+import java.io.ByteArrayOutputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.kafka.connect.sink.SinkRecord;
+
+/**
+ * Concatenates binary RDF payloads. This only works for encodings that are a
+ * plain stream of rows without a header, such as RDF Thrift.
+ */
+public class BinaryBatch implements RdfBatch {
+
+  private final RdfPayloadFormat format;
+
+  private final int maxRecords;
+
+  private final int maxBytes;
+
+  private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+  private int records;
+
+  public BinaryBatch(RdfPayloadFormat format, int maxRecords, int maxBytes) {
+    this.format = format;
+    this.maxRecords = maxRecords;
+    this.maxBytes = maxBytes;
+  }
+
+  @Override
+  public boolean add(SinkRecord record) {
+
+    byte[] payload = format.decodeBytes(record.value());
+    if (records > 0 && (records >= maxRecords || body.size() + payload.length > maxBytes)) {
+      return false;
+    }
+
+    body.write(payload, 0, payload.length);
+    records++;
+    return true;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return records == 0;
+  }
+
+  @Override
+  public int size() {
+    return records;
+  }
+
+  @Override
+  public int getBytes() {
+    return body.size();
+  }
+
+  @Override
+  public HttpEntity toEntity() {
+    return new ByteArrayEntity(body.toByteArray(), ContentType.create(format.getContentType()));
+  }
+}
@@ -0,0 +1,103 @@
+package com.emorozov.swl.connector.sparql;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Opens after a number of consecutive failed requests and, once it has been
+ * open for a while, lets a single trial request through. The other requests
+ * are refused until the trial has succeeded, which closes the breaker, or
+ * failed, which opens it again. A trial that is not recorded within the open
+ * period is given up and the next request becomes the trial. Requests are
+ * recorded from the sender threads while the task thread polls the state, so
+ * all access is synchronized.
+ */
+public class CircuitBreaker {
+
+  enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final int failureThreshold;
+
+  private final long openMs;
+
+  private final LongSupplier clock;
+
+  private State state = State.CLOSED;
+
+  private int consecutiveFailures;
+
+  private long openedAt;
+
+  private boolean trialInFlight;
+
+  private long trialStartedAt;
+
+  public CircuitBreaker(int failureThreshold, long openMs) {
+    this(failureThreshold, openMs, System::currentTimeMillis);
+  }
+
+  CircuitBreaker(int failureThreshold, long openMs, LongSupplier clock) {
+    this.failureThreshold = failureThreshold;
+    this.openMs = openMs;
+    this.clock = clock;
+  }
+
+  public synchronized void recordSuccess() {
+    consecutiveFailures = 0;
+    state = State.CLOSED;
+    trialInFlight = false;
+  }
+
+  public synchronized void recordFailure() {
+    consecutiveFailures++;
+    if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+      state = State.OPEN;
+      openedAt = clock.getAsLong();
+    }
+    trialInFlight = false;
+  }
+
+  /**
+   * Whether a request may be sent, moving an open breaker to half-open once
+   * its open period has passed. A half-open breaker only lets the caller that
+   * takes the trial through.
+   */
+  public synchronized boolean allowRequest() {
+    if (!wouldAllowRequest()) {
+      return false;
+    }
+    if (state == State.OPEN) {
+      state = State.HALF_OPEN;
+    }
+    if (state == State.HALF_OPEN) {
+      trialInFlight = true;
+      trialStartedAt = clock.getAsLong();
+    }
+    return true;
+  }
+
+  /**
+   * Whether {@link #allowRequest()} would let a request through, without
+   * taking the trial of a half-open breaker.
+   */
+  public synchronized boolean wouldAllowRequest() {
+    long now = clock.getAsLong();
+    switch (state) {
+      case OPEN:
+        return now - openedAt >= openMs;
+      case HALF_OPEN:
+        return !trialInFlight || now - trialStartedAt >= openMs;
+      default:
+        return true;
+    }
+  }
+
+  public synchronized boolean isOpen() {
+    return state == State.OPEN;
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+}
@@ -0,0 +1,89 @@
+package com.emorozov.swl.connector.sparql;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.connect.errors.ConnectException;
+import org.apache.kafka.connect.errors.RetriableException;
+import org.apache.kafka.connect.sink.SinkRecord;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Routes records that could not be decoded or were rejected by the SPARQL
+ * endpoint to a Kafka topic together with where they came from and why they
+ * were rejected.
+ */
+@Slf4j
+public class DeadLetterQueue implements AutoCloseable {
+
+  public static final String HEADER_PREFIX = "sparql.error.";
+
+  private final String topic;
+
+  private final Producer<byte[], byte[]> producer;
+
+  public DeadLetterQueue(String topic, String bootstrapServers, Map<String, Object> producerOverrides) {
+    Map<String, Object> producerProps = new HashMap<>(producerOverrides);
+    producerProps.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+    producerProps.putIfAbsent(ProducerConfig.ACKS_CONFIG, "all");
+    this.topic = topic;
+    this.producer = new KafkaProducer<>(producerProps, new ByteArraySerializer(), new ByteArraySerializer());
+  }
+
+  DeadLetterQueue(String topic, Producer<byte[], byte[]> producer) {
+    this.topic = topic;
+    this.producer = producer;
+  }
+
+  /**
+   * Sends the record and waits for the broker to acknowledge it, as its offset
+   * will be committed as soon as this returns.
+   */
+  public void send(SinkRecord record, ConnectException error) {
+
+    ProducerRecord<byte[], byte[]> deadLetter = new ProducerRecord<>(topic, null, record.timestamp(),
+        toBytes(record.key()), toBytes(record.value()));
+    deadLetter.headers()
+        .add(HEADER_PREFIX + "topic", toBytes(record.topic()))
+        .add(HEADER_PREFIX + "partition", toBytes(record.kafkaPartition()))
+        .add(HEADER_PREFIX + "offset", toBytes(record.kafkaOffset()))
+        .add(HEADER_PREFIX + "message", toBytes(error.getMessage()));
+    if (error instanceof SparqlEndpointException) {
+      deadLetter.headers().add(HEADER_PREFIX + "status", toBytes(((SparqlEndpointException) error).getStatusCode()));
+    }
+
+    try {
+      producer.send(deadLetter).get();
+      log.warn("Routed record {}-{}@{} to dead letter topic {}: {}", record.topic(), record.kafkaPartition(),
+          record.kafkaOffset(), topic, error.getMessage());
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new RetriableException(ie);
+    } catch (ExecutionException ee) {
+      throw new ConnectException(String.format("Could not route record to dead letter topic %s", topic), ee);
+    }
+  }
+
+  private static byte[] toBytes(Object value) {
+    if (value == null) {
+      return null;
+    }
+    if (value instanceof byte[]) {
+      return (byte[]) value;
+    }
+    return value.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public void close() {
+    producer.close();
+  }
+}
@@ -0,0 +1,139 @@
+package com.emorozov.swl.connector.sparql;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Map;
+
+import org.apache.kafka.common.config.AbstractConfig;
+import org.apache.kafka.common.config.ConfigException;
+
+public class HttpRdfUpdateSinkConfig extends AbstractConfig {
+
+  public HttpRdfUpdateSinkConfig(Map<String, String> props) {
+    super(HttpRdfUpdateSinkConnector.CONFIG_DEF, props);
+  }
+
+  public String getSparqlHttpEndpoint() {
+    return getString(HttpRdfUpdateSinkConnector.SPARQL_HTTP_ENDPOINT);
+  }
+
+  public RdfPayloadFormat getPayloadFormat() {
+    return RdfPayloadFormat.forName(getString(HttpRdfUpdateSinkConnector.PAYLOAD_FORMAT));
+  }
+
+  public WriteMode getWriteMode() {
+    return WriteMode.forName(getString(HttpRdfUpdateSinkConnector.WRITE_MODE));
+  }
+
+  public String getUpdateGraphPrefix() {
+    return getString(HttpRdfUpdateSinkConnector.UPDATE_GRAPH_PREFIX);
+  }
+
+  public int getBatchMaxRecords() {
+    return getInt(HttpRdfUpdateSinkConnector.BATCH_MAX_RECORDS);
+  }
+
+  public int getBatchMaxBytes() {
+    return getInt(HttpRdfUpdateSinkConnector.BATCH_MAX_BYTES);
+  }
+
+  public int getHttpPoolMaxConnections() {
+    return getInt(HttpRdfUpdateSinkConnector.HTTP_POOL_MAX_CONNECTIONS);
+  }
+
+  public int getHttpConnectTimeoutMs() {
+    return getInt(HttpRdfUpdateSinkConnector.HTTP_CONNECT_TIMEOUT_MS);
+  }
+
+  public int getHttpSocketTimeoutMs() {
+    return getInt(HttpRdfUpdateSinkConnector.HTTP_SOCKET_TIMEOUT_MS);
+  }
+
+  public long getHttpKeepAliveMs() {
+    return getLong(HttpRdfUpdateSinkConnector.HTTP_KEEPALIVE_MS);
+  }
+
+  public int getWriteMaxInFlight() {
+    return getInt(HttpRdfUpdateSinkConnector.WRITE_MAX_IN_FLIGHT);
+  }
+
+  public int getRetryMaxAttempts() {
+    return getInt(HttpRdfUpdateSinkConnector.RETRY_MAX_ATTEMPTS);
+  }
+
+  public long getRetryBackoffInitialMs() {
+    return getLong(HttpRdfUpdateSinkConnector.RETRY_BACKOFF_INITIAL_MS);
+  }
+
+  public long getRetryBackoffMaxMs() {
+    return getLong(HttpRdfUpdateSinkConnector.RETRY_BACKOFF_MAX_MS);
+  }
+
+  public int getCircuitFailureThreshold() {
+    return getInt(HttpRdfUpdateSinkConnector.CIRCUIT_FAILURE_THRESHOLD);
+  }
+
+  public long getCircuitOpenMs() {
+    return getLong(HttpRdfUpdateSinkConnector.CIRCUIT_OPEN_MS);
+  }
+
+  public String getDlqTopic() {
+    return getString(HttpRdfUpdateSinkConnector.DLQ_TOPIC);
+  }
+
+  public String getDlqBootstrapServers() {
+    return getString(HttpRdfUpdateSinkConnector.DLQ_BOOTSTRAP_SERVERS);
+  }
+
+  public Map<String, Object> getDlqProducerOverrides() {
+    return originalsWithPrefix(HttpRdfUpdateSinkConnector.DLQ_PRODUCER_PREFIX);
+  }
+
+  public String getSpoolDir() {
+    return getString(HttpRdfUpdateSinkConnector.SPOOL_DIR);
+  }
+
+  public int getSpoolSegmentBytes() {
+    return getInt(HttpRdfUpdateSinkConnector.SPOOL_SEGMENT_BYTES);
+  }
+
+  public long getSpoolMaxBytes() {
+    return getLong(HttpRdfUpdateSinkConnector.SPOOL_MAX_BYTES);
+  }
+
+  public int getSpoolDrainMaxRecords() {
+    return getInt(HttpRdfUpdateSinkConnector.SPOOL_DRAIN_MAX_RECORDS);
+  }
+
+  public int getSpoolDrainMaxBytes() {
+    return getInt(HttpRdfUpdateSinkConnector.SPOOL_DRAIN_MAX_BYTES);
+  }
+
+  public String getTaskId() {
+    return getString(HttpRdfUpdateSinkConnector.TASK_ID);
+  }
+
+  public String getTaskGraphPrefix() {
+    return getString(HttpRdfUpdateSinkConnector.TASK_GRAPH_PREFIX);
+  }
+
+  /**
+   * Endpoint for this task. With the Graph Store protocol it points at the
+   * task's own named graph when a graph prefix is configured, updates name
+   * their graphs themselves.
+   */
+  public String getTaskSparqlHttpEndpoint() {
+    String endpoint = getSparqlHttpEndpoint();
+    String graphPrefix = getTaskGraphPrefix();
+    if (graphPrefix.isEmpty() || getWriteMode() == WriteMode.UPDATE) {
+      return endpoint;
+    }
+    int query = endpoint.indexOf('?');
+    String service = query < 0 ? endpoint : endpoint.substring(0, query);
+    try {
+      return String.format("%s?graph=%s", service, URLEncoder.encode(graphPrefix + getTaskId(), "UTF-8"));
+    } catch (UnsupportedEncodingException uee) {
+      throw new ConfigException(HttpRdfUpdateSinkConnector.TASK_GRAPH_PREFIX, graphPrefix, uee.getMessage());
+    }
+  }
+}
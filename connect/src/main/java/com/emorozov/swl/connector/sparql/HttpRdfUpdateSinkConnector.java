@@ -7,7 +7,9 @@ import java.util.Map;
 
 import org.apache.kafka.common.config.ConfigDef;
 import org.apache.kafka.common.config.ConfigDef.Importance;
+import org.apache.kafka.common.config.ConfigDef.Range;
 import org.apache.kafka.common.config.ConfigDef.Type;
+import org.apache.kafka.common.config.ConfigDef.ValidString;
 import org.apache.kafka.connect.connector.Task;
 import org.apache.kafka.connect.sink.SinkConnector;
 
@@ -18,20 +20,105 @@ public class HttpRdfUpdateSinkConnector extends SinkConnector {
 
   public static final String TOPIC_CONFIG = "topics";
   public static final String SPARQL_HTTP_ENDPOINT = "sparql.http.endpoint";
+  public static final String PAYLOAD_FORMAT = "sparql.payload.format";
+  public static final String BATCH_MAX_RECORDS = "sparql.batch.max.records";
+  public static final String BATCH_MAX_BYTES = "sparql.batch.max.bytes";
+  public static final String HTTP_POOL_MAX_CONNECTIONS = "sparql.http.pool.max.connections";
+  public static final String HTTP_CONNECT_TIMEOUT_MS = "sparql.http.connect.timeout.ms";
+  public static final String HTTP_SOCKET_TIMEOUT_MS = "sparql.http.socket.timeout.ms";
+  public static final String HTTP_KEEPALIVE_MS = "sparql.http.keepalive.ms";
+  public static final String WRITE_MAX_IN_FLIGHT = "sparql.write.max.in.flight";
+  public static final String RETRY_MAX_ATTEMPTS = "sparql.retry.max.attempts";
+  public static final String RETRY_BACKOFF_INITIAL_MS = "sparql.retry.backoff.initial.ms";
+  public static final String RETRY_BACKOFF_MAX_MS = "sparql.retry.backoff.max.ms";
+  public static final String CIRCUIT_FAILURE_THRESHOLD = "sparql.circuit.failure.threshold";
+  public static final String CIRCUIT_OPEN_MS = "sparql.circuit.open.ms";
+  public static final String DLQ_TOPIC = "sparql.dlq.topic";
+  public static final String DLQ_BOOTSTRAP_SERVERS = "sparql.dlq.bootstrap.servers";
+  public static final String DLQ_PRODUCER_PREFIX = "sparql.dlq.producer.";
+  public static final String TASK_ID = "sparql.task.id";
+  public static final String TASK_GRAPH_PREFIX = "sparql.task.graph.prefix";
+  public static final String WRITE_MODE = "sparql.write.mode";
+  public static final String UPDATE_GRAPH_PREFIX = "sparql.update.graph.prefix";
+  public static final String SPOOL_DIR = "sparql.spool.dir";
+  public static final String SPOOL_SEGMENT_BYTES = "sparql.spool.segment.bytes";
+  public static final String SPOOL_MAX_BYTES = "sparql.spool.max.bytes";
+  public static final String SPOOL_DRAIN_MAX_RECORDS = "sparql.spool.drain.max.records";
+  public static final String SPOOL_DRAIN_MAX_BYTES = "sparql.spool.drain.max.bytes";
 
-  private static final ConfigDef CONFIG_DEF = new ConfigDef()
+  static final ConfigDef CONFIG_DEF = new ConfigDef()
       .define(TOPIC_CONFIG, Type.STRING, Importance.HIGH,
-          "The topic to read data from. Expect raw RDF data in Turtle encoding")
-      .define(SPARQL_HTTP_ENDPOINT, Type.STRING, Importance.HIGH, "SPARQL 1.1 HTTP Endpoint, typically '/data?default'");
+          "The topic to read data from. Expect raw RDF data in the configured payload format")
+      .define(SPARQL_HTTP_ENDPOINT, Type.STRING, Importance.HIGH,
+          "SPARQL 1.1 HTTP Endpoint, typically '/data?default', or the update endpoint such as '/update' when "
+              + "writing SPARQL updates")
+      .define(WRITE_MODE, Type.STRING, WriteMode.GRAPH_STORE.getName(), ValidString.in(WriteMode.names()),
+          Importance.HIGH, "'graph-store' appends the triples with the Graph Store protocol, 'update' replaces a named "
+              + "graph per record key with SPARQL updates so that redelivered records are not written twice. "
+              + "Updates need a Turtle or N-Triples payload format")
+      .define(UPDATE_GRAPH_PREFIX, Type.STRING, "http://semanticweblondon.com/graph/", Importance.MEDIUM,
+          "Prefix of the named graphs written in update mode, followed by the record key")
+      .define(PAYLOAD_FORMAT, Type.STRING, RdfPayloadFormat.TURTLE.getName(),
+          ValidString.in(RdfPayloadFormat.names()), Importance.HIGH,
+          "Encoding of the RDF payloads on the topic, has to match the producers. Binary formats need the "
+              + "ByteArrayConverter")
+      .define(BATCH_MAX_RECORDS, Type.INT, 1, Range.atLeast(1), Importance.MEDIUM,
+          "Maximum number of records combined into a single request, 1 posts every record on its own")
+      .define(BATCH_MAX_BYTES, Type.INT, 1048576, Range.atLeast(1), Importance.MEDIUM,
+          "Maximum size in bytes of a combined request, a single larger record is still posted on its own")
+      .define(HTTP_POOL_MAX_CONNECTIONS, Type.INT, 8, Range.atLeast(1), Importance.MEDIUM,
+          "Maximum number of pooled connections to the SPARQL endpoint")
+      .define(HTTP_CONNECT_TIMEOUT_MS, Type.INT, 5000, Range.atLeast(0), Importance.LOW,
+          "Timeout for establishing a connection to the SPARQL endpoint, 0 waits indefinitely")
+      .define(HTTP_SOCKET_TIMEOUT_MS, Type.INT, 60000, Range.atLeast(0), Importance.LOW,
+          "Timeout waiting for data from the SPARQL endpoint, 0 waits indefinitely")
+      .define(HTTP_KEEPALIVE_MS, Type.LONG, 30000L, Range.atLeast(0), Importance.LOW,
+          "How long an idle connection is kept open when the endpoint does not send a Keep-Alive header")
+      .define(WRITE_MAX_IN_FLIGHT, Type.INT, 1, Range.atLeast(1), Importance.MEDIUM,
+          "Maximum number of requests in flight to the SPARQL endpoint, 1 waits for every response before "
+              + "sending the next request. Not used with a spool, which is written one request at a time")
+      .define(RETRY_MAX_ATTEMPTS, Type.INT, 5, Range.atLeast(1), Importance.MEDIUM,
+          "Number of attempts for a request that failed with a server error or timed out")
+      .define(RETRY_BACKOFF_INITIAL_MS, Type.LONG, 200L, Range.atLeast(0), Importance.LOW,
+          "Backoff before the first retry, doubled for every further attempt")
+      .define(RETRY_BACKOFF_MAX_MS, Type.LONG, 10000L, Range.atLeast(0), Importance.LOW,
+          "Upper bound for the backoff between retries")
+      .define(CIRCUIT_FAILURE_THRESHOLD, Type.INT, 3, Range.atLeast(1), Importance.MEDIUM,
+          "Number of consecutive requests failing all their attempts before consumption is paused")
+      .define(CIRCUIT_OPEN_MS, Type.LONG, 30000L, Range.atLeast(0), Importance.MEDIUM,
+          "How long consumption stays paused before a trial request is sent")
+      .define(DLQ_TOPIC, Type.STRING, "", Importance.MEDIUM,
+          "Topic for records rejected by the endpoint, when empty a rejected record fails the task")
+      .define(DLQ_BOOTSTRAP_SERVERS, Type.STRING, "", Importance.MEDIUM,
+          "Kafka cluster for the dead letter topic, further producer settings can be passed with the '"
+              + DLQ_PRODUCER_PREFIX + "' prefix")
+      .define(TASK_ID, Type.STRING, "0", Importance.LOW, "Assigned by the connector to tell tasks apart")
+      .define(TASK_GRAPH_PREFIX, Type.STRING, "", Importance.LOW,
+          "When set, every task writes into its own named graph made of this prefix and the task id, "
+              + "so that concurrent tasks do not contend for the same graph. Only used with the Graph Store "
+              + "protocol")
+      .define(SPOOL_DIR, Type.STRING, "", Importance.MEDIUM,
+          "When set, records are appended to a spool in this local directory and their offsets committed, while "
+              + "a background thread writes them to the SPARQL endpoint. Consumption then carries on while the "
+              + "endpoint is slow or down. Every task spools into a subdirectory named after the connector and "
+              + "task id. Spooled records stay on the local disk of the worker running the task: when the task is "
+              + "reassigned to another worker in distributed mode, they are left behind until it is assigned to "
+              + "this worker again")
+      .define(SPOOL_SEGMENT_BYTES, Type.INT, 67108864, Range.atLeast(1024), Importance.LOW,
+          "Size of the memory mapped spool segment files, a record has to fit into a single segment")
+      .define(SPOOL_MAX_BYTES, Type.LONG, 1073741824L, Range.atLeast(1024), Importance.MEDIUM,
+          "Local disk space the spool of a task may take on its worker, consumption stops while it is full")
+      .define(SPOOL_DRAIN_MAX_RECORDS, Type.INT, 5000, Range.atLeast(1), Importance.LOW,
+          "Maximum number of spooled records combined into a single request")
+      .define(SPOOL_DRAIN_MAX_BYTES, Type.INT, 8388608, Range.atLeast(1), Importance.LOW,
+          "Maximum size in bytes of a request combining spooled records");
 
-  private String topic;
-
-  private String sparqlHttpEndpoint;
+  private Map<String, String> configProps;
 
   @Override
   public void start(final Map<String, String> props) {
-    topic = props.get(TOPIC_CONFIG);
-    sparqlHttpEndpoint = props.get(SPARQL_HTTP_ENDPOINT);
+    new HttpRdfUpdateSinkConfig(props);
+    configProps = new HashMap<>(props);
   }
 
   @Override
@@ -43,13 +130,18 @@ public class HttpRdfUpdateSinkConnector extends SinkConnector {
     return HttpRdfUpdateSinkTask.class;
   }
 
+  /**
+   * Partitions of the subscribed topics are spread across the tasks by the
+   * consumer group of the connector, so tasks only differ by their id.
+   */
   @Override
   public List<Map<String, String>> taskConfigs(int maxTasks) {
     ArrayList<Map<String, String>> configs = new ArrayList<>();
-    Map<String, String> config = new HashMap<>();
-    config.put(TOPIC_CONFIG, topic);
-    config.put(SPARQL_HTTP_ENDPOINT, sparqlHttpEndpoint);
-    configs.add(config);
+    for (int i = 0; i < maxTasks; i++) {
+      Map<String, String> config = new HashMap<>(configProps);
+      config.put(TASK_ID, Integer.toString(i));
+      configs.add(config);
+    }
     return configs;
   }
 
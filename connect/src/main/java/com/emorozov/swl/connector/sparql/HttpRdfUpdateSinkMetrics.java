@@ -0,0 +1,146 @@
+package com.emorozov.swl.connector.sparql;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntSupplier;
+
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.metrics.Gauge;
+import org.apache.kafka.common.metrics.JmxReporter;
+import org.apache.kafka.common.metrics.MetricConfig;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.metrics.stats.Avg;
+import org.apache.kafka.common.metrics.stats.Max;
+import org.apache.kafka.common.metrics.stats.Meter;
+import org.apache.kafka.common.utils.Time;
+import org.apache.kafka.connect.sink.SinkRecord;
+
+/**
+ * Task level metrics, reported over JMX next to the Connect worker metrics
+ * under {@code kafka.connect.sparql:type=sparql-sink-task-metrics}. Latencies
+ * are reported as percentiles over the last metrics sample window.
+ */
+public class HttpRdfUpdateSinkMetrics implements AutoCloseable {
+
+  static final String JMX_PREFIX = "kafka.connect.sparql";
+
+  static final String GROUP = "sparql-sink-task-metrics";
+
+  private final Metrics metrics;
+
+  private final Map<String, String> tags = new LinkedHashMap<>();
+
+  private final Sensor batchRecords;
+
+  private final Sensor batchBytes;
+
+  private final Sensor requestFailures;
+
+  private final Sensor deadLetters;
+
+  private final LatencyHistogram requestLatency;
+
+  private final LatencyHistogram endToEndLatency;
+
+  public HttpRdfUpdateSinkMetrics(String connector, String taskId) {
+    MetricConfig config = new MetricConfig();
+    this.metrics = new Metrics(config, Collections.singletonList(new JmxReporter(JMX_PREFIX)), Time.SYSTEM);
+    this.tags.put("connector", connector == null ? "unknown" : connector);
+    this.tags.put("task", taskId);
+
+    this.batchRecords = metrics.sensor("batch-records");
+    this.batchRecords.add(metricName("batch-records-avg", "Average number of records per request"), new Avg());
+    this.batchRecords.add(metricName("batch-records-max", "Most records in a request"), new Max());
+    this.batchBytes = metrics.sensor("batch-bytes");
+    this.batchBytes.add(metricName("batch-bytes-avg", "Average size of a request body in bytes"), new Avg());
+    this.batchBytes.add(metricName("batch-bytes-max", "Largest request body in bytes"), new Max());
+    this.requestFailures = metrics.sensor("request-failures");
+    this.requestFailures.add(new Meter(metricName("request-failure-rate", "Failed requests per second"),
+        metricName("request-failure-total", "Failed requests, including ones retried")));
+    this.deadLetters = metrics.sensor("dead-letters");
+    this.deadLetters.add(new Meter(metricName("dead-letter-rate", "Records routed to the dead letter topic per second"),
+        metricName("dead-letter-total", "Records routed to the dead letter topic")));
+
+    this.requestLatency = latency("request-latency", "Time from sending a request to the SPARQL endpoint to its response",
+        config.timeWindowMs());
+    this.endToEndLatency = latency("end-to-end-latency",
+        "Time from the event time of a record to its triples being acknowledged by the SPARQL endpoint",
+        config.timeWindowMs());
+  }
+
+  /**
+   * Records one request to the SPARQL endpoint, successful or not.
+   */
+  public void recordRequest(RdfBatch batch, long latencyMs, boolean success) {
+    batchRecords.record(batch.size());
+    batchBytes.record(batch.getBytes());
+    requestLatency.record(latencyMs);
+    if (!success) {
+      requestFailures.record();
+    }
+  }
+
+  /**
+   * Records the records whose triples have just been acknowledged by the
+   * endpoint.
+   */
+  public void recordDelivered(Iterable<SinkRecord> records) {
+    long now = System.currentTimeMillis();
+    for (SinkRecord record : records) {
+      if (record.timestamp() != null) {
+        endToEndLatency.record(now - record.timestamp());
+      }
+    }
+  }
+
+  public void recordDeadLetter() {
+    deadLetters.record();
+  }
+
+  public void registerConnectionPool(PoolingHttpClientConnectionManager pool) {
+    gauge("connection-pool-leased", "Connections to the SPARQL endpoint currently in use",
+        () -> pool.getTotalStats().getLeased());
+    gauge("connection-pool-available", "Idle connections to the SPARQL endpoint kept alive in the pool",
+        () -> pool.getTotalStats().getAvailable());
+    gauge("connection-pool-pending", "Requests waiting for a connection to the SPARQL endpoint",
+        () -> pool.getTotalStats().getPending());
+    gauge("connection-pool-max", "Maximum number of connections to the SPARQL endpoint",
+        () -> pool.getTotalStats().getMax());
+  }
+
+  public void registerSpool(Spool spool) {
+    metrics.addMetric(metricName("spool-pending-records", "Spooled records not yet written to the SPARQL endpoint"),
+        (Gauge<Long>) (config, now) -> spool.getPendingRecords());
+    metrics.addMetric(metricName("spool-pending-bytes", "Bytes of spooled records not yet written to the SPARQL "
+        + "endpoint"), (Gauge<Long>) (config, now) -> spool.getPendingBytes());
+  }
+
+  private void gauge(String name, String description, IntSupplier value) {
+    metrics.addMetric(metricName(name, description), (Gauge<Integer>) (config, now) -> value.getAsInt());
+  }
+
+  private LatencyHistogram latency(String name, String description, long windowMs) {
+    LatencyHistogram histogram = new LatencyHistogram(windowMs);
+    metrics.addMetric(metricName(name + "-p50", description + ", median in ms"),
+        (Gauge<Long>) (config, now) -> histogram.valueAtPercentile(50.0, now));
+    metrics.addMetric(metricName(name + "-p99", description + ", 99th percentile in ms"),
+        (Gauge<Long>) (config, now) -> histogram.valueAtPercentile(99.0, now));
+    metrics.addMetric(metricName(name + "-p999", description + ", 99.9th percentile in ms"),
+        (Gauge<Long>) (config, now) -> histogram.valueAtPercentile(99.9, now));
+    metrics.addMetric(metricName(name + "-max", description + ", maximum in ms"),
+        (Gauge<Long>) (config, now) -> histogram.max(now));
+    return histogram;
+  }
+
+  private MetricName metricName(String name, String description) {
+    return metrics.metricName(name, GROUP, description, tags);
+  }
+
+  @Override
+  public void close() {
+    metrics.close();
+  }
+}
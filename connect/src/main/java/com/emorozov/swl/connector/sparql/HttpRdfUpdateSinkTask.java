@@ -1,72 +1,630 @@
 package com.emorozov.swl.connector.sparql;
 
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.config.ConfigException;
 import org.apache.kafka.connect.errors.ConnectException;
+import org.apache.kafka.connect.errors.DataException;
 import org.apache.kafka.connect.errors.RetriableException;
 import org.apache.kafka.connect.sink.SinkRecord;
 import org.apache.kafka.connect.sink.SinkTask;
 
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.StatusLine;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.HttpEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
 
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public class HttpRdfUpdateSinkTask extends SinkTask {
 
+  private final Deque<PendingWrite> pendingWrites = new ArrayDeque<>();
+
+  private final Map<TopicPartition, Long> pendingRewind = new HashMap<>();
+
   private String sparqlHttpEndpoint;
 
+  private RdfPayloadFormat payloadFormat;
+
+  private WriteMode writeMode;
+
+  private String updateGraphPrefix;
+
+  private int batchMaxRecords;
+
+  private int batchMaxBytes;
+
+  private PoolingHttpClientConnectionManager connectionManager;
+
+  private CloseableHttpClient httpClient;
+
+  private HttpRdfUpdateSinkMetrics metrics;
+
+  private ExecutorService senders;
+
+  private Semaphore inFlight;
+
+  private int retryMaxAttempts;
+
+  private long retryBackoffInitialMs;
+
+  private long retryBackoffMaxMs;
+
+  private CircuitBreaker circuitBreaker;
+
+  private boolean paused;
+
+  private DeadLetterQueue deadLetterQueue;
+
+  private Spool spool;
+
+  private int drainMaxRecords;
+
+  private int drainMaxBytes;
+
+  private Thread drainer;
+
+  private volatile RuntimeException drainFailure;
+
   public void start(Map<String, String> props) {
-    this.sparqlHttpEndpoint = props.get(HttpRdfUpdateSinkConnector.SPARQL_HTTP_ENDPOINT);
+    HttpRdfUpdateSinkConfig config = new HttpRdfUpdateSinkConfig(props);
+    this.sparqlHttpEndpoint = config.getTaskSparqlHttpEndpoint();
+    this.payloadFormat = config.getPayloadFormat();
+    this.writeMode = config.getWriteMode();
+    this.updateGraphPrefix = config.getUpdateGraphPrefix();
+    if (writeMode == WriteMode.UPDATE && payloadFormat.isBinary()) {
+      throw new ConfigException(HttpRdfUpdateSinkConnector.WRITE_MODE, writeMode.getName(),
+          String.format("SPARQL updates can not be built from %s payloads", payloadFormat.getName()));
+    }
+    this.batchMaxRecords = config.getBatchMaxRecords();
+    this.batchMaxBytes = config.getBatchMaxBytes();
+    this.retryMaxAttempts = config.getRetryMaxAttempts();
+    this.retryBackoffInitialMs = config.getRetryBackoffInitialMs();
+    this.retryBackoffMaxMs = config.getRetryBackoffMaxMs();
+    this.circuitBreaker = new CircuitBreaker(config.getCircuitFailureThreshold(), config.getCircuitOpenMs());
+
+    if (!config.getDlqTopic().isEmpty()) {
+      if (config.getDlqBootstrapServers().isEmpty()) {
+        throw new ConfigException(HttpRdfUpdateSinkConnector.DLQ_BOOTSTRAP_SERVERS, "",
+            "Required when a dead letter topic is configured");
+      }
+      this.deadLetterQueue = newDeadLetterQueue(config);
+    }
+
+    // The task only talks to a single endpoint, so every pooled connection can go
+    // to the same route. Every request in flight needs a connection of its own.
+    int maxConnections = Math.max(config.getHttpPoolMaxConnections(), config.getWriteMaxInFlight());
+    this.connectionManager = new PoolingHttpClientConnectionManager();
+    this.connectionManager.setMaxTotal(maxConnections);
+    this.connectionManager.setDefaultMaxPerRoute(maxConnections);
+
+    long keepAliveMs = config.getHttpKeepAliveMs();
+    this.httpClient = HttpClients.custom()
+        .setConnectionManager(connectionManager)
+        .setDefaultRequestConfig(RequestConfig.custom()
+            .setConnectTimeout(config.getHttpConnectTimeoutMs())
+            .setConnectionRequestTimeout(config.getHttpConnectTimeoutMs())
+            .setSocketTimeout(config.getHttpSocketTimeoutMs())
+            .build())
+        .setKeepAliveStrategy((response, context) -> {
+          long serverKeepAliveMs = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+          return serverKeepAliveMs > 0 ? serverKeepAliveMs : keepAliveMs;
+        })
+        .evictExpiredConnections()
+        .evictIdleConnections(keepAliveMs, TimeUnit.MILLISECONDS)
+        .build();
+
+    // The drainer of a spool sends one request at a time
+    if (config.getSpoolDir().isEmpty() && config.getWriteMaxInFlight() > 1) {
+      String threadPrefix = String.format("sparql-sink-%s-sender-", config.getTaskId());
+      AtomicInteger threadCount = new AtomicInteger();
+      this.senders = Executors.newFixedThreadPool(config.getWriteMaxInFlight(), r -> {
+        Thread thread = new Thread(r, threadPrefix + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+      this.inFlight = new Semaphore(config.getWriteMaxInFlight());
+    }
+
+    this.metrics = new HttpRdfUpdateSinkMetrics(props.get("name"), config.getTaskId());
+    this.metrics.registerConnectionPool(connectionManager);
+
+    if (!config.getSpoolDir().isEmpty()) {
+      this.spool = Spool.open(Paths.get(config.getSpoolDir(), String.format("%s-%s", props.get("name"),
+          config.getTaskId())), config.getSpoolSegmentBytes(), config.getSpoolMaxBytes());
+      this.drainMaxRecords = config.getSpoolDrainMaxRecords();
+      this.drainMaxBytes = config.getSpoolDrainMaxBytes();
+      this.metrics.registerSpool(spool);
+      this.drainer = new Thread(this::drain, String.format("sparql-sink-%s-spool-drainer", config.getTaskId()));
+      this.drainer.setDaemon(true);
+      this.drainer.start();
+      log.info("Task {} spooling records to {}", config.getTaskId(), config.getSpoolDir());
+    }
+
+    log.info("Task {} writing to {} with {} and up to {} requests in flight", config.getTaskId(), sparqlHttpEndpoint,
+        writeMode.getName(), senders == null ? 1 : config.getWriteMaxInFlight());
+  }
+
+  DeadLetterQueue newDeadLetterQueue(HttpRdfUpdateSinkConfig config) {
+    return new DeadLetterQueue(config.getDlqTopic(), config.getDlqBootstrapServers(),
+        config.getDlqProducerOverrides());
   }
 
   @Override
   public void stop() {
+    if (drainer != null) {
+      drainer.interrupt();
+    }
+    // Aborts requests blocked on the endpoint, which could otherwise outlast
+    // the wait below by several socket timeouts. Their records have not been
+    // acknowledged, so they are written again.
+    try {
+      if (httpClient != null) {
+        httpClient.close();
+      }
+    } catch (IOException ioe) {
+      log.warn("Failed to close HTTP client.", ioe);
+    }
+    if (drainer != null) {
+      try {
+        drainer.join(TimeUnit.SECONDS.toMillis(30));
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (senders != null) {
+      senders.shutdown();
+      try {
+        senders.awaitTermination(30, TimeUnit.SECONDS);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (deadLetterQueue != null) {
+      deadLetterQueue.close();
+    }
+    if (spool != null) {
+      spool.close();
+    }
+    if (metrics != null) {
+      metrics.close();
+    }
   }
 
   @Override
   public void put(Collection<SinkRecord> records) {
 
-    log.info("Got {} records to post.", records.size());
+    if (spool != null) {
+      spool(records);
+      return;
+    }
+
+    // Any rewind requested earlier has been applied by the time Connect calls
+    // put() again.
+    pendingRewind.clear();
+
+    // Writes refused while the circuit breaker was open are rewound before
+    // resuming, so that they do not pause consumption again. The trial request
+    // is left to the first write after resuming.
+    checkPendingWrites();
+
+    if (paused && circuitBreaker.wouldAllowRequest()) {
+      log.info("Resuming consumption after SPARQL endpoint circuit breaker opened");
+      context.resume(context.assignment().toArray(new TopicPartition[0]));
+      paused = false;
+    }
+
+    if (records.isEmpty()) {
+      return;
+    }
+
+    log.debug("Got {} records to post.", records.size());
+
+    List<PendingWrite> writes = new ArrayList<>();
+    PendingWrite pendingWrite = new PendingWrite(newBatch(batchMaxRecords, batchMaxBytes));
 
     for (SinkRecord record : records) {
 
-      try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+      if (record.value() == null) {
+        log.warn("Can not write null value record, skipping. Record: {}", record);
+        continue;
+      }
 
-        if (record.value() == null) {
-          log.warn("Can not write null value record, skipping. Record: {}", record);
+      try {
+        if (!pendingWrite.getBatch().add(record)) {
+          writes.add(pendingWrite);
+          pendingWrite = new PendingWrite(newBatch(batchMaxRecords, batchMaxBytes));
+          pendingWrite.getBatch().add(record);
+        }
+      } catch (DataException de) {
+        deadLetter(record, de);
+        continue;
+      }
+      pendingWrite.track(record);
+    }
+
+    if (!pendingWrite.getBatch().isEmpty()) {
+      writes.add(pendingWrite);
+    }
+
+    boolean failed = false;
+    for (PendingWrite write : writes) {
+      if (senders == null) {
+        failed = writeNow(write, failed);
+      } else {
+        writeLater(write);
+      }
+      pendingWrites.add(write);
+    }
+
+    checkPendingWrites();
+
+    log.debug("Connection pool {}", connectionManager.getTotalStats());
+  }
+
+  /**
+   * Appends the records to the spool, from where the drainer writes them to
+   * the endpoint, so their offsets can be committed once this returns. While
+   * the spool is full the records are handed back to Connect, which delivers
+   * them again after the backoff.
+   */
+  private void spool(Collection<SinkRecord> records) {
+
+    if (drainFailure != null) {
+      throw new ConnectException("Writing spooled records to the SPARQL endpoint failed", drainFailure);
+    }
+
+    List<SinkRecord> spooled = new ArrayList<>(records.size());
+    for (SinkRecord record : records) {
+      if (record.value() == null) {
+        log.warn("Can not write null value record, skipping. Record: {}", record);
+        continue;
+      }
+      spooled.add(record);
+    }
+
+    if (!spool.append(spooled)) {
+      context.timeout(retryBackoffMaxMs);
+      throw new RetriableException(String.format("Spool is full with %s records not yet written to the SPARQL "
+          + "endpoint", spool.getPendingRecords()));
+    }
+  }
+
+  /**
+   * Writes the spooled records to the endpoint in the order they were spooled,
+   * as many at a time as fit into a request, and removes them from the spool
+   * once they are acknowledged. While the endpoint is unavailable it tries
+   * again with backoff. Records the endpoint rejects go to the dead letter
+   * topic, any other failure stops the drainer and fails the task on its next
+   * put().
+   */
+  private void drain() {
+
+    long backoffMs = retryBackoffInitialMs;
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        List<SinkRecord> records = spool.peek(drainMaxRecords, drainMaxBytes, 1000L);
+        PendingWrite pendingWrite = new PendingWrite(newBatch(drainMaxRecords, drainMaxBytes));
+        for (SinkRecord record : records) {
+          try {
+            if (!pendingWrite.getBatch().add(record)) {
+              break;
+            }
+          } catch (DataException de) {
+            // Written once the records before it are
+            if (pendingWrite.getBatch().isEmpty()) {
+              deadLetter(record, de);
+              spool.remove(1);
+            }
+            break;
+          }
+          pendingWrite.track(record);
+        }
+
+        if (!pendingWrite.getBatch().isEmpty()) {
+          send(pendingWrite);
+          spool.remove(pendingWrite.getRecords().size());
+        }
+        backoffMs = retryBackoffInitialMs;
+
+      } catch (RetriableException re) {
+        log.warn("Writing spooled records to SPARQL endpoint failed, {} records spooled, retrying in {} ms: {}",
+            spool.getPendingRecords(), backoffMs, re.getMessage());
+        try {
+          Thread.sleep(backoffMs);
+        } catch (InterruptedException ie) {
+          return;
+        }
+        backoffMs = Math.min(backoffMs * 2, retryBackoffMaxMs);
+      } catch (InterruptedException ie) {
+        return;
+      } catch (RuntimeException e) {
+        if (Thread.currentThread().isInterrupted()) {
+          // The task is stopping and closed the HTTP client or the spool
           return;
         }
+        log.error("Writing spooled records to SPARQL endpoint failed, stopping", e);
+        drainFailure = e;
+        return;
+      }
+    }
+  }
+
+  private RdfBatch newBatch(int maxRecords, int maxBytes) {
+    if (writeMode == WriteMode.UPDATE) {
+      return new UpdateBatch(payloadFormat, updateGraphPrefix, maxRecords, maxBytes);
+    }
+    return payloadFormat.newBatch(maxRecords, maxBytes);
+  }
+
+  /**
+   * Only commits offsets up to the first record that has not been acknowledged
+   * by the endpoint yet, so that records still in flight or waiting to be
+   * delivered again are not lost if the task dies.
+   */
+  @Override
+  public Map<TopicPartition, OffsetAndMetadata> preCommit(Map<TopicPartition, OffsetAndMetadata> currentOffsets) {
 
-        HttpPost post = new HttpPost(sparqlHttpEndpoint);
-        post.setEntity(new StringEntity(record.value().toString()));
-        post.setHeader("Content-Type", "text/turtle");
+    checkPendingWrites();
 
-        HttpResponse response = httpClient.execute(post);
-        log.info(response.toString());
+    Map<TopicPartition, OffsetAndMetadata> committable = new HashMap<>(currentOffsets);
+    pendingRewind.forEach((tp, offset) -> limitOffset(committable, tp, offset));
+    for (PendingWrite pendingWrite : pendingWrites) {
+      pendingWrite.getFirstOffsets().forEach((tp, offset) -> limitOffset(committable, tp, offset));
+    }
+    return committable;
+  }
+
+  private static void limitOffset(Map<TopicPartition, OffsetAndMetadata> offsets, TopicPartition tp, long limit) {
+    offsets.computeIfPresent(tp,
+        (key, offset) -> offset.offset() > limit ? new OffsetAndMetadata(limit, offset.metadata()) : offset);
+  }
+
+  /**
+   * Sends the request on the task thread. Once a request has failed the
+   * remaining requests of the same put() are not sent, but marked as failed so
+   * that their records are delivered again.
+   */
+  private boolean writeNow(PendingWrite pendingWrite, boolean failed) {
+
+    CompletableFuture<Void> result = new CompletableFuture<>();
+    pendingWrite.setResult(result);
+
+    if (failed) {
+      result.completeExceptionally(new RetriableException("Not sent after an earlier request failed"));
+      return true;
+    }
+
+    try {
+      send(pendingWrite);
+      result.complete(null);
+      return false;
+    } catch (RuntimeException re) {
+      result.completeExceptionally(re);
+      return true;
+    }
+  }
+
+  private void writeLater(PendingWrite pendingWrite) {
+
+    // Blocks the task once the configured number of requests is in flight, which
+    // in turn stops Connect from polling more records.
+    try {
+      inFlight.acquire();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new RetriableException(ie);
+    }
+
+    try {
+      pendingWrite.setResult(CompletableFuture.runAsync(() -> send(pendingWrite), senders)
+          .whenComplete((result, error) -> inFlight.release()));
+    } catch (RuntimeException re) {
+      inFlight.release();
+      throw re;
+    }
+  }
+
+  /**
+   * Drops acknowledged requests and, if any request failed, rewinds every
+   * partition with records that were not acknowledged so that they are
+   * delivered again. Consumption is paused while the circuit breaker is open,
+   * otherwise the failure is handed back to Connect.
+   */
+  private void checkPendingWrites() {
+
+    Throwable failure = null;
+    for (Iterator<PendingWrite> it = pendingWrites.iterator(); it.hasNext();) {
+      PendingWrite pendingWrite = it.next();
+      if (pendingWrite.isDone()) {
+        it.remove();
+      } else if (pendingWrite.isFailed() && failure == null) {
+        failure = pendingWrite.getResult().handle((result, error) -> error).join();
+      }
+    }
+
+    if (failure == null) {
+      return;
+    }
 
-        // Only include basic error handling, would need to implement retries, etc.
-        // for the real sink.
-        StatusLine statusLine = response.getStatusLine();
-        if (statusLine.getStatusCode() != HttpStatus.SC_OK) {
-          throw new ConnectException(String.format("Received %s from SPARQL endpoint, discarding.", statusLine));
+    Set<TopicPartition> assignment = context.assignment();
+    Map<TopicPartition, Long> rewindOffsets = new HashMap<>();
+    for (PendingWrite pendingWrite : pendingWrites) {
+      pendingWrite.getFirstOffsets().forEach((tp, offset) -> {
+        if (assignment.contains(tp)) {
+          rewindOffsets.merge(tp, offset, Math::min);
         }
+      });
+    }
+    pendingWrites.clear();
+    rewindOffsets.forEach((tp, offset) -> pendingRewind.merge(tp, offset, Math::min));
+    log.warn("Write to SPARQL endpoint failed, rewinding to {}", rewindOffsets);
+    context.offset(rewindOffsets);
+
+    Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+    if (cause instanceof ConnectException && !(cause instanceof RetriableException)) {
+      throw (ConnectException) cause;
+    }
+
+    if (circuitBreaker.isOpen()) {
+      if (!paused) {
+        log.warn("SPARQL endpoint circuit breaker opened, pausing consumption", cause);
+        context.pause(assignment.toArray(new TopicPartition[0]));
+        paused = true;
+      }
+      return;
+    }
+
+    throw new RetriableException(cause);
+  }
+
+  /**
+   * Sends a batch and, if the endpoint rejects it, sends its records one by one
+   * to find the ones it can not accept and route them to the dead letter topic.
+   */
+  private void send(PendingWrite pendingWrite) {
+
+    List<SinkRecord> records = pendingWrite.getRecords();
+    try {
+      post(pendingWrite.getBatch());
+      metrics.recordDelivered(records);
+    } catch (SparqlEndpointException see) {
+
+      if (records.size() == 1) {
+        deadLetter(records.get(0), see);
+        return;
+      }
+
+      log.warn("SPARQL endpoint rejected a batch of {} records, sending them one by one: {}", records.size(),
+          see.getMessage());
+      for (SinkRecord record : records) {
+        RdfBatch single = newBatch(1, Integer.MAX_VALUE);
+        single.add(record);
+        try {
+          post(single);
+          metrics.recordDelivered(Collections.singletonList(record));
+        } catch (SparqlEndpointException recordException) {
+          deadLetter(record, recordException);
+        }
+      }
+    }
+  }
+
+  private void deadLetter(SinkRecord record, ConnectException error) {
+    if (deadLetterQueue == null) {
+      throw error;
+    }
+    deadLetterQueue.send(record, error);
+    metrics.recordDeadLetter();
+  }
+
+  /**
+   * Posts a batch, retrying server errors and timeouts with an exponential
+   * backoff, except for the trial request of a half-open circuit breaker.
+   */
+  private void post(RdfBatch batch) {
+
+    HttpEntity entity = batch.toEntity();
+    long backoffMs = retryBackoffInitialMs;
 
-      } catch (IOException ioe) {
+    for (int attempt = 1;; attempt++) {
+
+      if (!circuitBreaker.allowRequest()) {
+        throw new RetriableException("SPARQL endpoint circuit breaker is open");
+      }
 
-        throw new RetriableException(ioe);
+      try {
+        postOnce(batch, entity);
+        circuitBreaker.recordSuccess();
+        return;
+      } catch (SparqlEndpointException see) {
+        circuitBreaker.recordSuccess();
+        throw see;
+      } catch (RetriableException re) {
+        // A failed trial reopens the breaker right away instead of being retried
+        if (attempt >= retryMaxAttempts || circuitBreaker.getState() == CircuitBreaker.State.HALF_OPEN) {
+          circuitBreaker.recordFailure();
+          throw re;
+        }
+        long sleepMs = ThreadLocalRandom.current().nextLong(backoffMs / 2, backoffMs + 1);
+        log.warn("Attempt {} of {} to post {} records failed, retrying in {} ms: {}", attempt, retryMaxAttempts,
+            batch.size(), sleepMs, re.getMessage());
+        try {
+          Thread.sleep(sleepMs);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw re;
+        }
+        backoffMs = Math.min(backoffMs * 2, retryBackoffMaxMs);
       }
     }
   }
 
+  private void postOnce(RdfBatch batch, HttpEntity entity) {
+
+    HttpPost post = new HttpPost(sparqlHttpEndpoint);
+    post.setEntity(entity);
+
+    long start = System.nanoTime();
+    boolean success = false;
+    try (CloseableHttpResponse response = httpClient.execute(post)) {
+
+      StatusLine statusLine = response.getStatusLine();
+      int statusCode = statusLine.getStatusCode();
+
+      if (statusCode >= 200 && statusCode < 300) {
+        // The response has to be consumed for the connection to go back into the
+        // pool.
+        EntityUtils.consume(response.getEntity());
+        success = true;
+        log.debug("Posted {} records ({} bytes): {}", batch.size(), batch.getBytes(), statusLine);
+        return;
+      }
+
+      String body = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity());
+      String message = String.format("Received %s from SPARQL endpoint: %s", statusLine, body.trim());
+      if (statusCode >= 500 || statusCode == HttpStatus.SC_REQUEST_TIMEOUT || statusCode == 429) {
+        throw new RetriableException(message);
+      }
+      throw new SparqlEndpointException(message, statusCode);
+
+    } catch (IOException ioe) {
+
+      throw new RetriableException(ioe);
+    } finally {
+      metrics.recordRequest(batch, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), success);
+    }
+  }
+
   @Override
   public String version() {
     return "0.0.1";
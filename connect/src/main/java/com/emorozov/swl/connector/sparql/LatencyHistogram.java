@@ -0,0 +1,49 @@
+package com.emorozov.swl.connector.sparql;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Latencies in milliseconds recorded into an HdrHistogram, so that high
+ * percentiles are exact to three significant digits rather than estimated
+ * from buckets. Percentiles are read over the last completed window, which is
+ * rolled over by the first read after it has passed, so they follow the
+ * current load rather than the whole life of the task.
+ */
+class LatencyHistogram {
+
+  private final Recorder recorder = new Recorder(3);
+
+  private final long windowMs;
+
+  private Histogram window;
+
+  private long windowStartMs;
+
+  LatencyHistogram(long windowMs) {
+    this.windowMs = windowMs;
+  }
+
+  /**
+   * Safe to call from any thread without blocking readers or other writers.
+   */
+  void record(long latencyMs) {
+    recorder.recordValue(Math.max(0, latencyMs));
+  }
+
+  synchronized long valueAtPercentile(double percentile, long nowMs) {
+    return window(nowMs).getValueAtPercentile(percentile);
+  }
+
+  synchronized long max(long nowMs) {
+    return window(nowMs).getMaxValue();
+  }
+
+  private Histogram window(long nowMs) {
+    if (window == null || nowMs - windowStartMs >= windowMs) {
+      window = recorder.getIntervalHistogram();
+      windowStartMs = nowMs;
+    }
+    return window;
+  }
+}
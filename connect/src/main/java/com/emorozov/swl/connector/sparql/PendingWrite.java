@@ -0,0 +1,63 @@
+package com.emorozov.swl.connector.sparql;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.connect.sink.SinkRecord;
+
+/**
+ * A batch of records sent in a single request, together with the range of
+ * offsets it covers in every partition so that offsets are only committed once
+ * the endpoint has acknowledged the records.
+ */
+public class PendingWrite {
+
+  private final RdfBatch batch;
+
+  private final List<SinkRecord> records = new ArrayList<>();
+
+  private final Map<TopicPartition, Long> firstOffsets = new HashMap<>();
+
+  private CompletableFuture<Void> result;
+
+  public PendingWrite(RdfBatch batch) {
+    this.batch = batch;
+  }
+
+  public void track(SinkRecord record) {
+    records.add(record);
+    firstOffsets.merge(new TopicPartition(record.topic(), record.kafkaPartition()), record.kafkaOffset(), Math::min);
+  }
+
+  public RdfBatch getBatch() {
+    return batch;
+  }
+
+  public List<SinkRecord> getRecords() {
+    return records;
+  }
+
+  public Map<TopicPartition, Long> getFirstOffsets() {
+    return firstOffsets;
+  }
+
+  public CompletableFuture<Void> getResult() {
+    return result;
+  }
+
+  public void setResult(CompletableFuture<Void> result) {
+    this.result = result;
+  }
+
+  public boolean isDone() {
+    return result.isDone() && !result.isCompletedExceptionally();
+  }
+
+  public boolean isFailed() {
+    return result.isCompletedExceptionally();
+  }
+}
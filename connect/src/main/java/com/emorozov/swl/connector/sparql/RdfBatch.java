@@ -0,0 +1,24 @@
+package com.emorozov.swl.connector.sparql;
+
+import org.apache.http.HttpEntity;
+import org.apache.kafka.connect.sink.SinkRecord;
+
+/**
+ * Records combined into the body of a single request to the SPARQL endpoint.
+ */
+public interface RdfBatch {
+
+  /**
+   * Adds a record to the batch. The first record is always accepted, further
+   * records only if they fit into the configured limits.
+   */
+  boolean add(SinkRecord record);
+
+  boolean isEmpty();
+
+  int size();
+
+  int getBytes();
+
+  HttpEntity toEntity();
+}
@@ -0,0 +1,118 @@
+package com.emorozov.swl.connector.sparql;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.kafka.connect.errors.DataException;
+
+import com.github.luben.zstd.ZstdInputStream;
+
+/**
+ * Encodings of the RDF payloads on the topic. The producers have to be set up
+ * with the same format, the compressed formats are inflated before they are
+ * posted since the Graph Store endpoint only accepts plain RDF.
+ */
+public enum RdfPayloadFormat {
+
+  TURTLE("turtle", "text/turtle", Compression.NONE),
+  NTRIPLES("ntriples", "application/n-triples", Compression.NONE),
+  NTRIPLES_GZIP("ntriples-gzip", "application/n-triples", Compression.GZIP),
+  NTRIPLES_ZSTD("ntriples-zstd", "application/n-triples", Compression.ZSTD),
+  RDF_THRIFT("rdf-thrift", "application/rdf+thrift", Compression.NONE);
+
+  enum Compression {
+    NONE, GZIP, ZSTD
+  }
+
+  private final String name;
+
+  private final String contentType;
+
+  private final Compression compression;
+
+  RdfPayloadFormat(String name, String contentType, Compression compression) {
+    this.name = name;
+    this.contentType = contentType;
+    this.compression = compression;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getContentType() {
+    return contentType;
+  }
+
+  public boolean isBinary() {
+    return this == RDF_THRIFT;
+  }
+
+  public RdfBatch newBatch(int maxRecords, int maxBytes) {
+    return isBinary() ? new BinaryBatch(this, maxRecords, maxBytes) : new TurtleBatch(this, maxRecords, maxBytes);
+  }
+
+  /**
+   * Payload as it is posted to the endpoint, accepting both String and byte
+   * array converters on the topic.
+   */
+  public byte[] decodeBytes(Object value) {
+
+    byte[] bytes = value instanceof byte[] ? (byte[]) value : value.toString().getBytes(StandardCharsets.UTF_8);
+    switch (compression) {
+    case GZIP:
+      try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+        return readFully(in, bytes.length * 4);
+      } catch (IOException ioe) {
+        throw new DataException("Could not inflate gzip payload", ioe);
+      }
+    case ZSTD:
+      try (InputStream in = new ZstdInputStream(new ByteArrayInputStream(bytes))) {
+        return readFully(in, bytes.length * 4);
+      } catch (IOException ioe) {
+        throw new DataException("Could not inflate zstd payload", ioe);
+      }
+    default:
+      return bytes;
+    }
+  }
+
+  public String decodeText(Object value) {
+    if (compression == Compression.NONE && !(value instanceof byte[])) {
+      return value.toString();
+    }
+    return new String(decodeBytes(value), StandardCharsets.UTF_8);
+  }
+
+  public static RdfPayloadFormat forName(String name) {
+    for (RdfPayloadFormat format : values()) {
+      if (format.name.equalsIgnoreCase(name)) {
+        return format;
+      }
+    }
+    throw new IllegalArgumentException(String.format("Unknown RDF payload format %s", name));
+  }
+
+  public static String[] names() {
+    RdfPayloadFormat[] formats = values();
+    String[] names = new String[formats.length];
+    for (int i = 0; i < formats.length; i++) {
+      names[i] = formats[i].name;
+    }
+    return names;
+  }
+
+  private static byte[] readFully(InputStream in, int sizeHint) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(sizeHint, 256));
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) >= 0) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,23 @@
+package com.emorozov.swl.connector.sparql;
+
+import org.apache.kafka.connect.errors.ConnectException;
+
+/**
+ * The endpoint rejected a request with a client error, so sending the same
+ * payload again will not help.
+ */
+public class SparqlEndpointException extends ConnectException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final int statusCode;
+
+  public SparqlEndpointException(String message, int statusCode) {
+    super(message);
+    this.statusCode = statusCode;
+  }
+
+  public int getStatusCode() {
+    return statusCode;
+  }
+}
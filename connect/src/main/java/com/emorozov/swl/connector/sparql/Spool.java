@@ -0,0 +1,531 @@
+package com.emorozov.swl.connector.sparql;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.connect.errors.ConnectException;
+import org.apache.kafka.connect.sink.SinkRecord;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Write-ahead spool of records on local disk, so that the task keeps consuming
+ * while the SPARQL endpoint is slow or down. Records are appended to memory
+ * mapped segment files of a fixed size, each entry being its length, a CRC32
+ * and the record. A zero length ends the entries of a segment. Appends are
+ * forced to disk before they return, so offsets of spooled records can be
+ * committed straight away.
+ *
+ * Records are read back in the order they were appended. How far they have
+ * been written to the endpoint is kept in a checkpoint file next to the
+ * segments. The checkpoint is only replaced once the endpoint has acknowledged
+ * the records, so records read but not acknowledged before a crash are written
+ * again.
+ *
+ * Segments read completely are kept as free segments and reused for later
+ * appends rather than deleted, as Java 8 can not unmap them and the disk space
+ * of a deleted file stays taken while its mapping is alive. The spool therefore
+ * keeps the space it took at its largest, up to its maximum size. The CRC of an
+ * entry covers the id of its segment, so that entries left over from an
+ * earlier use of the file are not mistaken for new ones.
+ *
+ * A lock file keeps a second task from opening the same directory, until the
+ * spool is closed. The task thread appends while the drainer reads, so all
+ * access is synchronized.
+ */
+@Slf4j
+public class Spool implements AutoCloseable {
+
+  static final String SEGMENT_SUFFIX = ".segment";
+
+  static final String FREE_SUFFIX = ".free";
+
+  static final String CHECKPOINT_FILE = "drained.checkpoint";
+
+  static final String LOCK_FILE = "spool.lock";
+
+  // Length and CRC32 of an entry
+  private static final int ENTRY_HEADER_BYTES = 8;
+
+  private static final int NO_TIMESTAMP = -1;
+
+  private final Path dir;
+
+  private final int segmentBytes;
+
+  private final long maxBytes;
+
+  // Oldest first, the last one is appended to
+  private final LinkedList<Segment> segments = new LinkedList<>();
+
+  // Read completely, reused before new files are created
+  private final LinkedList<Segment> free = new LinkedList<>();
+
+  private FileChannel lockChannel;
+
+  private boolean closed;
+
+  // Position of the next entry to read in the first segment
+  private int readPosition;
+
+  private long pendingBytes;
+
+  private long pendingRecords;
+
+  private Spool(Path dir, int segmentBytes, long maxBytes) {
+    this.dir = dir;
+    this.segmentBytes = segmentBytes;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Opens the spool in the directory, recovering the records left in it, or
+   * creates an empty one.
+   */
+  public static Spool open(Path dir, int segmentBytes, long maxBytes) {
+
+    Spool spool = new Spool(dir, segmentBytes, maxBytes);
+    try {
+      Files.createDirectories(dir);
+      spool.lock();
+      spool.recover();
+    } catch (IOException ioe) {
+      spool.unlock();
+      throw new ConnectException(String.format("Could not open spool in %s", dir), ioe);
+    }
+    if (spool.pendingRecords > 0) {
+      log.info("Recovered {} spooled records ({} bytes) from {}", spool.pendingRecords, spool.pendingBytes, dir);
+    }
+    return spool;
+  }
+
+  /**
+   * Appends the records and forces them to disk. Either all records are
+   * appended or, if they would take the spool over its maximum size, none.
+   */
+  public synchronized boolean append(Collection<SinkRecord> records) {
+
+    checkOpen();
+    List<byte[]> entries = new ArrayList<>(records.size());
+    long entryBytes = 0;
+    for (SinkRecord record : records) {
+      byte[] entry = encode(record);
+      if (ENTRY_HEADER_BYTES + entry.length + 4 > segmentBytes) {
+        throw new ConnectException(String.format("Record %s-%s@%s of %s bytes does not fit in a spool segment of %s "
+            + "bytes, raise %s", record.topic(), record.kafkaPartition(), record.kafkaOffset(), entry.length,
+            segmentBytes, HttpRdfUpdateSinkConnector.SPOOL_SEGMENT_BYTES));
+      }
+      entries.add(entry);
+      entryBytes += ENTRY_HEADER_BYTES + entry.length;
+    }
+    if (entries.isEmpty()) {
+      return true;
+    }
+    // Counts every segment in full, as that is what they take on disk, and the
+    // free segments, which are on disk until they are reused
+    long newSegments = (entryBytes - free(segments.getLast()) + segmentBytes - 1) / segmentBytes;
+    long segmentsNeeded = segments.size() + Math.max(newSegments, free.size());
+    if (pendingRecords > 0 && segmentsNeeded * segmentBytes > maxBytes) {
+      return false;
+    }
+
+    List<Segment> written = new ArrayList<>();
+    try {
+      for (byte[] entry : entries) {
+        Segment segment = segments.getLast();
+        if (ENTRY_HEADER_BYTES + entry.length + 4 > free(segment)) {
+          segment = newSegment(segment.id + 1);
+          segments.add(segment);
+        }
+        segment.append(entry);
+        if (written.isEmpty() || written.get(written.size() - 1) != segment) {
+          written.add(segment);
+        }
+      }
+    } catch (IOException ioe) {
+      throw new ConnectException(String.format("Could not append to spool in %s", dir), ioe);
+    }
+    written.forEach(segment -> segment.buffer.force());
+
+    pendingBytes += entryBytes;
+    pendingRecords += entries.size();
+    notifyAll();
+    return true;
+  }
+
+  /**
+   * Reads up to the given number of records from the start of the spool
+   * without removing them, waiting for records to be appended if there are
+   * none. Records over the byte limit are only returned on their own.
+   */
+  public synchronized List<SinkRecord> peek(int maxRecords, int maxBytes, long waitMs) throws InterruptedException {
+
+    checkOpen();
+    if (pendingRecords == 0 && waitMs > 0) {
+      wait(waitMs);
+      checkOpen();
+    }
+
+    List<SinkRecord> records = new ArrayList<>();
+    int bytes = 0;
+    Iterator<Segment> it = segments.iterator();
+    Segment segment = it.next();
+    int position = readPosition;
+    while (records.size() < maxRecords) {
+      if (position >= segment.end) {
+        if (!it.hasNext()) {
+          break;
+        }
+        segment = it.next();
+        position = 0;
+        continue;
+      }
+      int length = segment.buffer.getInt(position);
+      if (!records.isEmpty() && bytes + length > maxBytes) {
+        break;
+      }
+      byte[] entry = new byte[length];
+      ByteBuffer read = segment.buffer.duplicate();
+      read.position(position + ENTRY_HEADER_BYTES);
+      read.get(entry);
+      records.add(decode(entry));
+      bytes += length;
+      position += ENTRY_HEADER_BYTES + length;
+    }
+    return records;
+  }
+
+  /**
+   * Removes the given number of records from the start of the spool once the
+   * endpoint acknowledged them, freeing the segments read completely.
+   */
+  public synchronized void remove(int count) {
+
+    checkOpen();
+    for (int i = 0; i < count; i++) {
+      Segment segment = segments.getFirst();
+      while (readPosition >= segment.end) {
+        freeFirst();
+        segment = segments.getFirst();
+      }
+      int length = segment.buffer.getInt(readPosition);
+      readPosition += ENTRY_HEADER_BYTES + length;
+      pendingBytes -= ENTRY_HEADER_BYTES + length;
+      pendingRecords--;
+    }
+    while (segments.size() > 1 && readPosition >= segments.getFirst().end) {
+      freeFirst();
+    }
+
+    Path checkpoint = dir.resolve(CHECKPOINT_FILE);
+    Path next = dir.resolve(CHECKPOINT_FILE + ".next");
+    try {
+      Files.write(next, String.format("%s %s%n", segments.getFirst().id, readPosition)
+          .getBytes(StandardCharsets.UTF_8));
+      Files.move(next, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException ioe) {
+      throw new ConnectException(String.format("Could not write spool checkpoint %s", checkpoint), ioe);
+    }
+  }
+
+  public synchronized long getPendingBytes() {
+    return pendingBytes;
+  }
+
+  public synchronized long getPendingRecords() {
+    return pendingRecords;
+  }
+
+  /**
+   * Forces outstanding appends to disk and releases the directory to the next
+   * owner. The segments stay mapped until they are garbage collected, as Java 8
+   * can not unmap them.
+   */
+  @Override
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    segments.forEach(segment -> segment.buffer.force());
+    unlock();
+    notifyAll();
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException(String.format("Spool in %s is closed", dir));
+    }
+  }
+
+  private void lock() throws IOException {
+    Path path = dir.resolve(LOCK_FILE);
+    lockChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    FileLock lock;
+    try {
+      lock = lockChannel.tryLock();
+    } catch (OverlappingFileLockException ofle) {
+      // Held by another spool in this JVM
+      lock = null;
+    }
+    if (lock == null) {
+      lockChannel.close();
+      lockChannel = null;
+      throw new ConnectException(String.format("Spool in %s is in use, %s is locked", dir, path));
+    }
+  }
+
+  private void unlock() {
+    if (lockChannel == null) {
+      return;
+    }
+    try {
+      // Closing the channel releases the lock
+      lockChannel.close();
+    } catch (IOException ioe) {
+      log.warn("Could not release spool lock in {}", dir, ioe);
+    }
+    lockChannel = null;
+  }
+
+  private int free(Segment segment) {
+    return segmentBytes - segment.end;
+  }
+
+  /**
+   * Moves the first segment, read completely, to the free segments.
+   */
+  private void freeFirst() {
+    Segment drained = segments.removeFirst();
+    readPosition = 0;
+    try {
+      Path freePath = dir.resolve(String.format("%020d%s", drained.id, FREE_SUFFIX));
+      Files.move(drained.path, freePath, StandardCopyOption.ATOMIC_MOVE);
+      free.add(new Segment(drained.id, freePath, drained.buffer));
+      if (segments.isEmpty()) {
+        segments.add(newSegment(drained.id + 1));
+      }
+    } catch (IOException ioe) {
+      throw new ConnectException(String.format("Could not free spool segment %s", drained.path), ioe);
+    }
+  }
+
+  private void recover() throws IOException {
+
+    // Not mapped yet, so deleting them frees their space straight away
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + FREE_SUFFIX)) {
+      for (Path path : stream) {
+        Files.delete(path);
+      }
+    }
+
+    List<Path> paths = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX)) {
+      stream.forEach(paths::add);
+    }
+    Collections.sort(paths);
+
+    long checkpointSegment = -1;
+    int checkpointPosition = 0;
+    Path checkpoint = dir.resolve(CHECKPOINT_FILE);
+    if (Files.exists(checkpoint)) {
+      String[] fields = new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8).trim().split(" ");
+      checkpointSegment = Long.parseLong(fields[0]);
+      checkpointPosition = Integer.parseInt(fields[1]);
+    }
+
+    for (Path path : paths) {
+      String name = path.getFileName().toString();
+      long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+      if (id < checkpointSegment) {
+        Files.delete(path);
+        continue;
+      }
+      Segment segment = mapSegment(id, path, false);
+      segment.recover();
+      segments.add(segment);
+    }
+
+    if (segments.isEmpty()) {
+      segments.add(newSegment(Math.max(checkpointSegment, 0)));
+    } else if (segments.getFirst().id == checkpointSegment) {
+      readPosition = Math.min(checkpointPosition, segments.getFirst().end);
+    }
+
+    boolean first = true;
+    for (Segment segment : segments) {
+      for (int position = first ? readPosition : 0; position < segment.end;) {
+        int length = segment.buffer.getInt(position);
+        position += ENTRY_HEADER_BYTES + length;
+        pendingBytes += ENTRY_HEADER_BYTES + length;
+        pendingRecords++;
+      }
+      first = false;
+    }
+  }
+
+  private Segment newSegment(long id) throws IOException {
+    Path path = dir.resolve(String.format("%020d%s", id, SEGMENT_SUFFIX));
+    if (free.isEmpty()) {
+      return mapSegment(id, path, true);
+    }
+    Segment recycled = free.removeFirst();
+    recycled.buffer.putInt(0, 0);
+    recycled.buffer.force();
+    Files.move(recycled.path, path, StandardCopyOption.ATOMIC_MOVE);
+    return new Segment(id, path, recycled.buffer);
+  }
+
+  private Segment mapSegment(long id, Path path, boolean create) throws IOException {
+    try (FileChannel channel = create
+        ? FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)
+        : FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      // The mapping stays valid once the channel is closed
+      return new Segment(id, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes));
+    }
+  }
+
+  private static byte[] encode(SinkRecord record) {
+
+    byte[] topic = record.topic().getBytes(StandardCharsets.UTF_8);
+    byte[] key = toBytes(record.key());
+    byte[] value = toBytes(record.value());
+    TimestampType timestampType = record.timestampType() == null ? TimestampType.NO_TIMESTAMP_TYPE
+        : record.timestampType();
+    ByteBuffer entry = ByteBuffer.allocate(2 + topic.length + 4 + 8 + 1 + 8 + 4 + (key == null ? 0 : key.length)
+        + 4 + (value == null ? 0 : value.length));
+    entry.putShort((short) topic.length).put(topic);
+    entry.putInt(record.kafkaPartition()).putLong(record.kafkaOffset());
+    entry.put((byte) timestampType.id).putLong(record.timestamp() == null ? NO_TIMESTAMP : record.timestamp());
+    putBytes(entry, key);
+    putBytes(entry, value);
+    return entry.array();
+  }
+
+  private static SinkRecord decode(byte[] bytes) {
+
+    ByteBuffer entry = ByteBuffer.wrap(bytes);
+    byte[] topic = new byte[entry.getShort()];
+    entry.get(topic);
+    int partition = entry.getInt();
+    long offset = entry.getLong();
+    TimestampType timestampType = timestampType(entry.get());
+    long timestamp = entry.getLong();
+    byte[] key = getBytes(entry);
+    byte[] value = getBytes(entry);
+    return new SinkRecord(new String(topic, StandardCharsets.UTF_8), partition, null, key, null, value, offset,
+        timestampType == TimestampType.NO_TIMESTAMP_TYPE ? null : timestamp, timestampType);
+  }
+
+  private static TimestampType timestampType(int id) {
+    for (TimestampType timestampType : TimestampType.values()) {
+      if (timestampType.id == id) {
+        return timestampType;
+      }
+    }
+    return TimestampType.NO_TIMESTAMP_TYPE;
+  }
+
+  private static byte[] toBytes(Object value) {
+    if (value == null) {
+      return null;
+    }
+    if (value instanceof byte[]) {
+      return (byte[]) value;
+    }
+    return value.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static void putBytes(ByteBuffer entry, byte[] bytes) {
+    if (bytes == null) {
+      entry.putInt(-1);
+    } else {
+      entry.putInt(bytes.length).put(bytes);
+    }
+  }
+
+  private static byte[] getBytes(ByteBuffer entry) {
+    int length = entry.getInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    entry.get(bytes);
+    return bytes;
+  }
+
+  private static int crc(long segmentId, ByteBuffer buffer, int position, int length) {
+    CRC32 crc = new CRC32();
+    crc.update(ByteBuffer.allocate(8).putLong(0, segmentId));
+    ByteBuffer entry = buffer.duplicate();
+    entry.position(position).limit(position + length);
+    crc.update(entry);
+    return (int) crc.getValue();
+  }
+
+  private static final class Segment {
+
+    private final long id;
+
+    private final Path path;
+
+    private final MappedByteBuffer buffer;
+
+    // End of the entries, where the next one is appended
+    private int end;
+
+    private Segment(long id, Path path, MappedByteBuffer buffer) {
+      this.id = id;
+      this.path = path;
+      this.buffer = buffer;
+    }
+
+    /**
+     * Appends an entry followed by the zero length that ends the entries, the
+     * caller makes sure that both fit.
+     */
+    private void append(byte[] entry) {
+      ByteBuffer write = buffer.duplicate();
+      write.position(end + ENTRY_HEADER_BYTES);
+      write.put(entry);
+      buffer.putInt(end, entry.length);
+      buffer.putInt(end + 4, crc(id, buffer, end + ENTRY_HEADER_BYTES, entry.length));
+      end += ENTRY_HEADER_BYTES + entry.length;
+      buffer.putInt(end, 0);
+    }
+
+    /**
+     * Finds the end of the entries, stopping at the zero length or at an entry
+     * that was not completely written before a crash.
+     */
+    private void recover() {
+      int capacity = buffer.capacity();
+      while (end + ENTRY_HEADER_BYTES <= capacity) {
+        int length = buffer.getInt(end);
+        if (length <= 0 || end + ENTRY_HEADER_BYTES + length > capacity
+            || buffer.getInt(end + 4) != crc(id, buffer, end + ENTRY_HEADER_BYTES, length)) {
+          break;
+        }
+        end += ENTRY_HEADER_BYTES + length;
+      }
+    }
+  }
+}
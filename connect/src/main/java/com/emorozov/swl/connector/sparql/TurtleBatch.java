@@ -0,0 +1,386 @@
+package com.emorozov.swl.connector.sparql;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.kafka.connect.sink.SinkRecord;
+
+import lombok.Getter;
+
+/**
+ * Combines several Turtle documents into a single Turtle document that can be
+ * posted to the SPARQL Graph Store endpoint in one request.
+ *
+ * Prefix and base declarations of every document are hoisted into a single
+ * header, so documents binding the same prefix to different IRIs can not share
+ * a batch. Blank node labels are rewritten with a per-record prefix so that
+ * labels from different documents do not collapse into the same node.
+ * N-Triples is a subset of Turtle, so the same batch is used for it.
+ */
+public class TurtleBatch implements RdfBatch {
+
+  private final RdfPayloadFormat format;
+
+  private final int maxRecords;
+
+  private final int maxBytes;
+
+  private final Map<String, String> prefixes = new LinkedHashMap<>();
+
+  private final StringBuilder body = new StringBuilder();
+
+  private String base;
+
+  private String verbatim;
+
+  private int records;
+
+  private int bytes;
+
+  public TurtleBatch(RdfPayloadFormat format, int maxRecords, int maxBytes) {
+    this.format = format;
+    this.maxRecords = maxRecords;
+    this.maxBytes = maxBytes;
+  }
+
+  @Override
+  public boolean add(SinkRecord record) {
+    return add(parse(format.decodeText(record.value()), blankNodePrefix(record)));
+  }
+
+  /**
+   * Adds a parsed document to the batch. The first document is always accepted,
+   * subsequent documents are only accepted if they fit into the configured
+   * limits and their declarations do not conflict with the ones already in the
+   * batch.
+   */
+  public boolean add(Part part) {
+
+    if (records > 0) {
+      if (verbatim != null || part.isVerbatim()) {
+        return false;
+      }
+      if (records >= maxRecords || bytes + part.getBytes() > maxBytes) {
+        return false;
+      }
+      if (!Objects.equals(base, part.getBase())) {
+        return false;
+      }
+      for (Map.Entry<String, String> prefix : part.getPrefixes().entrySet()) {
+        String iri = prefixes.get(prefix.getKey());
+        if (iri != null && !iri.equals(prefix.getValue())) {
+          return false;
+        }
+      }
+    }
+
+    if (part.isVerbatim()) {
+      verbatim = part.getBody();
+    } else {
+      base = part.getBase();
+      for (Map.Entry<String, String> prefix : part.getPrefixes().entrySet()) {
+        if (!prefixes.containsKey(prefix.getKey())) {
+          prefixes.put(prefix.getKey(), prefix.getValue());
+          bytes += prefix.getKey().length() + prefix.getValue().length() + 14;
+        }
+      }
+      body.append(part.getBody()).append('\n');
+    }
+    bytes += part.getBytes();
+    records++;
+    return true;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return records == 0;
+  }
+
+  @Override
+  public int size() {
+    return records;
+  }
+
+  @Override
+  public int getBytes() {
+    return bytes;
+  }
+
+  public String toPayload() {
+
+    if (verbatim != null) {
+      return verbatim;
+    }
+
+    StringBuilder payload = new StringBuilder(body.length() + 64 * prefixes.size() + 64);
+    if (base != null) {
+      payload.append("@base <").append(base).append("> .\n");
+    }
+    for (Map.Entry<String, String> prefix : prefixes.entrySet()) {
+      payload.append("@prefix ").append(prefix.getKey()).append(": <").append(prefix.getValue()).append("> .\n");
+    }
+    payload.append('\n').append(body);
+    return payload.toString();
+  }
+
+  @Override
+  public HttpEntity toEntity() {
+    return new StringEntity(toPayload(), ContentType.create(format.getContentType(), StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Blank node labels are only scoped to a single document, so make them unique
+   * to the record before documents are combined.
+   */
+  static String blankNodePrefix(SinkRecord record) {
+    return String.format("p%so%sx", record.kafkaPartition(), record.kafkaOffset());
+  }
+
+  /**
+   * Splits a Turtle document into its prefix and base declarations and the
+   * remaining statements. This is a lexical scan rather than a full parse: it
+   * only understands enough of Turtle to skip IRIs, literals and comments.
+   */
+  public static Part parse(String document, String blankNodePrefix) {
+
+    Part part = new Part();
+    StringBuilder body = new StringBuilder(document.length() + 16);
+    int length = document.length();
+    boolean statementStart = true;
+    boolean statementSeen = false;
+    int i = 0;
+
+    while (i < length) {
+
+      char c = document.charAt(i);
+
+      if (statementStart) {
+        if (Character.isWhitespace(c)) {
+          if (statementSeen) {
+            body.append(c);
+          }
+          i++;
+          continue;
+        }
+        if (c != '#') {
+          String base = part.base;
+          int end = parseDirective(document, i, part);
+          if (end > 0) {
+            // A base declared after statements changes how the earlier
+            // relative IRIs resolve, so it can not be hoisted.
+            if (statementSeen && !Objects.equals(base, part.base)) {
+              part.verbatim = true;
+            }
+            i = end;
+            continue;
+          }
+          statementStart = false;
+          statementSeen = true;
+        }
+      }
+
+      switch (c) {
+      case '<':
+        i = copyUntil(document, i, '>', body);
+        break;
+      case '"':
+      case '\'':
+        i = copyLiteral(document, i, body);
+        break;
+      case '#':
+        i = copyUntil(document, i, '\n', body);
+        break;
+      case '_':
+        if (i + 1 < length && document.charAt(i + 1) == ':' && (i == 0 || !isNameChar(document.charAt(i - 1)))) {
+          body.append("_:").append(blankNodePrefix);
+          i += 2;
+        } else {
+          body.append(c);
+          i++;
+        }
+        break;
+      case '.':
+        body.append(c);
+        i++;
+        if (i == length || Character.isWhitespace(document.charAt(i)) || document.charAt(i) == '#') {
+          statementStart = true;
+        }
+        break;
+      default:
+        body.append(c);
+        i++;
+      }
+    }
+
+    if (part.isVerbatim()) {
+      part.body = document;
+    } else {
+      part.body = body.toString();
+    }
+    part.bytes = utf8Length(part.body);
+    return part;
+  }
+
+  private static int parseDirective(String document, int start, Part part) {
+
+    boolean sparqlStyle;
+    boolean isBase;
+    int i;
+    if (document.startsWith("@prefix", start)) {
+      sparqlStyle = false;
+      isBase = false;
+      i = start + 7;
+    } else if (document.startsWith("@base", start)) {
+      sparqlStyle = false;
+      isBase = true;
+      i = start + 5;
+    } else if (document.regionMatches(true, start, "PREFIX", 0, 6)) {
+      sparqlStyle = true;
+      isBase = false;
+      i = start + 6;
+    } else if (document.regionMatches(true, start, "BASE", 0, 4)) {
+      sparqlStyle = true;
+      isBase = true;
+      i = start + 4;
+    } else {
+      return -1;
+    }
+
+    if (i >= document.length() || !Character.isWhitespace(document.charAt(i))) {
+      return -1;
+    }
+    i = skipWhitespace(document, i);
+
+    String prefix = null;
+    if (!isBase) {
+      int colon = document.indexOf(':', i);
+      if (colon < 0) {
+        return -1;
+      }
+      prefix = document.substring(i, colon);
+      i = skipWhitespace(document, colon + 1);
+    }
+
+    if (i >= document.length() || document.charAt(i) != '<') {
+      return -1;
+    }
+    int close = document.indexOf('>', i);
+    if (close < 0) {
+      return -1;
+    }
+    String iri = document.substring(i + 1, close);
+    i = close + 1;
+
+    if (!sparqlStyle) {
+      i = skipWhitespace(document, i);
+      if (i >= document.length() || document.charAt(i) != '.') {
+        return -1;
+      }
+      i++;
+    }
+
+    if (isBase) {
+      if (part.base != null && !part.base.equals(iri)) {
+        part.verbatim = true;
+      }
+      part.base = iri;
+    } else {
+      String previous = part.prefixes.put(prefix, iri);
+      if (previous != null && !previous.equals(iri)) {
+        part.verbatim = true;
+      }
+    }
+    return i;
+  }
+
+  private static int copyUntil(String document, int start, char terminator, StringBuilder body) {
+    int end = document.indexOf(terminator, start + 1);
+    end = end < 0 ? document.length() : end + 1;
+    body.append(document, start, end);
+    return end;
+  }
+
+  private static int copyLiteral(String document, int start, StringBuilder body) {
+
+    char quote = document.charAt(start);
+    boolean longLiteral = document.startsWith(quote == '"' ? "\"\"\"" : "'''", start);
+    int i = start + (longLiteral ? 3 : 1);
+    int length = document.length();
+
+    while (i < length) {
+      char c = document.charAt(i);
+      if (c == '\\') {
+        i += 2;
+      } else if (c == quote) {
+        if (!longLiteral) {
+          i++;
+          break;
+        }
+        if (document.startsWith(quote == '"' ? "\"\"\"" : "'''", i)) {
+          i += 3;
+          break;
+        }
+        i++;
+      } else {
+        i++;
+      }
+    }
+
+    int end = Math.min(i, length);
+    body.append(document, start, end);
+    return end;
+  }
+
+  private static int skipWhitespace(String document, int i) {
+    while (i < document.length() && Character.isWhitespace(document.charAt(i))) {
+      i++;
+    }
+    return i;
+  }
+
+  private static boolean isNameChar(char c) {
+    return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.' || c == ':';
+  }
+
+  static int utf8Length(CharSequence s) {
+    int count = 0;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        count++;
+      } else if (c < 0x800) {
+        count += 2;
+      } else if (Character.isHighSurrogate(c)) {
+        count += 4;
+        i++;
+      } else {
+        count += 3;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * A single Turtle document split into declarations and statements. Documents
+   * that rebind a prefix part way through can not be merged and are kept
+   * verbatim.
+   */
+  @Getter
+  public static class Part {
+
+    private final Map<String, String> prefixes = new LinkedHashMap<>();
+
+    private String base;
+
+    private String body;
+
+    private int bytes;
+
+    private boolean verbatim;
+  }
+}
@@ -0,0 +1,128 @@
+package com.emorozov.swl.connector.sparql;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.kafka.connect.errors.DataException;
+import org.apache.kafka.connect.sink.SinkRecord;
+
+/**
+ * Combines Turtle or N-Triples documents into a single SPARQL 1.1 Update
+ * request that replaces one named graph per record. The graph is named after
+ * the record key, which the producers set to the entity the event generated,
+ * or after the record's position in the topic when there is no key. Every
+ * delivery of a record then leaves the same triples behind.
+ *
+ * Each record gets its own prologue and its own INSERT DATA operation, so
+ * records binding the same prefix differently can share a request and blank
+ * node labels stay scoped to their record.
+ */
+public class UpdateBatch implements RdfBatch {
+
+  static final String CONTENT_TYPE = "application/sparql-update";
+
+  private static final String SEPARATOR = " ;\n";
+
+  private final RdfPayloadFormat format;
+
+  private final String graphPrefix;
+
+  private final int maxRecords;
+
+  private final int maxBytes;
+
+  private final StringBuilder request = new StringBuilder();
+
+  private int records;
+
+  private int bytes;
+
+  public UpdateBatch(RdfPayloadFormat format, String graphPrefix, int maxRecords, int maxBytes) {
+    this.format = format;
+    this.graphPrefix = graphPrefix;
+    this.maxRecords = maxRecords;
+    this.maxBytes = maxBytes;
+  }
+
+  @Override
+  public boolean add(SinkRecord record) {
+
+    TurtleBatch.Part part = TurtleBatch.parse(format.decodeText(record.value()), TurtleBatch.blankNodePrefix(record));
+    if (part.isVerbatim()) {
+      throw new DataException("Document rebinds a prefix or base part way through and can not be written as a "
+          + "SPARQL update");
+    }
+
+    String operation = toOperation(graphName(record), part);
+    int operationBytes = TurtleBatch.utf8Length(operation) + (records > 0 ? SEPARATOR.length() : 0);
+    if (records > 0 && (records >= maxRecords || bytes + operationBytes > maxBytes)) {
+      return false;
+    }
+
+    if (records > 0) {
+      request.append(SEPARATOR);
+    }
+    request.append(operation);
+    bytes += operationBytes;
+    records++;
+    return true;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return records == 0;
+  }
+
+  @Override
+  public int size() {
+    return records;
+  }
+
+  @Override
+  public int getBytes() {
+    return bytes;
+  }
+
+  public String toPayload() {
+    return request.toString();
+  }
+
+  @Override
+  public HttpEntity toEntity() {
+    return new StringEntity(toPayload(), ContentType.create(CONTENT_TYPE, StandardCharsets.UTF_8));
+  }
+
+  String graphName(SinkRecord record) {
+    Object key = record.key();
+    if (key == null) {
+      return String.format("%s%s-%s-%s", graphPrefix, record.topic(), record.kafkaPartition(), record.kafkaOffset());
+    }
+    String name = key instanceof byte[] ? new String((byte[]) key, StandardCharsets.UTF_8) : key.toString();
+    try {
+      return graphPrefix + URLEncoder.encode(name, "UTF-8");
+    } catch (UnsupportedEncodingException uee) {
+      throw new DataException(uee);
+    }
+  }
+
+  private static String toOperation(String graph, TurtleBatch.Part part) {
+
+    StringBuilder operation = new StringBuilder(part.getBody().length() + 128);
+    if (part.getBase() != null) {
+      operation.append("BASE <").append(part.getBase()).append(">\n");
+    }
+    for (Map.Entry<String, String> prefix : part.getPrefixes().entrySet()) {
+      operation.append("PREFIX ").append(prefix.getKey()).append(": <").append(prefix.getValue()).append(">\n");
+    }
+    operation.append("DROP SILENT GRAPH <").append(graph).append("> ;\n");
+    operation.append("INSERT DATA { GRAPH <").append(graph).append("> {\n");
+    operation.append(part.getBody());
+    operation.append("\n} }");
+    return operation.toString();
+  }
+}
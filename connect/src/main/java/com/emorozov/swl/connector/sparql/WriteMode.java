@@ -0,0 +1,40 @@
+package com.emorozov.swl.connector.sparql;
+
+/**
+ * How records are written to the endpoint. The Graph Store protocol appends
+ * every delivery of a record again, SPARQL updates replace the named graph of
+ * the record so that redeliveries and replays do not duplicate triples.
+ */
+public enum WriteMode {
+
+  GRAPH_STORE("graph-store"),
+  UPDATE("update");
+
+  private final String name;
+
+  WriteMode(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public static WriteMode forName(String name) {
+    for (WriteMode mode : values()) {
+      if (mode.name.equalsIgnoreCase(name)) {
+        return mode;
+      }
+    }
+    throw new IllegalArgumentException(String.format("Unknown write mode %s", name));
+  }
+
+  public static String[] names() {
+    WriteMode[] modes = values();
+    String[] names = new String[modes.length];
+    for (int i = 0; i < modes.length; i++) {
+      names[i] = modes[i].name;
+    }
+    return names;
+  }
+}
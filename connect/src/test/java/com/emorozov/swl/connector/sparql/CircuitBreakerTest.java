@@ -0,0 +1,92 @@
+package com.emorozov.swl.connector.sparql;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+class CircuitBreakerTest {
+
+  private static final long OPEN_MS = 1000L;
+
+  private final AtomicLong now = new AtomicLong();
+
+  private final CircuitBreaker circuitBreaker = new CircuitBreaker(2, OPEN_MS, now::get);
+
+  @Test
+  void opensAfterConsecutiveFailures() {
+    circuitBreaker.recordFailure();
+    circuitBreaker.recordSuccess();
+    circuitBreaker.recordFailure();
+    assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    assertTrue(circuitBreaker.allowRequest());
+
+    circuitBreaker.recordFailure();
+    assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+    assertFalse(circuitBreaker.wouldAllowRequest());
+    assertFalse(circuitBreaker.allowRequest());
+  }
+
+  @Test
+  void closesAfterSuccessfulTrial() {
+    open();
+
+    now.addAndGet(OPEN_MS);
+    assertTrue(circuitBreaker.wouldAllowRequest());
+    // Asking does not take the trial
+    assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+    assertTrue(circuitBreaker.allowRequest());
+    assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+    assertFalse(circuitBreaker.wouldAllowRequest());
+    assertFalse(circuitBreaker.allowRequest());
+    assertFalse(circuitBreaker.allowRequest());
+
+    circuitBreaker.recordSuccess();
+    assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    assertTrue(circuitBreaker.allowRequest());
+    assertTrue(circuitBreaker.allowRequest());
+  }
+
+  @Test
+  void reopensAfterFailedTrial() {
+    open();
+
+    now.addAndGet(OPEN_MS);
+    assertTrue(circuitBreaker.allowRequest());
+    assertFalse(circuitBreaker.allowRequest());
+
+    // A single failure is enough while half-open
+    circuitBreaker.recordFailure();
+    assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+    assertFalse(circuitBreaker.allowRequest());
+
+    now.addAndGet(OPEN_MS - 1);
+    assertFalse(circuitBreaker.allowRequest());
+    now.incrementAndGet();
+    assertTrue(circuitBreaker.allowRequest());
+    assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+  }
+
+  @Test
+  void givesUpTrialThatIsNotRecorded() {
+    open();
+
+    now.addAndGet(OPEN_MS);
+    assertTrue(circuitBreaker.allowRequest());
+    now.addAndGet(OPEN_MS - 1);
+    assertFalse(circuitBreaker.allowRequest());
+    now.incrementAndGet();
+    assertTrue(circuitBreaker.allowRequest());
+    assertFalse(circuitBreaker.allowRequest());
+    assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+  }
+
+  private void open() {
+    circuitBreaker.recordFailure();
+    circuitBreaker.recordFailure();
+    assertTrue(circuitBreaker.isOpen());
+  }
+}
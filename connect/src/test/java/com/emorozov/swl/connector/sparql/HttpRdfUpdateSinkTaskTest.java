@@ -0,0 +1,410 @@
+package com.emorozov.swl.connector.sparql;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.connect.errors.RetriableException;
+import org.apache.kafka.connect.sink.SinkRecord;
+import org.apache.kafka.connect.sink.SinkTaskContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+class HttpRdfUpdateSinkTaskTest {
+
+  private static final String TOPIC = "risk";
+
+  private static final TopicPartition TP0 = new TopicPartition(TOPIC, 0);
+
+  private static final TopicPartition TP1 = new TopicPartition(TOPIC, 1);
+
+  private static final String TRIPLE = "<urn:s> <urn:p> <urn:o> .";
+
+  private static final String REJECTED = "<urn:s> <urn:p> \"rejected\" .";
+
+  private final List<String> requests = new CopyOnWriteArrayList<>();
+
+  private final StubContext context = new StubContext();
+
+  private final MockProducer<byte[], byte[]> deadLetters =
+      new MockProducer<>(true, new ByteArraySerializer(), new ByteArraySerializer());
+
+  private ExecutorService executor;
+
+  private HttpServer server;
+
+  private volatile ToIntFunction<String> endpoint = body -> 204;
+
+  private HttpRdfUpdateSinkTask task;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    executor = Executors.newCachedThreadPool();
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.setExecutor(executor);
+    server.createContext("/data", exchange -> {
+      String body;
+      try (InputStream in = exchange.getRequestBody()) {
+        body = new String(readAll(in), StandardCharsets.UTF_8);
+      }
+      requests.add(body);
+      int status = endpoint.applyAsInt(body);
+      exchange.sendResponseHeaders(status, -1);
+      exchange.close();
+    });
+    server.start();
+  }
+
+  @AfterEach
+  void tearDown() {
+    if (task != null) {
+      task.stop();
+    }
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  @Test
+  void retriesServerErrors() {
+    List<Integer> statuses = new ArrayList<>(Arrays.asList(503, 500, 204));
+    endpoint = body -> statuses.remove(0);
+    start(props());
+
+    task.put(Collections.singletonList(record(TP0, 5, TRIPLE)));
+
+    assertEquals(3, requests.size());
+    assertEquals(Collections.singletonMap(TP0, 6L), committable(Collections.singletonMap(TP0, 6L)));
+  }
+
+  @Test
+  void pausesWhileCircuitIsOpenAndSendsSingleTrial() throws Exception {
+    endpoint = body -> 503;
+    Map<String, String> props = props();
+    props.put(HttpRdfUpdateSinkConnector.RETRY_MAX_ATTEMPTS, "1");
+    props.put(HttpRdfUpdateSinkConnector.CIRCUIT_FAILURE_THRESHOLD, "1");
+    props.put(HttpRdfUpdateSinkConnector.CIRCUIT_OPEN_MS, "200");
+    props.put(HttpRdfUpdateSinkConnector.WRITE_MAX_IN_FLIGHT, "3");
+    start(props);
+
+    task.put(Collections.singletonList(record(TP0, 5, TRIPLE)));
+    awaitPaused(Collections.emptyList());
+    assertEquals(Collections.singletonMap(TP0, 5L), context.offsets);
+    assertEquals(1, requests.size());
+
+    // Still open
+    task.put(Collections.emptyList());
+    assertTrue(context.paused);
+
+    Thread.sleep(200);
+    CountDownLatch trialSent = new CountDownLatch(1);
+    CountDownLatch trial = new CountDownLatch(1);
+    endpoint = body -> {
+      trialSent.countDown();
+      await(trial);
+      return 503;
+    };
+    task.put(Collections.emptyList());
+    assertFalse(context.paused);
+
+    // The first request is the trial, the others are refused without being sent
+    // and handed back to Connect
+    assertThrows(RetriableException.class, () -> {
+      task.put(Arrays.asList(record(TP0, 5, TRIPLE), record(TP0, 6, TRIPLE), record(TP0, 7, TRIPLE)));
+      Thread.sleep(100);
+      task.put(Collections.emptyList());
+    });
+    assertTrue(trialSent.await(5, TimeUnit.SECONDS));
+    assertEquals(2, requests.size());
+    trial.countDown();
+    awaitPaused(Collections.singletonList(record(TP0, 5, TRIPLE)));
+    assertEquals(2, requests.size());
+
+    Thread.sleep(200);
+    endpoint = body -> 204;
+    task.put(Collections.emptyList());
+    assertFalse(context.paused);
+    task.put(Collections.singletonList(record(TP0, 5, TRIPLE)));
+    assertEquals(Collections.singletonMap(TP0, 6L), awaitCommittable(Collections.singletonMap(TP0, 6L)));
+    assertEquals(3, requests.size());
+  }
+
+  @Test
+  void routesRejectedRecordsToDeadLetterTopic() {
+    endpoint = body -> body.contains("rejected") ? 400 : 204;
+    Map<String, String> props = props();
+    props.put(HttpRdfUpdateSinkConnector.BATCH_MAX_RECORDS, "3");
+    props.put(HttpRdfUpdateSinkConnector.DLQ_TOPIC, "risk-dlq");
+    props.put(HttpRdfUpdateSinkConnector.DLQ_BOOTSTRAP_SERVERS, "localhost:9092");
+    start(props);
+
+    task.put(Arrays.asList(record(TP0, 5, TRIPLE), record(TP0, 6, REJECTED), record(TP0, 7, TRIPLE)));
+
+    // The batch and then every record on its own
+    assertEquals(4, requests.size());
+    assertEquals(1, deadLetters.history().size());
+    ProducerRecord<byte[], byte[]> deadLetter = deadLetters.history().get(0);
+    assertEquals("risk-dlq", deadLetter.topic());
+    assertArrayEquals(REJECTED.getBytes(StandardCharsets.UTF_8), deadLetter.value());
+    assertArrayEquals("6".getBytes(StandardCharsets.UTF_8),
+        deadLetter.headers().lastHeader(DeadLetterQueue.HEADER_PREFIX + "offset").value());
+    assertArrayEquals("400".getBytes(StandardCharsets.UTF_8),
+        deadLetter.headers().lastHeader(DeadLetterQueue.HEADER_PREFIX + "status").value());
+    assertEquals(Collections.singletonMap(TP0, 8L), committable(Collections.singletonMap(TP0, 8L)));
+  }
+
+  @Test
+  void failsWithoutDeadLetterTopic() {
+    endpoint = body -> 400;
+    start(props());
+
+    assertThrows(SparqlEndpointException.class, () -> task.put(Collections.singletonList(record(TP0, 5, REJECTED))));
+    assertEquals(Collections.singletonMap(TP0, 5L), context.offsets);
+  }
+
+  @Test
+  void capsCommittedOffsetsAtRequestsInFlight() throws Exception {
+    CountDownLatch response = new CountDownLatch(1);
+    endpoint = body -> {
+      await(response);
+      return 204;
+    };
+    Map<String, String> props = props();
+    props.put(HttpRdfUpdateSinkConnector.WRITE_MAX_IN_FLIGHT, "2");
+    start(props);
+
+    task.put(Arrays.asList(record(TP0, 5, TRIPLE), record(TP1, 3, TRIPLE)));
+
+    Map<TopicPartition, Long> currentOffsets = new HashMap<>();
+    currentOffsets.put(TP0, 7L);
+    currentOffsets.put(TP1, 4L);
+    Map<TopicPartition, Long> expected = new HashMap<>();
+    expected.put(TP0, 5L);
+    expected.put(TP1, 3L);
+    assertEquals(expected, committable(currentOffsets));
+
+    response.countDown();
+    assertEquals(currentOffsets, awaitCommittable(currentOffsets));
+  }
+
+  @Test
+  void rewindsAfterFailedRequest() {
+    endpoint = body -> 503;
+    Map<String, String> props = props();
+    props.put(HttpRdfUpdateSinkConnector.RETRY_MAX_ATTEMPTS, "1");
+    start(props);
+
+    // The records after the failed request are not sent
+    assertThrows(RetriableException.class,
+        () -> task.put(Arrays.asList(record(TP0, 5, TRIPLE), record(TP0, 6, TRIPLE), record(TP1, 3, TRIPLE))));
+    assertEquals(1, requests.size());
+
+    Map<TopicPartition, Long> expected = new HashMap<>();
+    expected.put(TP0, 5L);
+    expected.put(TP1, 3L);
+    assertEquals(expected, context.offsets);
+    Map<TopicPartition, Long> currentOffsets = new HashMap<>();
+    currentOffsets.put(TP0, 7L);
+    currentOffsets.put(TP1, 4L);
+    assertEquals(expected, committable(currentOffsets));
+  }
+
+  @Test
+  void doesNotRewindRevokedPartitions() throws Exception {
+    CountDownLatch response = new CountDownLatch(1);
+    endpoint = body -> {
+      await(response);
+      return 503;
+    };
+    Map<String, String> props = props();
+    props.put(HttpRdfUpdateSinkConnector.RETRY_MAX_ATTEMPTS, "1");
+    props.put(HttpRdfUpdateSinkConnector.WRITE_MAX_IN_FLIGHT, "2");
+    start(props);
+
+    task.put(Arrays.asList(record(TP0, 5, TRIPLE), record(TP1, 3, TRIPLE)));
+    context.assignment.remove(TP1);
+    response.countDown();
+
+    awaitFailedCommit(Collections.singletonMap(TP0, 7L));
+    assertEquals(Collections.singletonMap(TP0, 5L), context.offsets);
+    assertEquals(Collections.singletonMap(TP0, 5L), committable(Collections.singletonMap(TP0, 7L)));
+  }
+
+  private void start(Map<String, String> props) {
+    task = new HttpRdfUpdateSinkTask() {
+      @Override
+      DeadLetterQueue newDeadLetterQueue(HttpRdfUpdateSinkConfig config) {
+        return new DeadLetterQueue(config.getDlqTopic(), deadLetters);
+      }
+    };
+    task.initialize(context);
+    task.start(props);
+  }
+
+  private Map<String, String> props() {
+    Map<String, String> props = new HashMap<>();
+    props.put("name", "sparql-sink-test");
+    props.put(HttpRdfUpdateSinkConnector.TOPIC_CONFIG, TOPIC);
+    props.put(HttpRdfUpdateSinkConnector.SPARQL_HTTP_ENDPOINT,
+        String.format("http://localhost:%d/data", server.getAddress().getPort()));
+    props.put(HttpRdfUpdateSinkConnector.RETRY_BACKOFF_INITIAL_MS, "1");
+    props.put(HttpRdfUpdateSinkConnector.RETRY_BACKOFF_MAX_MS, "1");
+    return props;
+  }
+
+  private Map<TopicPartition, Long> committable(Map<TopicPartition, Long> currentOffsets) {
+    Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+    currentOffsets.forEach((tp, offset) -> offsets.put(tp, new OffsetAndMetadata(offset)));
+    Map<TopicPartition, Long> committable = new HashMap<>();
+    task.preCommit(offsets).forEach((tp, offset) -> committable.put(tp, offset.offset()));
+    return committable;
+  }
+
+  /**
+   * Commits until the writes in flight have been acknowledged and every
+   * offset can be committed.
+   */
+  private Map<TopicPartition, Long> awaitCommittable(Map<TopicPartition, Long> currentOffsets)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000L;
+    Map<TopicPartition, Long> committable = committable(currentOffsets);
+    while (!committable.equals(currentOffsets) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+      committable = committable(currentOffsets);
+    }
+    return committable;
+  }
+
+  /**
+   * Commits until a write in flight has failed.
+   */
+  private RetriableException awaitFailedCommit(Map<TopicPartition, Long> currentOffsets)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000L;
+    while (System.currentTimeMillis() < deadline) {
+      try {
+        committable(currentOffsets);
+      } catch (RetriableException re) {
+        return re;
+      }
+      Thread.sleep(10);
+    }
+    throw new AssertionError("No write failed");
+  }
+
+  /**
+   * Puts the records until a failed write has opened the circuit breaker.
+   * Records put while the trial is still in flight are refused and handed back
+   * to Connect.
+   */
+  private void awaitPaused(List<SinkRecord> records) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000L;
+    while (!context.paused && System.currentTimeMillis() < deadline) {
+      try {
+        task.put(records);
+      } catch (RetriableException re) {
+        // Delivered again after the rewind
+      }
+      Thread.sleep(10);
+    }
+    assertTrue(context.paused);
+  }
+
+  private static SinkRecord record(TopicPartition tp, long offset, String value) {
+    return new SinkRecord(tp.topic(), tp.partition(), null, "key-" + offset, null, value, offset);
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static class StubContext implements SinkTaskContext {
+
+    private final Set<TopicPartition> assignment = new HashSet<>(Arrays.asList(TP0, TP1));
+
+    private final Map<TopicPartition, Long> offsets = new HashMap<>();
+
+    private volatile boolean paused;
+
+    @Override
+    public Map<String, String> configs() {
+      return Collections.emptyMap();
+    }
+
+    @Override
+    public void offset(Map<TopicPartition, Long> offsets) {
+      this.offsets.putAll(offsets);
+    }
+
+    @Override
+    public void offset(TopicPartition tp, long offset) {
+      offsets.put(tp, offset);
+    }
+
+    @Override
+    public void timeout(long timeoutMs) {
+    }
+
+    @Override
+    public Set<TopicPartition> assignment() {
+      return assignment;
+    }
+
+    @Override
+    public void pause(TopicPartition... partitions) {
+      paused = true;
+    }
+
+    @Override
+    public void resume(TopicPartition... partitions) {
+      paused = false;
+    }
+
+    @Override
+    public void requestCommit() {
+    }
+  }
+}
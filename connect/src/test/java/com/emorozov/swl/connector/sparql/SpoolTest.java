@@ -0,0 +1,226 @@
+package com.emorozov.swl.connector.sparql;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.kafka.connect.errors.ConnectException;
+import org.apache.kafka.connect.sink.SinkRecord;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SpoolTest {
+
+  // Header, topic, partition, offset, timestamp type and timestamp, no key and
+  // the value
+  private static final int VALUE_BYTES = 100;
+
+  private static final int ENTRY_BYTES = 8 + 2 + 4 + 4 + 8 + 1 + 8 + 4 + 4 + VALUE_BYTES;
+
+  // Two entries and the zero length that ends them
+  private static final int SMALL_SEGMENT_BYTES = 2 * ENTRY_BYTES + 4;
+
+  private static final int LARGE_SEGMENT_BYTES = 4096;
+
+  @TempDir
+  Path dir;
+
+  private Spool spool;
+
+  @AfterEach
+  void tearDown() {
+    if (spool != null) {
+      spool.close();
+    }
+  }
+
+  @Test
+  void cutsOffLastEntryWithBadCrc() throws Exception {
+
+    spool = Spool.open(dir, LARGE_SEGMENT_BYTES, Long.MAX_VALUE);
+    assertTrue(spool.append(records(0, 3)));
+    spool.close();
+    // Flip a bit in the value of the last entry
+    write(segment(0), 2 * ENTRY_BYTES + ENTRY_BYTES - 1, new byte[] { 1 });
+
+    spool = Spool.open(dir, LARGE_SEGMENT_BYTES, Long.MAX_VALUE);
+    assertEquals(2, spool.getPendingRecords());
+    assertEquals(2L * ENTRY_BYTES, spool.getPendingBytes());
+    // Appended in place of the entry cut off
+    assertTrue(spool.append(records(3, 1)));
+    assertEquals(offsets(0, 1, 3), offsets(spool.peek(10, Integer.MAX_VALUE, 0)));
+  }
+
+  @Test
+  void cutsOffTornLastEntry() throws Exception {
+
+    spool = Spool.open(dir, LARGE_SEGMENT_BYTES, Long.MAX_VALUE);
+    assertTrue(spool.append(records(0, 2)));
+    spool.close();
+    // The length of a third entry made it to disk, but nothing else
+    write(segment(0), 2 * ENTRY_BYTES, ByteBuffer.allocate(4).putInt(0, ENTRY_BYTES - 8).array());
+
+    spool = Spool.open(dir, LARGE_SEGMENT_BYTES, Long.MAX_VALUE);
+    assertEquals(offsets(0, 1), offsets(spool.peek(10, Integer.MAX_VALUE, 0)));
+  }
+
+  @Test
+  void resumesFromCheckpoint() throws Exception {
+
+    spool = Spool.open(dir, LARGE_SEGMENT_BYTES, Long.MAX_VALUE);
+    assertTrue(spool.append(records(0, 5)));
+    spool.remove(2);
+    spool.close();
+
+    spool = Spool.open(dir, LARGE_SEGMENT_BYTES, Long.MAX_VALUE);
+    assertEquals(3, spool.getPendingRecords());
+    assertEquals(offsets(2, 3, 4), offsets(spool.peek(10, Integer.MAX_VALUE, 0)));
+  }
+
+  @Test
+  void resumesFromCheckpointInFreedSegment() throws Exception {
+
+    spool = Spool.open(dir, SMALL_SEGMENT_BYTES, Long.MAX_VALUE);
+    assertTrue(spool.append(records(0, 6)));
+    spool.remove(4);
+    spool.close();
+    // As if the task died after the segments were freed but before the
+    // checkpoint moved past them
+    Files.write(dir.resolve(Spool.CHECKPOINT_FILE),
+        String.format("1 %s%n", ENTRY_BYTES).getBytes(StandardCharsets.UTF_8));
+
+    spool = Spool.open(dir, SMALL_SEGMENT_BYTES, Long.MAX_VALUE);
+    assertEquals(offsets(4, 5), offsets(spool.peek(10, Integer.MAX_VALUE, 0)));
+    assertEquals(0, files(Spool.FREE_SUFFIX).size());
+  }
+
+  @Test
+  void rollsOverSegmentsWithinOneAppend() throws Exception {
+
+    spool = Spool.open(dir, SMALL_SEGMENT_BYTES, Long.MAX_VALUE);
+    assertTrue(spool.append(records(0, 5)));
+
+    assertEquals(3, files(".segment").size());
+    assertEquals(offsets(0, 1, 2, 3, 4), offsets(spool.peek(10, Integer.MAX_VALUE, 0)));
+  }
+
+  @Test
+  void appendsAllOrNothing() throws Exception {
+
+    spool = Spool.open(dir, SMALL_SEGMENT_BYTES, 2L * SMALL_SEGMENT_BYTES);
+    assertTrue(spool.append(records(0, 3)));
+
+    assertFalse(spool.append(records(3, 2)));
+    assertEquals(3, spool.getPendingRecords());
+    assertEquals(offsets(0, 1, 2), offsets(spool.peek(10, Integer.MAX_VALUE, 0)));
+
+    // Fits into the second segment
+    assertTrue(spool.append(records(3, 1)));
+    assertEquals(offsets(0, 1, 2, 3), offsets(spool.peek(10, Integer.MAX_VALUE, 0)));
+  }
+
+  @Test
+  void peeksAndRemovesInOrderAcrossSegments() throws Exception {
+
+    spool = Spool.open(dir, SMALL_SEGMENT_BYTES, Long.MAX_VALUE);
+    assertTrue(spool.append(records(0, 5)));
+
+    assertEquals(offsets(0, 1), offsets(spool.peek(2, Integer.MAX_VALUE, 0)));
+    spool.remove(1);
+    assertEquals(offsets(1, 2, 3), offsets(spool.peek(3, Integer.MAX_VALUE, 0)));
+    // A record over the byte limit is only returned on its own
+    assertEquals(offsets(1), offsets(spool.peek(3, 1, 0)));
+    spool.remove(3);
+    List<SinkRecord> last = spool.peek(10, Integer.MAX_VALUE, 0);
+    assertEquals(offsets(4), offsets(last));
+    assertArrayEquals(value(4), (byte[]) last.get(0).value());
+    spool.remove(1);
+    assertEquals(0, spool.getPendingRecords());
+    assertEquals(0, spool.getPendingBytes());
+  }
+
+  @Test
+  void reusesFreedSegments() throws Exception {
+
+    spool = Spool.open(dir, SMALL_SEGMENT_BYTES, 3L * SMALL_SEGMENT_BYTES);
+    for (int round = 0; round < 10; round++) {
+      assertTrue(spool.append(records(round * 6, 6)));
+      spool.remove(6);
+    }
+    assertTrue(files(".segment").size() + files(Spool.FREE_SUFFIX).size() <= 4);
+
+    // Entries from earlier uses of a file are not recovered
+    assertTrue(spool.append(records(60, 1)));
+    spool.close();
+    spool = Spool.open(dir, SMALL_SEGMENT_BYTES, 3L * SMALL_SEGMENT_BYTES);
+    assertEquals(offsets(60), offsets(spool.peek(10, Integer.MAX_VALUE, 0)));
+  }
+
+  @Test
+  void locksDirectoryUntilClosed() {
+
+    spool = Spool.open(dir, LARGE_SEGMENT_BYTES, Long.MAX_VALUE);
+    assertThrows(ConnectException.class, () -> Spool.open(dir, LARGE_SEGMENT_BYTES, Long.MAX_VALUE));
+
+    spool.close();
+    assertThrows(IllegalStateException.class, () -> spool.append(records(0, 1)));
+    spool = Spool.open(dir, LARGE_SEGMENT_BYTES, Long.MAX_VALUE);
+  }
+
+  private static List<SinkRecord> records(int firstOffset, int count) {
+    List<SinkRecord> records = new ArrayList<>();
+    for (int offset = firstOffset; offset < firstOffset + count; offset++) {
+      records.add(new SinkRecord("prov", 0, null, null, null, value(offset), offset));
+    }
+    return records;
+  }
+
+  private static byte[] value(int offset) {
+    byte[] value = new byte[VALUE_BYTES];
+    value[0] = (byte) offset;
+    return value;
+  }
+
+  private static List<Long> offsets(long... offsets) {
+    List<Long> list = new ArrayList<>();
+    for (long offset : offsets) {
+      list.add(offset);
+    }
+    return list;
+  }
+
+  private static List<Long> offsets(List<SinkRecord> records) {
+    return records.stream().map(SinkRecord::kafkaOffset).collect(Collectors.toList());
+  }
+
+  private Path segment(long id) {
+    return dir.resolve(String.format("%020d%s", id, Spool.SEGMENT_SUFFIX));
+  }
+
+  private List<Path> files(String suffix) throws IOException {
+    try (Stream<Path> files = Files.list(dir)) {
+      return files.filter(path -> path.toString().endsWith(suffix)).collect(Collectors.toList());
+    }
+  }
+
+  private static void write(Path path, long position, byte[] bytes) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.wrap(bytes), position);
+    }
+  }
+}
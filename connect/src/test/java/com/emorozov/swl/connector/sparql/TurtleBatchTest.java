@@ -0,0 +1,131 @@
+package com.emorozov.swl.connector.sparql;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Collections;
+
+import org.apache.kafka.connect.sink.SinkRecord;
+import org.junit.jupiter.api.Test;
+
+class TurtleBatchTest {
+
+  private static final String PREFIX = "p0o1x";
+
+  @Test
+  void rewritesBlankNodeLabels() {
+    TurtleBatch.Part part = TurtleBatch.parse("_:a <urn:p> _:b .", PREFIX);
+    assertEquals("_:p0o1xa <urn:p> _:p0o1xb .", part.getBody());
+  }
+
+  @Test
+  void keepsBlankNodeLikeTextInPrefixedLocalName() {
+    TurtleBatch.Part part = TurtleBatch.parse("@prefix ex: <urn:ex:> .\nex:a_:b ex:p _:c .", PREFIX);
+    assertEquals("ex:a_:b ex:p _:p0o1xc .", part.getBody());
+  }
+
+  @Test
+  void keepsDotsInLiteralsAndDecimals() {
+    String statements = "<urn:s> <urn:p> \"a . @prefix ex: <urn:x> . _:b\" , 'c . d' , 1.5 , .5 ;\n"
+        + "  <urn:q> \"\"\"long . \"quoted\" .\n@prefix ex: <urn:y> .\n_:e\"\"\" , '''single . '' .\n_:f''' .";
+    TurtleBatch.Part part = TurtleBatch.parse("@prefix ex: <urn:ex:> .\n" + statements, PREFIX);
+    assertFalse(part.isVerbatim());
+    assertEquals(Collections.singletonMap("ex", "urn:ex:"), part.getPrefixes());
+    assertEquals(statements, part.getBody());
+  }
+
+  @Test
+  void keepsHashInIrisAndSkipsComments() {
+    String statements = "<urn:s#a> <http://example.org/p#q> _:b . # _:c @prefix ex: <urn:x> .\n"
+        + "<urn:s> <urn:p> <urn:o> .";
+    TurtleBatch.Part part = TurtleBatch.parse("# header _:d\n@prefix ex: <urn:ex:> .\n" + statements, PREFIX);
+    assertEquals(Collections.singletonMap("ex", "urn:ex:"), part.getPrefixes());
+    assertEquals("<urn:s#a> <http://example.org/p#q> _:p0o1xb . # _:c @prefix ex: <urn:x> .\n"
+        + "<urn:s> <urn:p> <urn:o> .", part.getBody().substring(part.getBody().indexOf("<urn:s#a>")));
+  }
+
+  @Test
+  void hoistsPrefixesOfBothStyles() {
+    TurtleBatch batch = new TurtleBatch(RdfPayloadFormat.TURTLE, 10, Integer.MAX_VALUE);
+    assertTrue(batch.add(record(0, "@prefix ex: <urn:ex:> .\nex:a ex:p ex:b .")));
+    assertTrue(batch.add(record(1, "PREFIX ex: <urn:ex:>\nprefix prov: <http://www.w3.org/ns/prov#>\n"
+        + "ex:c prov:used ex:d .")));
+    assertEquals("@prefix ex: <urn:ex:> .\n@prefix prov: <http://www.w3.org/ns/prov#> .\n\n"
+        + "ex:a ex:p ex:b .\nex:c prov:used ex:d .\n", batch.toPayload());
+  }
+
+  @Test
+  void keepsDocumentRebindingPrefixVerbatim() {
+    String document = "@prefix ex: <urn:a:> .\nex:s ex:p _:o .\n@prefix ex: <urn:b:> .\nex:s ex:p ex:o .";
+    TurtleBatch.Part part = TurtleBatch.parse(document, PREFIX);
+    assertTrue(part.isVerbatim());
+    assertEquals(document, part.getBody());
+
+    TurtleBatch batch = new TurtleBatch(RdfPayloadFormat.TURTLE, 10, Integer.MAX_VALUE);
+    assertTrue(batch.add(part));
+    assertEquals(document, batch.toPayload());
+    // Sent on its own
+    assertFalse(batch.add(TurtleBatch.parse("<urn:s> <urn:p> <urn:o> .", PREFIX)));
+    TurtleBatch other = new TurtleBatch(RdfPayloadFormat.TURTLE, 10, Integer.MAX_VALUE);
+    assertTrue(other.add(TurtleBatch.parse("<urn:s> <urn:p> <urn:o> .", PREFIX)));
+    assertFalse(other.add(part));
+  }
+
+  @Test
+  void startsNewBatchForConflictingPrefix() {
+    TurtleBatch batch = new TurtleBatch(RdfPayloadFormat.TURTLE, 10, Integer.MAX_VALUE);
+    assertTrue(batch.add(record(0, "@prefix ex: <urn:a:> .\nex:s ex:p ex:o .")));
+    assertFalse(batch.add(record(1, "@prefix ex: <urn:b:> .\nex:s ex:p ex:o .")));
+    assertTrue(batch.add(record(2, "@prefix ex: <urn:a:> .\n@prefix other: <urn:b:> .\nother:s ex:p ex:o .")));
+    assertEquals(2, batch.size());
+  }
+
+  @Test
+  void startsNewBatchForDifferentBase() {
+    TurtleBatch batch = new TurtleBatch(RdfPayloadFormat.TURTLE, 10, Integer.MAX_VALUE);
+    assertTrue(batch.add(record(0, "@base <urn:a/> .\n<s> <p> <o> .")));
+    assertTrue(batch.add(record(1, "BASE <urn:a/>\n<t> <p> <o> .")));
+    assertFalse(batch.add(record(2, "@base <urn:b/> .\n<s> <p> <o> .")));
+    assertFalse(batch.add(record(3, "<urn:s> <urn:p> <urn:o> .")));
+    assertEquals("@base <urn:a/> .\n\n<s> <p> <o> .\n<t> <p> <o> .\n", batch.toPayload());
+  }
+
+  @Test
+  void keepsDocumentWithBaseAfterStatementsVerbatim() {
+    TurtleBatch.Part part = TurtleBatch.parse("<s> <p> <o> .\n@base <urn:a/> .\n<s> <p> <o> .", PREFIX);
+    assertTrue(part.isVerbatim());
+    assertNull(TurtleBatch.parse("<urn:s> <urn:p> <urn:o> .", PREFIX).getBase());
+  }
+
+  @Test
+  void limitsRecords() {
+    TurtleBatch batch = new TurtleBatch(RdfPayloadFormat.NTRIPLES, 2, Integer.MAX_VALUE);
+    assertTrue(batch.add(record(0, "<urn:s> <urn:p> <urn:o> .")));
+    assertTrue(batch.add(record(1, "<urn:s> <urn:p> <urn:o> .")));
+    assertFalse(batch.add(record(2, "<urn:s> <urn:p> <urn:o> .")));
+    assertEquals(2, batch.size());
+  }
+
+  @Test
+  void limitsBytesButAcceptsFirstRecord() {
+    String triple = "<urn:s> <urn:p> \"\u00e9\" .";
+    int tripleBytes = TurtleBatch.utf8Length(triple);
+    assertEquals(triple.length() + 1, tripleBytes);
+
+    TurtleBatch batch = new TurtleBatch(RdfPayloadFormat.NTRIPLES, 10, 2 * tripleBytes);
+    assertTrue(batch.add(record(0, triple)));
+    assertTrue(batch.add(record(1, triple)));
+    assertFalse(batch.add(record(2, triple)));
+    assertEquals(2 * tripleBytes, batch.getBytes());
+
+    TurtleBatch small = new TurtleBatch(RdfPayloadFormat.NTRIPLES, 10, 1);
+    assertTrue(small.add(record(0, triple)));
+    assertFalse(small.add(record(1, triple)));
+  }
+
+  private static SinkRecord record(long offset, String document) {
+    return new SinkRecord("prov", 0, null, null, null, document, offset);
+  }
+}
@@ -0,0 +1,97 @@
+package com.emorozov.swl.connector.sparql;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.apache.kafka.connect.errors.DataException;
+import org.apache.kafka.connect.sink.SinkRecord;
+import org.junit.jupiter.api.Test;
+
+class UpdateBatchTest {
+
+  private static final String GRAPH_PREFIX = "urn:swl:graph:";
+
+  private static final String TRIPLE = "<urn:s> <urn:p> <urn:o> .";
+
+  @Test
+  void namesGraphAfterStringKey() {
+    UpdateBatch batch = batch(10, Integer.MAX_VALUE);
+    assertEquals(GRAPH_PREFIX + "risk-t+1%2Fbank-x", batch.graphName(record("risk-t 1/bank-x", TRIPLE, 7)));
+  }
+
+  @Test
+  void namesGraphAfterByteArrayKey() {
+    UpdateBatch batch = batch(10, Integer.MAX_VALUE);
+    assertEquals(GRAPH_PREFIX + "trade-%C3%A9-1",
+        batch.graphName(record("trade-\u00e9-1".getBytes(StandardCharsets.UTF_8), TRIPLE, 7)));
+  }
+
+  @Test
+  void namesGraphAfterPositionWithoutKey() {
+    UpdateBatch batch = batch(10, Integer.MAX_VALUE);
+    assertEquals(GRAPH_PREFIX + "prov-0-7", batch.graphName(record(null, TRIPLE, 7)));
+  }
+
+  @Test
+  void rejectsVerbatimDocuments() {
+    UpdateBatch batch = batch(10, Integer.MAX_VALUE);
+    assertThrows(DataException.class, () -> batch.add(
+        record("k", "@prefix ex: <urn:a:> .\nex:s ex:p ex:o .\n@prefix ex: <urn:b:> .\nex:s ex:p ex:o .", 0)));
+    assertTrue(batch.isEmpty());
+  }
+
+  @Test
+  void joinsOperationsWithOwnPrologues() {
+    UpdateBatch batch = batch(10, Integer.MAX_VALUE);
+    assertTrue(batch.add(record("a", "@prefix ex: <urn:a:> .\nex:s ex:p _:o .", 0)));
+    assertTrue(batch.add(record("b", "@base <urn:b/> .\nPREFIX ex: <urn:b:>\n<s> ex:p _:o .", 1)));
+    assertEquals("PREFIX ex: <urn:a:>\n"
+        + "DROP SILENT GRAPH <urn:swl:graph:a> ;\n"
+        + "INSERT DATA { GRAPH <urn:swl:graph:a> {\nex:s ex:p _:p0o0xo .\n} } ;\n"
+        + "BASE <urn:b/>\n"
+        + "PREFIX ex: <urn:b:>\n"
+        + "DROP SILENT GRAPH <urn:swl:graph:b> ;\n"
+        + "INSERT DATA { GRAPH <urn:swl:graph:b> {\n<s> ex:p _:p0o1xo .\n} }", batch.toPayload());
+    assertEquals(2, batch.size());
+    assertEquals(TurtleBatch.utf8Length(batch.toPayload()), batch.getBytes());
+  }
+
+  @Test
+  void limitsBytesButAcceptsFirstRecord() {
+    UpdateBatch single = batch(10, Integer.MAX_VALUE);
+    single.add(record("a", TRIPLE, 0));
+    int operationBytes = single.getBytes();
+
+    // The second operation also takes the separator
+    UpdateBatch batch = batch(10, 2 * operationBytes + 2);
+    assertTrue(batch.add(record("a", TRIPLE, 0)));
+    assertFalse(batch.add(record("b", TRIPLE, 1)));
+
+    batch = batch(10, 2 * operationBytes + 3);
+    assertTrue(batch.add(record("a", TRIPLE, 0)));
+    assertTrue(batch.add(record("b", TRIPLE, 1)));
+
+    UpdateBatch small = batch(10, 1);
+    assertTrue(small.add(record("a", TRIPLE, 0)));
+    assertFalse(small.add(record("b", TRIPLE, 1)));
+  }
+
+  @Test
+  void limitsRecords() {
+    UpdateBatch batch = batch(1, Integer.MAX_VALUE);
+    assertTrue(batch.add(record("a", TRIPLE, 0)));
+    assertFalse(batch.add(record("b", TRIPLE, 1)));
+  }
+
+  private static UpdateBatch batch(int maxRecords, int maxBytes) {
+    return new UpdateBatch(RdfPayloadFormat.TURTLE, GRAPH_PREFIX, maxRecords, maxBytes);
+  }
+
+  private static SinkRecord record(Object key, String document, long offset) {
+    return new SinkRecord("prov", 0, null, key, null, document, offset);
+  }
+}
@@ -14,8 +14,7 @@ import org.springframework.scheduling.annotation.EnableScheduling;
 @EnableScheduling
 public class Application {
 
-  public static void main(String[] args) throws Exception {
-    Thread.sleep(15000L);
+  public static void main(String[] args) {
     SpringApplication.run(Application.class, args);
   }
 }
\ No newline at end of file
@@ -0,0 +1,214 @@
+package com.emorozov.swl.repo;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.metrics.Sensor.RecordingLevel;
+import org.apache.kafka.common.metrics.stats.Avg;
+import org.apache.kafka.common.metrics.stats.Max;
+import org.apache.kafka.common.metrics.stats.Value;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.errors.StreamsException;
+import org.apache.kafka.streams.kstream.Transformer;
+import org.apache.kafka.streams.processor.Cancellable;
+import org.apache.kafka.streams.processor.ProcessorContext;
+import org.apache.kafka.streams.processor.PunctuationType;
+import org.apache.kafka.streams.processor.To;
+import org.apache.kafka.streams.state.KeyValueIterator;
+import org.apache.kafka.streams.state.KeyValueStore;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Calculates risk on a worker pool instead of the stream thread. Results are
+ * forwarded in input order per key as they complete, from the stream thread on
+ * every input and on a wall clock punctuation. Every submitted input is kept
+ * in a state store until its result has been forwarded, so inputs whose
+ * offsets were committed before their calculation finished are calculated
+ * again after a restart or rebalance rather than lost.
+ */
+@Slf4j
+public class AsyncRiskTransformer implements Transformer<String, String, KeyValue<String, RiskResult>> {
+
+  public static final String PENDING_STORE = "risk-pending";
+
+  private static final String METRIC_GROUP = "async-risk-metrics";
+
+  // Separates timestamp, key and input in the pending store values
+  private static final char SEPARATOR = '\u001e';
+
+  private final RiskCalculator riskCalculator;
+
+  private final ExecutorService executor;
+
+  private final int maxPending;
+
+  private final long punctuateMs;
+
+  // Pending calculations per key in input order, only heads are forwarded
+  private final Map<String, Deque<Pending>> pendingByKey = new LinkedHashMap<>();
+
+  private ProcessorContext context;
+
+  private KeyValueStore<Long, String> pendingStore;
+
+  private Cancellable punctuator;
+
+  private Sensor pendingSensor;
+
+  private Sensor latencySensor;
+
+  private int pendingCount;
+
+  private long nextSequence;
+
+  public AsyncRiskTransformer(RiskCalculator riskCalculator, ExecutorService executor, int maxPending,
+      long punctuateMs) {
+    this.riskCalculator = riskCalculator;
+    this.executor = executor;
+    this.maxPending = maxPending;
+    this.punctuateMs = punctuateMs;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void init(ProcessorContext context) {
+
+    this.context = context;
+    this.pendingStore = (KeyValueStore<Long, String>) context.getStateStore(PENDING_STORE);
+
+    Map<String, String> tags = new HashMap<>();
+    tags.put("task-id", context.taskId().toString());
+    pendingSensor = context.metrics().addSensor(String.format("async-risk-pending-%s", context.taskId()),
+        RecordingLevel.INFO);
+    pendingSensor.add(new MetricName("pending-calculations", METRIC_GROUP,
+        "Risk calculations submitted but not yet forwarded", tags), new Value());
+    pendingSensor.add(new MetricName("pending-calculations-max", METRIC_GROUP,
+        "Most risk calculations submitted but not yet forwarded", tags), new Max());
+    latencySensor = context.metrics().addSensor(String.format("async-risk-latency-%s", context.taskId()),
+        RecordingLevel.INFO);
+    latencySensor.add(new MetricName("calculation-latency-avg", METRIC_GROUP,
+        "Average time in ms from submitting a risk calculation to forwarding its result", tags), new Avg());
+    latencySensor.add(new MetricName("calculation-latency-max", METRIC_GROUP,
+        "Longest time in ms from submitting a risk calculation to forwarding its result", tags), new Max());
+
+    // Sequences are serialised big-endian, so the store iterates them in order
+    int resubmitted = 0;
+    try (KeyValueIterator<Long, String> pending = pendingStore.all()) {
+      while (pending.hasNext()) {
+        KeyValue<Long, String> entry = pending.next();
+        String[] fields = entry.value.split(String.valueOf(SEPARATOR), 3);
+        submit(entry.key, Long.parseLong(fields[0]), fields[1], fields[2]);
+        nextSequence = entry.key + 1;
+        resubmitted++;
+      }
+    }
+    if (resubmitted > 0) {
+      log.info("Resubmitted {} risk calculations left pending in task {}", resubmitted, context.taskId());
+    }
+
+    punctuator = context.schedule(Duration.ofMillis(punctuateMs), PunctuationType.WALL_CLOCK_TIME,
+        timestamp -> forwardCompleted());
+  }
+
+  @Override
+  public KeyValue<String, RiskResult> transform(String key, String riskInput) {
+    awaitCapacity();
+    long sequence = nextSequence++;
+    pendingStore.put(sequence, String.valueOf(context.timestamp()) + SEPARATOR + key + SEPARATOR + riskInput);
+    submit(sequence, context.timestamp(), key, riskInput);
+    forwardCompleted();
+    return null;
+  }
+
+  @Override
+  public void close() {
+    if (punctuator != null) {
+      punctuator.cancel();
+    }
+    // Calculations still running are left in the store for whoever gets the
+    // task next
+    pendingByKey.values().forEach(pending -> pending.forEach(p -> p.result.cancel(false)));
+    pendingByKey.clear();
+    context.metrics().removeSensor(pendingSensor);
+    context.metrics().removeSensor(latencySensor);
+  }
+
+  private void submit(long sequence, long timestamp, String key, String riskInput) {
+    Pending pending = new Pending(sequence, timestamp, key,
+        CompletableFuture.supplyAsync(() -> riskCalculator.calculateRisk(riskInput), executor));
+    pendingByKey.computeIfAbsent(key, k -> new ArrayDeque<>()).add(pending);
+    pendingSensor.record(++pendingCount);
+  }
+
+  /**
+   * Blocks the stream thread while the number of pending calculations is at the
+   * limit, which stops consumption until the workers catch up.
+   */
+  private void awaitCapacity() {
+    forwardCompleted();
+    while (pendingCount >= maxPending) {
+      CompletableFuture<?>[] heads = pendingByKey.values().stream().map(pending -> pending.peek().result)
+          .toArray(CompletableFuture<?>[]::new);
+      CompletableFuture.anyOf(heads).exceptionally(t -> null).join();
+      forwardCompleted();
+    }
+  }
+
+  private void forwardCompleted() {
+    Iterator<Deque<Pending>> keys = pendingByKey.values().iterator();
+    while (keys.hasNext()) {
+      Deque<Pending> pending = keys.next();
+      while (!pending.isEmpty() && pending.peek().result.isDone()) {
+        Pending completed = pending.poll();
+        RiskResult result;
+        try {
+          result = completed.result.join();
+        } catch (CompletionException ce) {
+          // The input stays in the store and is calculated again once the task
+          // is restarted
+          throw new StreamsException(String.format("Risk calculation failed for key %s", completed.key),
+              ce.getCause());
+        }
+        context.forward(completed.key, result, To.all().withTimestamp(completed.timestamp));
+        pendingStore.delete(completed.sequence);
+        pendingSensor.record(--pendingCount);
+        latencySensor.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - completed.submittedNanos));
+      }
+      if (pending.isEmpty()) {
+        keys.remove();
+      }
+    }
+  }
+
+  private static class Pending {
+
+    private final long sequence;
+
+    private final long timestamp;
+
+    private final String key;
+
+    private final CompletableFuture<RiskResult> result;
+
+    private final long submittedNanos = System.nanoTime();
+
+    Pending(long sequence, long timestamp, String key, CompletableFuture<RiskResult> result) {
+      this.sequence = sequence;
+      this.timestamp = timestamp;
+      this.key = key;
+      this.result = result;
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package com.emorozov.swl.repo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.function.Function;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serializer;
+
+/**
+ * Writes values as plain Avro binary records of a schema kept under
+ * <code>/avro</code> on the classpath. There is no schema registry in the demo,
+ * so consumers read the records with the same schema files.
+ */
+public class AvroSerde<T> implements Serde<T> {
+
+  private final Schema schema;
+
+  private final Function<T, GenericRecord> toRecord;
+
+  private final Function<GenericRecord, T> fromRecord;
+
+  public AvroSerde(Schema schema, Function<T, GenericRecord> toRecord, Function<GenericRecord, T> fromRecord) {
+    this.schema = schema;
+    this.toRecord = toRecord;
+    this.fromRecord = fromRecord;
+  }
+
+  public static Schema loadSchema(String name) {
+    try (InputStream in = AvroSerde.class.getResourceAsStream(String.format("/avro/%s.avsc", name))) {
+      if (in == null) {
+        throw new IllegalArgumentException(String.format("No Avro schema %s on the classpath", name));
+      }
+      return new Schema.Parser().parse(in);
+    } catch (IOException ioe) {
+      throw new UncheckedIOException(ioe);
+    }
+  }
+
+  public Schema getSchema() {
+    return schema;
+  }
+
+  @Override
+  public Serializer<T> serializer() {
+    GenericDatumWriter<GenericRecord> writer = new GenericDatumWriter<>(schema);
+    return (topic, value) -> {
+      if (value == null) {
+        return null;
+      }
+      try {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(out, null);
+        writer.write(toRecord.apply(value), encoder);
+        encoder.flush();
+        return out.toByteArray();
+      } catch (IOException | RuntimeException e) {
+        throw new SerializationException(String.format("Could not write %s to topic %s", schema.getName(), topic), e);
+      }
+    };
+  }
+
+  @Override
+  public Deserializer<T> deserializer() {
+    GenericDatumReader<GenericRecord> reader = new GenericDatumReader<>(schema);
+    return (topic, data) -> {
+      if (data == null) {
+        return null;
+      }
+      try {
+        return fromRecord.apply(reader.read(null, DecoderFactory.get().binaryDecoder(data, null)));
+      } catch (IOException | RuntimeException e) {
+        throw new SerializationException(String.format("Could not read %s from topic %s", schema.getName(), topic), e);
+      }
+    };
+  }
+}
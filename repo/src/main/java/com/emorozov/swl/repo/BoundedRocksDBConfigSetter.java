@@ -0,0 +1,68 @@
+package com.emorozov.swl.repo;
+
+import java.util.Map;
+
+import org.apache.kafka.streams.state.RocksDBConfigSetter;
+import org.rocksdb.BlockBasedTableConfig;
+import org.rocksdb.Cache;
+import org.rocksdb.CompressionType;
+import org.rocksdb.LRUCache;
+import org.rocksdb.Options;
+
+/**
+ * Bounds the memory of the RocksDB state stores. All stores share one block
+ * cache, which also holds their index and filter blocks, instead of each store
+ * allocating its own. Streams instantiates the setter itself, so the settings
+ * are passed through the Streams config under the keys below.
+ */
+public class BoundedRocksDBConfigSetter implements RocksDBConfigSetter {
+
+  public static final String BLOCK_CACHE_BYTES_CONFIG = "swl.rocksdb.block.cache.bytes";
+
+  public static final String WRITE_BUFFER_BYTES_CONFIG = "swl.rocksdb.write.buffer.bytes";
+
+  public static final String MAX_WRITE_BUFFERS_CONFIG = "swl.rocksdb.max.write.buffers";
+
+  public static final String COMPRESSION_TYPE_CONFIG = "swl.rocksdb.compression.type";
+
+  private static Cache blockCache;
+
+  @Override
+  public void setConfig(String storeName, Options options, Map<String, Object> configs) {
+
+    BlockBasedTableConfig tableConfig = (BlockBasedTableConfig) options.tableFormatConfig();
+    tableConfig.setBlockCache(blockCache(Long.parseLong(configs.get(BLOCK_CACHE_BYTES_CONFIG).toString())));
+    tableConfig.setCacheIndexAndFilterBlocks(true);
+    tableConfig.setCacheIndexAndFilterBlocksWithHighPriority(true);
+    tableConfig.setPinTopLevelIndexAndFilter(true);
+    options.setTableFormatConfig(tableConfig);
+
+    options.setWriteBufferSize(Long.parseLong(configs.get(WRITE_BUFFER_BYTES_CONFIG).toString()));
+    options.setMaxWriteBufferNumber(Integer.parseInt(configs.get(MAX_WRITE_BUFFERS_CONFIG).toString()));
+    options.setCompressionType(compressionType(configs.get(COMPRESSION_TYPE_CONFIG).toString()));
+  }
+
+  private static synchronized Cache blockCache(long bytes) {
+    // The cache lives as long as the instance, so it is never closed with a
+    // store
+    if (blockCache == null) {
+      blockCache = new LRUCache(bytes);
+    }
+    return blockCache;
+  }
+
+  private static CompressionType compressionType(String name) {
+    switch (name.toLowerCase()) {
+    case "none":
+      return CompressionType.NO_COMPRESSION;
+    case "snappy":
+      return CompressionType.SNAPPY_COMPRESSION;
+    case "lz4":
+      return CompressionType.LZ4_COMPRESSION;
+    case "zstd":
+      return CompressionType.ZSTD_COMPRESSION;
+    default:
+      throw new IllegalArgumentException(String.format("Unknown RocksDB compression type %s", name));
+    }
+  }
+}
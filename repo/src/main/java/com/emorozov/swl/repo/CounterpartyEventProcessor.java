@@ -2,8 +2,6 @@ package com.emorozov.swl.repo;
 
 import org.springframework.stereotype.Component;
 import org.springframework.scheduling.annotation.Scheduled;
-import org.openprovenance.prov.interop.Formats;
-import org.openprovenance.prov.interop.InteropFramework;
 import org.openprovenance.prov.model.Activity;
 import org.openprovenance.prov.model.Agent;
 import org.openprovenance.prov.model.Document;
@@ -18,31 +16,62 @@ import org.openprovenance.prov.model.WasStartedBy;
 import org.openprovenance.prov.model.WasEndedBy;
 import org.openprovenance.prov.model.WasGeneratedBy;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.kafka.core.KafkaTemplate;
 
-import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
-import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.OffsetDateTime;
-import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.GregorianCalendar;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
 
-import javax.xml.datatype.DatatypeFactory;
 import javax.xml.datatype.XMLGregorianCalendar;
 
 @Component
 @Slf4j
 public class CounterpartyEventProcessor {
 
+    public static final String COMMANDS_TOPIC = "counterparty-updates";
+
+    private static final String PROV_SOURCE = "counterparty";
+
     private static final DateTimeFormatter DEFAULT_FORMATTER = DateTimeFormatter.ofPattern("HH:mm:SS");
 
+    // Same triples as createProvDocument, with the descriptions of the
+    // counterparty and the agents in templates of their own so that they can be
+    // left out: {0} counterparty id, {1} old version, {2} new version, {3} event
+    // id, {4} xsd:dateTime and {5} display time
+    private static final ProvTemplate COUNTERPARTY_TEMPLATE = ProvTemplate.compile(
+            "<swl:cpty-{0}> <rdf:type> <prov:Entity> .",
+            "<swl:cpty-{0}> <rdfs:label> \"Bank X.\" .");
+
+    private static final ProvTemplate OPERATIONS_TEMPLATE = ProvTemplate.compile(
+            "<swl:johnsmith> <rdf:type> <prov:Agent> .",
+            "<swl:johnsmith> <rdfs:label> \"Michael Gray\" .");
+
+    private static final ProvTemplate COUNTERPARTY_EVENT_PROCESSOR_TEMPLATE = ProvTemplate.compile(
+            "<swl:cpty-event-processor> <rdf:type> <prov:Agent> .",
+            "<swl:cpty-event-processor> <rdfs:label> \"Counterparty Event Processor\" .");
+
+    private static final ProvTemplate PROV_TEMPLATE = ProvTemplate.compile(
+            "<swl:cpty-{0}-{2}> <rdf:type> <prov:Entity> .",
+            "<swl:cpty-{0}-{2}> <rdfs:label> \"Bank X version {2}\" .",
+            "<swl:cpty-{0}-{2}> <prov:specializationOf> <swl:cpty-{0}> .",
+            "<swl:update-{3}> <rdf:type> <prov:Activity> .",
+            "<swl:update-{3}> <prov:startedAtTime> \"{4}\"^^<xsd:dateTime> .",
+            "<swl:update-{3}> <prov:endedAtTime> \"{4}\"^^<xsd:dateTime> .",
+            "<swl:update-{3}> <rdfs:label> \"Credit rating update for {0} on {5}\" .",
+            "<swl:cpty-{0}-{2}> <prov:wasGeneratedBy> <swl:update-{3}> .",
+            "<swl:update-{3}> <prov:wasStartedBy> <swl:johnsmith> .",
+            "<swl:update-{3}> <prov:wasEndedBy> <swl:johnsmith> .",
+            "<swl:update-{3}> <prov:wasAssociatedWith> <swl:cpty-event-processor> .",
+            "<swl:cpty-{0}-{2}> <prov:wasDerivedFrom> <swl:cpty-{0}-{1}> .");
+
     @Autowired
-    private KafkaTemplate<String, String> kafkaTemplate;
+    private EventPublisher eventPublisher;
 
     @Autowired
     private Namespace ns;
@@ -51,28 +80,66 @@ public class CounterpartyEventProcessor {
     private ProvFactory provFactory;
 
     @Autowired
-    private InteropFramework interopFramework;
+    private ProvEmitter provEmitter;
+
+    @Autowired
+    private LoadProperties loadProperties;
 
-    private int counterpartyVersionCounter = 0;
+    @Autowired
+    private LineageIndex lineageIndex;
 
     @Scheduled(fixedDelay = 60000)
     public void sendMessage() {
+        // The load generator drives the processor instead
+        if (!loadProperties.isEnabled()) {
+            sendCounterpartyUpdate("bank-x");
+        }
+    }
+
+    /**
+     * Requests the next version of the counterparty. The version is assigned
+     * and the update and its provenance are sent by the version assigner, so
+     * that numbering survives restarts. Safe to call from several threads.
+     */
+    public void sendCounterpartyUpdate(String counterpartyId) {
+
+        String command = EventPayload.format(counterpartyId, OffsetDateTime.now());
+        eventPublisher.publish(COMMANDS_TOPIC, counterpartyId, command.getBytes(StandardCharsets.UTF_8));
+    }
 
-        String counterpartyId = "bank-x";
-        String eventId = UUID.randomUUID().toString();
-        OffsetDateTime odt = OffsetDateTime.now();
+    /**
+     * Creates the update to the counterparty for a command, with the version
+     * number assigned by the version assigner.
+     */
+    public VersionedEvent createCounterpartyUpdate(String counterpartyId, String command,
+            int oldCounterpartyVersionNumber, int newCounterpartyVersionNumber) {
 
-        int oldCounterpartyVersionNumber = counterpartyVersionCounter;
-        int newCounterpartyVersionNumber = ++counterpartyVersionCounter;
+        // UUID.randomUUID would contend on one SecureRandom across the stream threads
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String eventId = new UUID(random.nextLong(), random.nextLong()).toString();
+        OffsetDateTime commandTime = EventPayload.eventTime(command);
+        OffsetDateTime odt = commandTime != null ? commandTime : OffsetDateTime.now();
 
         String counterpartyMessage = createCounterpartyMessage(counterpartyId, oldCounterpartyVersionNumber,
                 newCounterpartyVersionNumber, eventId, odt);
-        String provMessage = createProvMessage(counterpartyId, oldCounterpartyVersionNumber,
-                newCounterpartyVersionNumber, eventId, odt);
+        byte[] provMessage = provEmitter.build(PROV_SOURCE, () -> createProvMessage(counterpartyId,
+                oldCounterpartyVersionNumber, newCounterpartyVersionNumber, eventId, odt));
+        if (lineageIndex.isEnabled()) {
+            recordLineage(counterpartyId, oldCounterpartyVersionNumber, newCounterpartyVersionNumber, eventId);
+        }
+        return new VersionedEvent(counterpartyId, counterpartyMessage.getBytes(StandardCharsets.UTF_8), provMessage,
+                String.format("cpty-%s-%s", counterpartyId, newCounterpartyVersionNumber));
+    }
 
-        // Ignores transactions in this simple example
-        this.kafkaTemplate.send("counterparties", counterpartyId, counterpartyMessage);
-        this.kafkaTemplate.send("prov", provMessage);
+    private void recordLineage(String counterpartyId, int oldCounterpartyVersionNumber,
+            int newCounterpartyVersionNumber, String eventId) {
+
+        String newCounterpartyVersion = String.format("cpty-%s-%s", counterpartyId, newCounterpartyVersionNumber);
+        lineageIndex.record(
+                new LineageIndex.Edge(newCounterpartyVersion, LineageIndex.Relation.WAS_DERIVED_FROM,
+                        String.format("cpty-%s-%s", counterpartyId, oldCounterpartyVersionNumber)),
+                new LineageIndex.Edge(newCounterpartyVersion, LineageIndex.Relation.WAS_GENERATED_BY,
+                        String.format("update-%s", eventId)));
     }
 
     private String createCounterpartyMessage(String counterpartyId, int oldCounterpartyVersionNumber,
@@ -81,11 +148,29 @@ public class CounterpartyEventProcessor {
         log.info("Counterparty credit rating update {} for counterparty {} at {} (version {} -> {})", eventId,
                 counterpartyId, odt.format(DEFAULT_FORMATTER), oldCounterpartyVersionNumber,
                 newCounterpartyVersionNumber);
-        return String.format("%s-%s", counterpartyId, newCounterpartyVersionNumber);
+        return EventPayload.format(String.format("%s-%s", counterpartyId, newCounterpartyVersionNumber),
+                odt);
+    }
+
+    byte[] createProvMessage(String counterpartyId, int oldCounterpartyVersionNumber,
+            int newCounterpartyVersionNumber, String eventId, OffsetDateTime odt) {
+
+        if (provEmitter.isTemplates()) {
+            List<ProvTemplate> templates = Arrays.asList(
+                    provEmitter.describe(PROV_SOURCE, String.format("cpty-%s", counterpartyId),
+                            COUNTERPARTY_TEMPLATE),
+                    provEmitter.describe(PROV_SOURCE, "johnsmith", OPERATIONS_TEMPLATE),
+                    provEmitter.describe(PROV_SOURCE, "cpty-event-processor", COUNTERPARTY_EVENT_PROCESSOR_TEMPLATE),
+                    PROV_TEMPLATE);
+            return provEmitter.emit(templates, counterpartyId, oldCounterpartyVersionNumber,
+                    newCounterpartyVersionNumber, eventId, provEmitter.toXmlDateTime(odt),
+                    odt.format(DEFAULT_FORMATTER));
+        }
+        return provEmitter.emit(createProvDocument(counterpartyId, oldCounterpartyVersionNumber,
+                newCounterpartyVersionNumber, eventId, odt));
     }
 
-    @SneakyThrows
-    private String createProvMessage(String counterpartyId, int oldCounterpartyVersionNumber,
+    Document createProvDocument(String counterpartyId, int oldCounterpartyVersionNumber,
             int newCounterpartyVersionNumber, String eventId, OffsetDateTime odt) {
 
         QualifiedName counterpartyQn = qn(String.format("cpty-%s", counterpartyId));
@@ -103,12 +188,9 @@ public class CounterpartyEventProcessor {
         SpecializationOf newCounterpartyVersionSpecializationOf = provFactory
                 .newSpecializationOf(newCounterpartyVersionQn, counterpartyQn);
 
-        GregorianCalendar gcStartTime = GregorianCalendar.from(odt.atZoneSameInstant(ZoneId.of("Z")));
-        XMLGregorianCalendar xmlgcStartTime = DatatypeFactory.newInstance().newXMLGregorianCalendar(gcStartTime);
-        GregorianCalendar gcEndTime = GregorianCalendar.from(odt.atZoneSameInstant(ZoneId.of("Z")));
-        XMLGregorianCalendar xmlgcEndTime = DatatypeFactory.newInstance().newXMLGregorianCalendar(gcEndTime);
+        XMLGregorianCalendar xmlgcTime = provEmitter.toXmlGregorianCalendar(odt);
 
-        Activity counterpartyUpdate = provFactory.newActivity(counterpartyUpdateQn, xmlgcStartTime, xmlgcEndTime,
+        Activity counterpartyUpdate = provFactory.newActivity(counterpartyUpdateQn, xmlgcTime, xmlgcTime,
                 Collections.emptyList());
         provFactory.addLabel(counterpartyUpdate,
                 String.format("Credit rating update for %s on %s", counterpartyId, odt.format(DEFAULT_FORMATTER)));
@@ -128,17 +210,13 @@ public class CounterpartyEventProcessor {
         WasDerivedFrom counterpartyVersionDerivation = provFactory.newWasDerivedFrom(null, newCounterpartyVersionQn,
                 oldCounterpartyVersionQn);
 
-        Document repoEventProvDocument = provFactory.newDocument();
-        repoEventProvDocument.getStatementOrBundle()
-                .addAll(Arrays.asList(counterparty, newCounterpartyVersion, newCounterpartyVersionSpecializationOf,
-                        counterpartyUpdate, newCounterpartyVersionWasGeneratedBy, operations, wasStartedBy, wasEndedBy,
-                        counterpartyEventProcessor, wasAssociatedWith, counterpartyVersionDerivation));
-        repoEventProvDocument.setNamespace(ns);
-
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        interopFramework.writeDocument(baos, Formats.ProvFormat.TURTLE, repoEventProvDocument);
-
-        return baos.toString();
+        return provEmitter.newDocument(
+                provEmitter.describe(PROV_SOURCE, String.format("cpty-%s", counterpartyId), counterparty),
+                newCounterpartyVersion, newCounterpartyVersionSpecializationOf, counterpartyUpdate,
+                newCounterpartyVersionWasGeneratedBy, provEmitter.describe(PROV_SOURCE, "johnsmith", operations),
+                wasStartedBy, wasEndedBy,
+                provEmitter.describe(PROV_SOURCE, "cpty-event-processor", counterpartyEventProcessor),
+                wasAssociatedWith, counterpartyVersionDerivation);
     }
 
     public QualifiedName qn(String name) {
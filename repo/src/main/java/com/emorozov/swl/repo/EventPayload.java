@@ -0,0 +1,58 @@
+package com.emorozov.swl.repo;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Business event payloads on the trades and counterparties topics, the id of
+ * the new version followed by the time of the event, for example
+ * <code>bank-x-3@2020-11-05T10:15:30.123Z</code>. Payloads written before the
+ * time was added have no separator.
+ */
+final class EventPayload {
+
+  static final char TIME_SEPARATOR = '@';
+
+  static final char VERSION_SEPARATOR = '-';
+
+  private EventPayload() {
+  }
+
+  static String format(String versionId, OffsetDateTime eventTime) {
+    return versionId + TIME_SEPARATOR
+        + DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(eventTime.withOffsetSameInstant(ZoneOffset.UTC));
+  }
+
+  static String versionId(String payload) {
+    int separator = payload.lastIndexOf(TIME_SEPARATOR);
+    return separator < 0 ? payload : payload.substring(0, separator);
+  }
+
+  /**
+   * The id of the entity, that is the version id without its version number,
+   * for example <code>bank-x</code>.
+   */
+  static String entityId(String payload) {
+    String versionId = versionId(payload);
+    int separator = versionId.lastIndexOf(VERSION_SEPARATOR);
+    return separator < 0 ? versionId : versionId.substring(0, separator);
+  }
+
+  /**
+   * The time of the event, or null when the payload does not carry one or it
+   * cannot be parsed.
+   */
+  static OffsetDateTime eventTime(String payload) {
+    int separator = payload.lastIndexOf(TIME_SEPARATOR);
+    if (separator < 0) {
+      return null;
+    }
+    try {
+      return OffsetDateTime.parse(payload.substring(separator + 1), DateTimeFormatter.ISO_OFFSET_DATE_TIME);
+    } catch (DateTimeParseException dtpe) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package com.emorozov.swl.repo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Publishes commands, whose provenance is recorded by whoever handles them.
+ * With a transactional producer they are committed in transactions, with
+ * commands from all callers batched into one transaction by a committer
+ * thread so that the cost of a commit is shared. Otherwise each is sent on its
+ * own.
+ */
+@Slf4j
+@Component
+public class EventPublisher {
+
+  public static final String PROV_TOPIC = "prov";
+
+  @Autowired
+  private KafkaTemplate<String, byte[]> kafkaTemplate;
+
+  @Autowired
+  private TransactionProperties transactionProperties;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  private final Map<String, Timer> publishTimers = new ConcurrentHashMap<>();
+
+  private BlockingQueue<Event> queue;
+
+  private Thread committer;
+
+  private volatile boolean running;
+
+  @PostConstruct
+  public void start() {
+    if (kafkaTemplate.isTransactional()) {
+      queue = new ArrayBlockingQueue<>(transactionProperties.getQueueCapacity());
+      running = true;
+      committer = new Thread(this::commitLoop, "event-publisher-committer");
+      committer.start();
+      log.info("Publishing commands in transactions of up to {} events",
+          transactionProperties.getMaxBatchEvents());
+    }
+  }
+
+  @PreDestroy
+  public void stop() throws InterruptedException {
+    running = false;
+    if (committer != null) {
+      committer.join(TimeUnit.SECONDS.toMillis(30));
+    }
+  }
+
+  /**
+   * Completes once the record is acknowledged, or with a transactional
+   * producer once the transaction holding it has been committed.
+   */
+  public CompletableFuture<Void> publish(String topic, String key, byte[] value) {
+
+    long start = System.nanoTime();
+    CompletableFuture<Void> result;
+    if (queue == null) {
+      result = CompletableFuture.allOf(kafkaTemplate.send(topic, key, value).completable());
+    } else {
+      Event event = new Event(topic, key, value);
+      try {
+        queue.put(event);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        event.result.completeExceptionally(ie);
+      }
+      result = event.result;
+    }
+    return result.whenComplete((r, error) -> publishTimer(topic, error == null ? "success" : "failure")
+        .record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+  }
+
+  private Timer publishTimer(String topic, String outcome) {
+    return publishTimers.computeIfAbsent(topic + '/' + outcome, key -> Timer.builder("swl.publish")
+        .description("Time from publishing an event until it is acknowledged or committed")
+        .tags("topic", topic, "outcome", outcome, "transactional", String.valueOf(queue != null))
+        .register(meterRegistry));
+  }
+
+  private void commitLoop() {
+    List<Event> batch = new ArrayList<>(transactionProperties.getMaxBatchEvents());
+    while (running || !queue.isEmpty()) {
+      try {
+        Event first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(transactionProperties.getMaxBatchDelayMs());
+        while (batch.size() < transactionProperties.getMaxBatchEvents()) {
+          if (queue.drainTo(batch, transactionProperties.getMaxBatchEvents() - batch.size()) > 0) {
+            continue;
+          }
+          Event next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+        commit(batch);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        running = false;
+      } finally {
+        // Only events left over by an interrupt are still incomplete here
+        batch.forEach(event -> event.result.completeExceptionally(new IllegalStateException("Publisher stopped")));
+        batch.clear();
+      }
+    }
+  }
+
+  private void commit(List<Event> batch) {
+    try {
+      kafkaTemplate.executeInTransaction(operations -> {
+        for (Event event : batch) {
+          operations.send(event.topic, event.key, event.value);
+        }
+        return null;
+      });
+      batch.forEach(event -> event.result.complete(null));
+    } catch (RuntimeException re) {
+      log.error("Could not commit transaction of {} events", batch.size(), re);
+      batch.forEach(event -> event.result.completeExceptionally(re));
+    }
+  }
+
+  private static class Event {
+
+    private final String topic;
+
+    private final String key;
+
+    private final byte[] value;
+
+    private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+    Event(String topic, String key, byte[] value) {
+      this.topic = topic;
+      this.key = key;
+      this.value = value;
+    }
+  }
+}
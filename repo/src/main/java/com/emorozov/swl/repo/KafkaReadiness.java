@@ -0,0 +1,131 @@
+package com.emorozov.swl.repo;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.admin.ListTopicsOptions;
+import org.apache.kafka.common.KafkaException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.kafka.core.KafkaAdmin;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Holds back Kafka Streams, the listener containers and the scheduled and
+ * generated events until the brokers answer and all topics exist, trying
+ * again with exponential backoff. Startup carries on as soon as Kafka is up
+ * rather than after a fixed delay, and fails after
+ * <code>swl.startup.timeout-ms</code> rather than waiting forever.
+ */
+@Slf4j
+@Component
+public class KafkaReadiness implements SmartLifecycle {
+
+  @Autowired
+  private KafkaAdmin kafkaAdmin;
+
+  @Autowired
+  private StartupProperties startupProperties;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  private volatile boolean running;
+
+  @Override
+  public void start() {
+
+    long start = System.nanoTime();
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(startupProperties.getTimeoutMs());
+    long backoffMs = startupProperties.getInitialBackoffMs();
+    Set<String> missing = new TreeSet<>(startupProperties.getTopics());
+    int attempts = 0;
+    while (true) {
+      attempts++;
+      String reason = listMissingTopics(missing);
+      if (reason == null) {
+        break;
+      }
+      if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMs) - deadline > 0) {
+        throw new IllegalStateException(String.format("Kafka not ready after %s attempts in %s ms: %s", attempts,
+            startupProperties.getTimeoutMs(), reason));
+      }
+      log.info("Waiting {} ms for Kafka: {}", backoffMs, reason);
+      try {
+        Thread.sleep(backoffMs);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for Kafka", ie);
+      }
+      backoffMs = Math.min(backoffMs * 2, startupProperties.getMaxBackoffMs());
+    }
+
+    long waitedNanos = System.nanoTime() - start;
+    Timer.builder("swl.startup").description("Time from JVM start or from waiting for Kafka until ready")
+        .tags("phase", "kafka").register(meterRegistry).record(waitedNanos, TimeUnit.NANOSECONDS);
+    log.info("Kafka ready after {} ms and {} attempts", TimeUnit.NANOSECONDS.toMillis(waitedNanos), attempts);
+    running = true;
+  }
+
+  @Override
+  public void stop() {
+    running = false;
+  }
+
+  @Override
+  public boolean isRunning() {
+    return running;
+  }
+
+  /**
+   * Before Kafka Streams and the listener containers, which start in the
+   * latest phases.
+   */
+  @Override
+  public int getPhase() {
+    return 0;
+  }
+
+  /**
+   * Removes the topics that exist from the missing ones, returning why Kafka
+   * is not ready yet or null once it is.
+   */
+  private String listMissingTopics(Set<String> missing) {
+    Map<String, Object> config = kafkaAdmin.getConfig();
+    AdminClient admin;
+    try {
+      // Created for every attempt, as the client can not be created at all
+      // while the broker host names do not resolve
+      admin = AdminClient.create(config);
+    } catch (KafkaException ke) {
+      return String.format("brokers not available (%s)", ke.getMessage());
+    }
+    try {
+      int requestTimeoutMs = (int) startupProperties.getRequestTimeoutMs();
+      missing.removeAll(admin.listTopics(new ListTopicsOptions().timeoutMs(requestTimeoutMs)).names()
+          .get(requestTimeoutMs, TimeUnit.MILLISECONDS));
+      return missing.isEmpty() ? null : String.format("topics %s do not exist", missing);
+    } catch (ExecutionException ee) {
+      return String.format("brokers not available (%s)", ee.getCause());
+    } catch (TimeoutException te) {
+      return String.format("brokers not available (no answer in %s ms)", startupProperties.getRequestTimeoutMs());
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for Kafka", ie);
+    } finally {
+      // Does not wait for the calls of a broker that did not answer
+      admin.close(Duration.ZERO);
+    }
+  }
+}
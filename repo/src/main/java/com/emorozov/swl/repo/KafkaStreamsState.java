@@ -0,0 +1,66 @@
+package com.emorozov.swl.repo;
+
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.streams.KafkaStreams;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Follows the state transitions of Kafka Streams for the readiness and
+ * liveness health groups. The instance is ready only while running, so it is
+ * taken out of service while rebalancing or restoring state, and live unless
+ * Kafka Streams failed or shut down, which a restart would recover from. The
+ * JVM uptime when Kafka Streams first runs is recorded as the startup time.
+ */
+@Slf4j
+@Component
+public class KafkaStreamsState implements KafkaStreams.StateListener {
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  private volatile KafkaStreams.State state = KafkaStreams.State.CREATED;
+
+  private volatile Instant since = Instant.now();
+
+  private volatile boolean started;
+
+  @Override
+  public void onChange(KafkaStreams.State newState, KafkaStreams.State oldState) {
+    log.info("State transition from {} to {}", oldState, newState);
+    state = newState;
+    since = Instant.now();
+    if (newState == KafkaStreams.State.RUNNING && !started) {
+      started = true;
+      long uptimeMs = ManagementFactory.getRuntimeMXBean().getUptime();
+      Timer.builder("swl.startup").description("Time from JVM start or from waiting for Kafka until ready")
+          .tags("phase", "streams-running").register(meterRegistry).record(uptimeMs, TimeUnit.MILLISECONDS);
+      log.info("Kafka Streams running {} ms after JVM start", uptimeMs);
+    }
+  }
+
+  public Health readiness() {
+    Health.Builder health = state == KafkaStreams.State.RUNNING ? Health.up() : Health.outOfService();
+    return withDetails(health);
+  }
+
+  public Health liveness() {
+    Health.Builder health = state == KafkaStreams.State.ERROR || state == KafkaStreams.State.NOT_RUNNING
+        ? Health.down()
+        : Health.up();
+    return withDetails(health);
+  }
+
+  private Health withDetails(Health.Builder health) {
+    return health.withDetail("state", state).withDetail("since", since.toString()).build();
+  }
+}
@@ -0,0 +1,45 @@
+package com.emorozov.swl.repo;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Lineage of recent entities and activities from the in-memory index, for
+ * example <code>GET /lineage/risk-t-1-bank-x-1/upstream</code>. Anything no
+ * longer in the index is not found and has to be looked up in the
+ * triplestore. Queries reaching <code>swl.lineage.max-edges</code> are
+ * returned truncated. The index only holds the events processed by this
+ * instance, so when several instances share the risk calculation, lineage
+ * through partitions processed elsewhere is missing and has to be looked up in
+ * the triplestore too.
+ */
+@RestController
+@RequestMapping("/lineage")
+public class LineageController {
+
+  @Autowired
+  private LineageIndex lineageIndex;
+
+  @GetMapping("/{node}/upstream")
+  public ResponseEntity<LineageIndex.Lineage> upstream(@PathVariable String node,
+      @RequestParam(defaultValue = "16") int depth) {
+    if (!lineageIndex.contains(node)) {
+      return ResponseEntity.notFound().build();
+    }
+    return ResponseEntity.ok(lineageIndex.upstream(node, depth));
+  }
+
+  @GetMapping("/{node}/downstream")
+  public ResponseEntity<LineageIndex.Lineage> downstream(@PathVariable String node,
+      @RequestParam(defaultValue = "16") int depth) {
+    if (!lineageIndex.contains(node)) {
+      return ResponseEntity.notFound().build();
+    }
+    return ResponseEntity.ok(lineageIndex.downstream(node, depth));
+  }
+}
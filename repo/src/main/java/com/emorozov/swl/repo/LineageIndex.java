@@ -0,0 +1,313 @@
+package com.emorozov.swl.repo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Recent lineage of the provenance emitted by this instance, so that questions
+ * such as which trade and counterparty versions a risk derives from are
+ * answered without a round trip to the triplestore. Nodes are the local names
+ * of entities and activities in the swl namespace. Each node takes one of
+ * <code>swl.lineage.max-nodes</code> slots and its edges are kept as packed
+ * longs of slot, slot generation and relation in per-slot arrays. The slot
+ * arrays start small and double as nodes are added, up to max-nodes. Once all
+ * slots are taken a clock hand evicts nodes that have not been referenced
+ * since it last passed, so nodes that keep being derived from, such as the
+ * current counterparty version, stay. Edges to evicted nodes are skipped by
+ * queries and dropped when their array next grows.
+ */
+@Component
+public class LineageIndex {
+
+  public enum Relation {
+    WAS_DERIVED_FROM, WAS_GENERATED_BY, USED
+  }
+
+  @Data
+  @AllArgsConstructor
+  public static class Edge {
+
+    private String from;
+
+    private Relation relation;
+
+    private String to;
+  }
+
+  /**
+   * The edges found by a query, truncated once there are
+   * <code>swl.lineage.max-edges</code> of them.
+   */
+  @Data
+  @AllArgsConstructor
+  public static class Lineage {
+
+    private List<Edge> edges;
+
+    private boolean truncated;
+  }
+
+  private static final Relation[] RELATIONS = Relation.values();
+
+  private static final long[] NO_EDGES = new long[0];
+
+  private static final int INITIAL_NODES = 1024;
+
+  @Autowired
+  private LineageProperties lineageProperties;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private static final int GENERATION_MASK = 0xffffff;
+
+  private final Map<String, Integer> slots = new HashMap<>();
+
+  private String[] names;
+
+  // Bumped on every eviction, to tell edges to evicted nodes from edges to
+  // their successors in the slot
+  private int[] generations;
+
+  private boolean[] referenced;
+
+  private long[][] upstream;
+
+  private int[] upstreamCounts;
+
+  private long[][] downstream;
+
+  private int[] downstreamCounts;
+
+  private int size;
+
+  private int clockHand;
+
+  @PostConstruct
+  public void init() {
+    int nodes = Math.min(INITIAL_NODES, lineageProperties.getMaxNodes());
+    names = new String[nodes];
+    generations = new int[nodes];
+    referenced = new boolean[nodes];
+    upstream = new long[nodes][];
+    upstreamCounts = new int[nodes];
+    downstream = new long[nodes][];
+    downstreamCounts = new int[nodes];
+  }
+
+  /**
+   * Doubles the slot arrays, up to <code>swl.lineage.max-nodes</code>.
+   */
+  private void grow() {
+    int nodes = (int) Math.min((long) names.length * 2, lineageProperties.getMaxNodes());
+    names = Arrays.copyOf(names, nodes);
+    generations = Arrays.copyOf(generations, nodes);
+    referenced = Arrays.copyOf(referenced, nodes);
+    upstream = Arrays.copyOf(upstream, nodes);
+    upstreamCounts = Arrays.copyOf(upstreamCounts, nodes);
+    downstream = Arrays.copyOf(downstream, nodes);
+    downstreamCounts = Arrays.copyOf(downstreamCounts, nodes);
+  }
+
+  public boolean isEnabled() {
+    return lineageProperties.isEnabled();
+  }
+
+  /**
+   * Records the edges of an event, each that its <code>from</code> relates to
+   * its <code>to</code>, for example that a risk was derived from a trade
+   * version. The lock is taken once for all of them.
+   */
+  public void record(Edge... edges) {
+    if (!lineageProperties.isEnabled()) {
+      return;
+    }
+    lock.writeLock().lock();
+    try {
+      for (Edge edge : edges) {
+        link(edge.getFrom(), edge.getRelation(), edge.getTo());
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Whether the node is still in the index.
+   */
+  public boolean contains(String node) {
+    lock.readLock().lock();
+    try {
+      return slots.containsKey(node);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Edges on the paths from the node to everything it was derived from,
+   * generated by or used, breadth first up to the depth.
+   */
+  public Lineage upstream(String node, int depth) {
+    return traverse(node, depth, true);
+  }
+
+  /**
+   * Edges on the paths from everything derived from, generated by or using the
+   * node back to it, breadth first up to the depth.
+   */
+  public Lineage downstream(String node, int depth) {
+    return traverse(node, depth, false);
+  }
+
+  /**
+   * Stops at <code>swl.lineage.max-edges</code>, as the read lock held
+   * meanwhile blocks recording for the event processors and risk calculation.
+   */
+  private Lineage traverse(String node, int depth, boolean up) {
+    List<Edge> edges = new ArrayList<>();
+    depth = Math.min(depth, lineageProperties.getMaxDepth());
+    int maxEdges = lineageProperties.getMaxEdges();
+    lock.readLock().lock();
+    try {
+      Integer start = slots.get(node);
+      if (start == null) {
+        return new Lineage(edges, false);
+      }
+      Map<Integer, Integer> levels = new HashMap<>();
+      Deque<Integer> queue = new ArrayDeque<>();
+      levels.put(start, 0);
+      queue.add(start);
+      while (!queue.isEmpty()) {
+        int slot = queue.poll();
+        int level = levels.get(slot);
+        if (level >= depth) {
+          continue;
+        }
+        long[] adjacent = up ? upstream[slot] : downstream[slot];
+        int count = up ? upstreamCounts[slot] : downstreamCounts[slot];
+        for (int i = 0; i < count; i++) {
+          if (!isLive(adjacent[i])) {
+            continue;
+          }
+          if (edges.size() == maxEdges) {
+            return new Lineage(edges, true);
+          }
+          int otherSlot = unpackSlot(adjacent[i]);
+          Relation relation = RELATIONS[unpackRelation(adjacent[i])];
+          String other = names[otherSlot];
+          edges.add(up ? new Edge(names[slot], relation, other) : new Edge(other, relation, names[slot]));
+          if (levels.putIfAbsent(otherSlot, level + 1) == null) {
+            queue.add(otherSlot);
+          }
+        }
+      }
+      return new Lineage(edges, false);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private void link(String from, Relation relation, String to) {
+    int fromSlot = slotOf(from);
+    int toSlot = slotOf(to);
+    addEdge(upstream, upstreamCounts, fromSlot, pack(toSlot, relation));
+    addEdge(downstream, downstreamCounts, toSlot, pack(fromSlot, relation));
+  }
+
+  private int slotOf(String node) {
+    Integer slot = slots.get(node);
+    if (slot != null) {
+      referenced[slot] = true;
+      return slot;
+    }
+    if (size == names.length && size < lineageProperties.getMaxNodes()) {
+      grow();
+    }
+    int newSlot = size < names.length ? size++ : evict();
+    names[newSlot] = node;
+    // New nodes survive one pass of the clock hand
+    referenced[newSlot] = true;
+    upstream[newSlot] = NO_EDGES;
+    upstreamCounts[newSlot] = 0;
+    downstream[newSlot] = NO_EDGES;
+    downstreamCounts[newSlot] = 0;
+    slots.put(node, newSlot);
+    return newSlot;
+  }
+
+  /**
+   * Frees the first slot after the clock hand whose node was not referenced
+   * since the hand last passed it.
+   */
+  private int evict() {
+    while (referenced[clockHand]) {
+      referenced[clockHand] = false;
+      clockHand = (clockHand + 1) % names.length;
+    }
+    int slot = clockHand;
+    clockHand = (clockHand + 1) % names.length;
+    slots.remove(names[slot]);
+    generations[slot] = (generations[slot] + 1) & GENERATION_MASK;
+    return slot;
+  }
+
+  private boolean isLive(long edge) {
+    return generations[unpackSlot(edge)] == unpackGeneration(edge);
+  }
+
+  /**
+   * Appends the edge to the slot, first dropping edges to evicted nodes when its
+   * array is full so that long lived nodes do not keep growing.
+   */
+  private void addEdge(long[][] edges, int[] counts, int slot, long edge) {
+    long[] slotEdges = edges[slot];
+    int count = counts[slot];
+    if (count == slotEdges.length) {
+      int live = 0;
+      for (int i = 0; i < count; i++) {
+        if (isLive(slotEdges[i])) {
+          slotEdges[live++] = slotEdges[i];
+        }
+      }
+      count = live;
+      // Grows unless compaction freed at least half of the array
+      if (count == slotEdges.length || count > slotEdges.length / 2) {
+        slotEdges = Arrays.copyOf(slotEdges, Math.max(4, slotEdges.length * 2));
+        edges[slot] = slotEdges;
+      }
+    }
+    slotEdges[count] = edge;
+    counts[slot] = count + 1;
+  }
+
+  private long pack(int slot, Relation relation) {
+    return ((long) slot << 32) | ((long) generations[slot] << 8) | relation.ordinal();
+  }
+
+  private static int unpackSlot(long edge) {
+    return (int) (edge >>> 32);
+  }
+
+  private static int unpackGeneration(long edge) {
+    return (int) (edge >>> 8) & GENERATION_MASK;
+  }
+
+  private static int unpackRelation(long edge) {
+    return (int) (edge & 0xff);
+  }
+}
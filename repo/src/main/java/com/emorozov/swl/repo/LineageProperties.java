@@ -0,0 +1,25 @@
+package com.emorozov.swl.repo;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import lombok.Data;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "swl.lineage")
+public class LineageProperties {
+
+  // Indexes the provenance emitted by this instance for lineage queries
+  private boolean enabled = true;
+
+  // Entities and activities kept, the oldest are evicted first. The index
+  // grows up to this as they are recorded
+  private int maxNodes = 1000000;
+
+  // Longest path followed by a lineage query
+  private int maxDepth = 16;
+
+  // Most edges returned by a lineage query, which is truncated beyond
+  private int maxEdges = 10000;
+}
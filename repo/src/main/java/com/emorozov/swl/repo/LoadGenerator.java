@@ -0,0 +1,139 @@
+package com.emorozov.swl.repo;
+
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Drives the trade and counterparty processors at a target rate from several
+ * threads, with trades and counterparties picked from a skewed distribution so
+ * that the join sees hot keys as it would in production. Each trade is booked
+ * against one counterparty for its lifetime.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "swl.load", name = "enabled", havingValue = "true")
+public class LoadGenerator {
+
+  // Lagging further behind than this drops the backlog instead of bursting
+  private static final long MAX_LAG_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  @Autowired
+  private LoadProperties loadProperties;
+
+  @Autowired
+  private TradeEventProcessor tradeEventProcessor;
+
+  @Autowired
+  private CounterpartyEventProcessor counterpartyEventProcessor;
+
+  private final AtomicLong tradeEvents = new AtomicLong();
+
+  private final AtomicLong counterpartyEvents = new AtomicLong();
+
+  private volatile boolean running;
+
+  private ExecutorService workers;
+
+  private String[] tradeIds;
+
+  private String[] counterpartyIds;
+
+  private ZipfDistribution tradeDistribution;
+
+  private ZipfDistribution counterpartyDistribution;
+
+  private long lastReportNanos = System.nanoTime();
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void start() {
+
+    tradeIds = new String[loadProperties.getTrades()];
+    for (int i = 0; i < tradeIds.length; i++) {
+      tradeIds[i] = UUID.randomUUID().toString();
+    }
+    counterpartyIds = new String[loadProperties.getCounterparties()];
+    for (int i = 0; i < counterpartyIds.length; i++) {
+      counterpartyIds[i] = String.format("bank-%s", i);
+    }
+    tradeDistribution = new ZipfDistribution(tradeIds.length, loadProperties.getSkew());
+    counterpartyDistribution = new ZipfDistribution(counterpartyIds.length, loadProperties.getSkew());
+    lastReportNanos = System.nanoTime();
+
+    int threads = loadProperties.getThreads();
+    long intervalNanos = TimeUnit.SECONDS.toNanos(threads) / loadProperties.getEventsPerSecond();
+    AtomicInteger threadCount = new AtomicInteger();
+    workers = Executors.newFixedThreadPool(threads, r -> {
+      Thread thread = new Thread(r, String.format("load-generator-%s", threadCount.incrementAndGet()));
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    log.info("Generating {} events/s over {} trades and {} counterparties on {} threads",
+        loadProperties.getEventsPerSecond(), tradeIds.length, counterpartyIds.length, threads);
+    running = true;
+    for (int i = 0; i < threads; i++) {
+      workers.execute(() -> generate(intervalNanos));
+    }
+  }
+
+  @PreDestroy
+  public void stop() throws InterruptedException {
+    running = false;
+    if (workers != null) {
+      workers.shutdown();
+      workers.awaitTermination(10, TimeUnit.SECONDS);
+    }
+  }
+
+  @Scheduled(fixedRate = 10000, initialDelay = 10000)
+  public void report() {
+    long now = System.nanoTime();
+    double seconds = (now - lastReportNanos) / 1e9;
+    lastReportNanos = now;
+    log.info("Sent {} trade corrections/s and {} counterparty updates/s",
+        Math.round(tradeEvents.getAndSet(0) / seconds), Math.round(counterpartyEvents.getAndSet(0) / seconds));
+  }
+
+  private void generate(long intervalNanos) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    long next = System.nanoTime();
+    while (running) {
+      long now = System.nanoTime();
+      if (now < next) {
+        LockSupport.parkNanos(next - now);
+        continue;
+      }
+      next = now - next > MAX_LAG_NANOS ? now + intervalNanos : next + intervalNanos;
+      try {
+        if (random.nextDouble() < loadProperties.getCounterpartyEventRatio()) {
+          counterpartyEventProcessor
+              .sendCounterpartyUpdate(counterpartyIds[counterpartyDistribution.sample(random)]);
+          counterpartyEvents.incrementAndGet();
+        } else {
+          int trade = tradeDistribution.sample(random);
+          tradeEventProcessor.sendTradeCorrection(tradeIds[trade], counterpartyIds[trade % counterpartyIds.length]);
+          tradeEvents.incrementAndGet();
+        }
+      } catch (RuntimeException re) {
+        log.error("Could not send generated event", re);
+      }
+    }
+  }
+}
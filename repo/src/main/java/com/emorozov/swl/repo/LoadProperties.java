@@ -0,0 +1,30 @@
+package com.emorozov.swl.repo;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import lombok.Data;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "swl.load")
+public class LoadProperties {
+
+  // Replaces the scheduled single trade and counterparty with generated load
+  private boolean enabled = false;
+
+  private int trades = 10000;
+
+  private int counterparties = 100;
+
+  private int eventsPerSecond = 1000;
+
+  private int threads = 4;
+
+  // Share of the events that are counterparty updates rather than trade
+  // corrections
+  private double counterpartyEventRatio = 0.05;
+
+  // Zipf exponent for picking trades and counterparties, 0 for uniform
+  private double skew = 1.0;
+}
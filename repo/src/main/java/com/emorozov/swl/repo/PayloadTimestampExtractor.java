@@ -0,0 +1,26 @@
+package com.emorozov.swl.repo;
+
+import java.time.OffsetDateTime;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.streams.processor.TimestampExtractor;
+
+/**
+ * Uses the business event time carried in the trade and counterparty payloads,
+ * so that replays and catch-up after lag keep the original event times. Falls
+ * back to the record timestamp for payloads without one, and to the partition
+ * time when that is not valid either.
+ */
+public class PayloadTimestampExtractor implements TimestampExtractor {
+
+  @Override
+  public long extract(ConsumerRecord<Object, Object> record, long partitionTime) {
+    if (record.value() instanceof String) {
+      OffsetDateTime eventTime = EventPayload.eventTime((String) record.value());
+      if (eventTime != null) {
+        return eventTime.toInstant().toEpochMilli();
+      }
+    }
+    return record.timestamp() >= 0 ? record.timestamp() : partitionTime;
+  }
+}
@@ -0,0 +1,162 @@
+package com.emorozov.swl.repo;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.StreamsBuilder;
+import org.apache.kafka.streams.kstream.KStream;
+import org.apache.kafka.streams.kstream.Transformer;
+import org.apache.kafka.streams.processor.Cancellable;
+import org.apache.kafka.streams.processor.ProcessorContext;
+import org.apache.kafka.streams.processor.PunctuationType;
+import org.apache.kafka.streams.processor.To;
+import org.apache.kafka.streams.state.KeyValueIterator;
+import org.apache.kafka.streams.state.KeyValueStore;
+import org.apache.kafka.streams.state.Stores;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Gathers the PROV payloads of many events of a stream task into one record
+ * on the prov topic, written once <code>max-events</code> or
+ * <code>max-bytes</code> are pending or <code>max-delay-ms</code> of wall
+ * clock time has passed. The record is keyed by the first event it holds and
+ * timestamped with its time. Pending payloads are kept in a state store, so
+ * with exactly once processing those of committed inputs are written after a
+ * restart or rebalance rather than lost. The store is cached, so payloads
+ * written out before the next commit never reach its changelog.
+ */
+@Slf4j
+public class ProvAggregator implements Transformer<String, byte[], KeyValue<String, byte[]>> {
+
+  private final String storeName;
+
+  private final String source;
+
+  private final ProvEmitter provEmitter;
+
+  private final StreamsProperties.ProvBatch provBatch;
+
+  private final List<Long> sequences = new ArrayList<>();
+
+  private final List<byte[]> payloads = new ArrayList<>();
+
+  private ProcessorContext context;
+
+  private KeyValueStore<Long, byte[]> pendingStore;
+
+  private Cancellable punctuator;
+
+  private String firstKey;
+
+  private long firstTimestamp;
+
+  private int pendingBytes;
+
+  private long nextSequence;
+
+  public ProvAggregator(String storeName, String source, ProvEmitter provEmitter,
+      StreamsProperties.ProvBatch provBatch) {
+    this.storeName = storeName;
+    this.source = source;
+    this.provEmitter = provEmitter;
+    this.provBatch = provBatch;
+  }
+
+  /**
+   * Aggregates the PROV stream when <code>swl.streams.prov-batch.enabled</code>
+   * is set, otherwise returns it as it is.
+   */
+  public static KStream<String, byte[]> aggregate(StreamsBuilder kStreamBuilder, KStream<String, byte[]> prov,
+      String source, ProvEmitter provEmitter, StreamsProperties streamsProperties) {
+
+    StreamsProperties.ProvBatch provBatch = streamsProperties.getProvBatch();
+    if (!provBatch.isEnabled()) {
+      return prov;
+    }
+    String storeName = String.format("%s-prov-pending", source);
+    kStreamBuilder.addStateStore(Stores
+        .keyValueStoreBuilder(Stores.persistentKeyValueStore(storeName), Serdes.Long(), Serdes.ByteArray())
+        .withCachingEnabled());
+    return prov.transform(() -> new ProvAggregator(storeName, source, provEmitter, provBatch), storeName);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void init(ProcessorContext context) {
+
+    this.context = context;
+    this.pendingStore = (KeyValueStore<Long, byte[]>) context.getStateStore(storeName);
+
+    // Sequences are serialised big-endian, so the store iterates them in order
+    try (KeyValueIterator<Long, byte[]> pending = pendingStore.all()) {
+      while (pending.hasNext()) {
+        KeyValue<Long, byte[]> entry = pending.next();
+        ByteBuffer value = ByteBuffer.wrap(entry.value);
+        long timestamp = value.getLong();
+        byte[] key = new byte[value.getInt()];
+        value.get(key);
+        byte[] payload = new byte[value.remaining()];
+        value.get(payload);
+        add(entry.key, timestamp, new String(key, StandardCharsets.UTF_8), payload);
+        nextSequence = entry.key + 1;
+      }
+    }
+    if (!payloads.isEmpty()) {
+      log.info("Restored {} pending PROV payloads in task {}", payloads.size(), context.taskId());
+    }
+
+    punctuator = context.schedule(Duration.ofMillis(provBatch.getMaxDelayMs()), PunctuationType.WALL_CLOCK_TIME,
+        timestamp -> flush());
+  }
+
+  @Override
+  public KeyValue<String, byte[]> transform(String key, byte[] payload) {
+    if (payload == null) {
+      return null;
+    }
+    long sequence = nextSequence++;
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    pendingStore.put(sequence, ByteBuffer.allocate(12 + keyBytes.length + payload.length)
+        .putLong(context.timestamp()).putInt(keyBytes.length).put(keyBytes).put(payload).array());
+    add(sequence, context.timestamp(), key, payload);
+    if (payloads.size() >= provBatch.getMaxEvents() || pendingBytes >= provBatch.getMaxBytes()) {
+      flush();
+    }
+    return null;
+  }
+
+  @Override
+  public void close() {
+    if (punctuator != null) {
+      punctuator.cancel();
+    }
+    // Pending payloads stay in the store for whoever gets the task next
+  }
+
+  private void add(long sequence, long timestamp, String key, byte[] payload) {
+    if (payloads.isEmpty()) {
+      firstKey = key;
+      firstTimestamp = timestamp;
+    }
+    sequences.add(sequence);
+    payloads.add(payload);
+    pendingBytes += payload.length;
+  }
+
+  private void flush() {
+    if (payloads.isEmpty()) {
+      return;
+    }
+    context.forward(firstKey, provEmitter.merge(source, payloads), To.all().withTimestamp(firstTimestamp));
+    sequences.forEach(pendingStore::delete);
+    sequences.clear();
+    payloads.clear();
+    pendingBytes = 0;
+  }
+}
@@ -0,0 +1,337 @@
+package com.emorozov.swl.repo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFParser;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFWriter;
+import org.openprovenance.prov.interop.Formats;
+import org.openprovenance.prov.interop.InteropFramework;
+import org.openprovenance.prov.model.Document;
+import org.openprovenance.prov.model.Namespace;
+import org.openprovenance.prov.model.ProvFactory;
+import org.openprovenance.prov.model.StatementOrBundle;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import lombok.SneakyThrows;
+
+/**
+ * Builds and serialises PROV documents for all producers. It is called from the
+ * scheduler and the Kafka Streams threads at the same time, so the datatype
+ * factory and the serialisation buffers are kept per thread rather than
+ * created for every event.
+ */
+@Component
+public class ProvEmitter {
+
+  // Buffers grown by an unusually large document are dropped rather than kept
+  // for the lifetime of the thread.
+  private static final int MAX_RETAINED_BUFFER_BYTES = 1024 * 1024;
+
+  private static final ThreadLocal<DatatypeFactory> DATATYPE_FACTORY = ThreadLocal
+      .withInitial(ProvEmitter::newDatatypeFactory);
+
+  private static final ThreadLocal<Buffer> RDF_BUFFER = ThreadLocal.withInitial(Buffer::new);
+
+  private static final ThreadLocal<Buffer> PAYLOAD_BUFFER = ThreadLocal.withInitial(Buffer::new);
+
+  @Autowired
+  private Namespace ns;
+
+  @Autowired
+  private ProvFactory provFactory;
+
+  @Autowired
+  private InteropFramework interopFramework;
+
+  @Autowired
+  private ProvProperties provProperties;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  private final Map<String, Timer> buildTimers = new ConcurrentHashMap<>();
+
+  private final Map<String, DistributionSummary> payloadSizes = new ConcurrentHashMap<>();
+
+  private final Map<String, DistributionSummary> batchSizes = new ConcurrentHashMap<>();
+
+  private final Map<String, Counter> resourceCounters = new ConcurrentHashMap<>();
+
+  // Time each resource was last published, in access order so that the least
+  // recently described resources are forgotten first
+  private final Map<String, Long> publishedResources = new LinkedHashMap<String, Long>(1024, 0.75f, true) {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+      return size() > provProperties.getDelta().getMaxResources();
+    }
+  };
+
+  public ProvPayloadFormat getFormat() {
+    return provProperties.getFormat();
+  }
+
+  public XMLGregorianCalendar toXmlGregorianCalendar(OffsetDateTime odt) {
+    return DATATYPE_FACTORY.get()
+        .newXMLGregorianCalendar(GregorianCalendar.from(odt.atZoneSameInstant(ZoneOffset.UTC)));
+  }
+
+  /**
+   * Creates a document with the statements, skipping the null ones that
+   * {@link #describe(String, String, Object)} left out.
+   */
+  public Document newDocument(StatementOrBundle... statements) {
+    Document document = provFactory.newDocument();
+    for (StatementOrBundle statement : statements) {
+      if (statement != null) {
+        document.getStatementOrBundle().add(statement);
+      }
+    }
+    document.setNamespace(ns);
+    return document;
+  }
+
+  /**
+   * Returns the description of a resource that is the same in every event of
+   * the source, such as an agent or the trade that all trade versions
+   * specialise, or null when it was published recently enough to be left out
+   * of this event. Every description is returned unless
+   * <code>swl.prov.delta.enabled</code> is set. Each instance only knows what
+   * it published itself, so a description may still be published once per
+   * instance.
+   */
+  public <T> T describe(String source, String resource, T description) {
+    ProvProperties.Delta delta = provProperties.getDelta();
+    if (!delta.isEnabled()) {
+      return description;
+    }
+    String key = source + '/' + resource;
+    long now = System.nanoTime();
+    boolean known;
+    synchronized (publishedResources) {
+      Long published = publishedResources.get(key);
+      known = published != null && now - published < TimeUnit.MILLISECONDS.toNanos(delta.getRepublishMs());
+      if (!known) {
+        publishedResources.put(key, now);
+      }
+    }
+    String result = known ? "known" : "new";
+    resourceCounters.computeIfAbsent(source + '/' + result, k -> Counter.builder("swl.prov.resources")
+        .description("Resource descriptions published with an event, or left out as already published")
+        .tags("source", source, "result", result).register(meterRegistry)).increment();
+    return known ? null : description;
+  }
+
+  public boolean isTemplates() {
+    return provProperties.isTemplates();
+  }
+
+  public String toXmlDateTime(OffsetDateTime odt) {
+    return toXmlGregorianCalendar(odt).toXMLFormat();
+  }
+
+  /**
+   * Serialises the document in the payload format configured for the prov
+   * topic. ProvToolbox only writes Turtle, the other formats are streamed
+   * triple by triple from it without building an intermediate model.
+   */
+  public byte[] emit(Document document) {
+    Buffer turtle = borrow(RDF_BUFFER);
+    interopFramework.writeDocument(turtle, Formats.ProvFormat.TURTLE, document);
+    return encode(turtle, Lang.TURTLE);
+  }
+
+  /**
+   * Renders the template with the values of one event in the payload format
+   * configured for the prov topic. N-Triples is also valid Turtle, so only RDF
+   * Thrift needs the triples to be parsed again.
+   */
+  public byte[] emit(ProvTemplate template, Object... values) {
+    return emit(Collections.singletonList(template), values);
+  }
+
+  /**
+   * Renders all templates with the same values into one payload, skipping the
+   * null ones that {@link #describe(String, String, Object)} left out.
+   */
+  public byte[] emit(List<ProvTemplate> templates, Object... values) {
+    Buffer ntriples = borrow(RDF_BUFFER);
+    for (ProvTemplate template : templates) {
+      if (template != null) {
+        template.render(ntriples, values);
+      }
+    }
+    return encode(ntriples, Lang.NTRIPLES);
+  }
+
+  /**
+   * Creates the PROV payload of one event, recording how long that took and
+   * how large the payload is for the source of the event.
+   */
+  public byte[] build(String source, Supplier<byte[]> builder) {
+    long start = System.nanoTime();
+    byte[] prov = builder.get();
+    String mode = isTemplates() ? "template" : "document";
+    buildTimers.computeIfAbsent(source + '/' + mode, key -> Timer.builder("swl.prov.build")
+        .description("Time to build and serialise the PROV payload of an event")
+        .tags("source", source, "mode", mode, "format", getFormat().name()).register(meterRegistry))
+        .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    payloadSizes.computeIfAbsent(source, key -> DistributionSummary.builder("swl.prov.size")
+        .description("Size of the serialised PROV payload of an event").baseUnit("bytes")
+        .tags("source", source, "format", getFormat().name()).register(meterRegistry))
+        .record(prov.length);
+    return prov;
+  }
+
+  /**
+   * Merges the payloads of several events into one payload in the configured
+   * format. Turtle and N-Triples are appended to each other, which keeps them
+   * valid as every payload built here binds its prefixes the same way and has
+   * no blank node labels of its own. RDF Thrift is a stream of rows and is
+   * appended as it is. Compressed payloads are inflated and compressed again
+   * as one stream, so that the batch compresses as a whole.
+   */
+  @SneakyThrows
+  public byte[] merge(String source, List<byte[]> payloads) {
+
+    batchSizes.computeIfAbsent(source, key -> DistributionSummary.builder("swl.prov.batch")
+        .description("PROV payloads of events merged into one record").baseUnit("events")
+        .tags("source", source, "format", getFormat().name()).register(meterRegistry))
+        .record(payloads.size());
+
+    ProvPayloadFormat format = provProperties.getFormat();
+    Buffer merged = borrow(PAYLOAD_BUFFER);
+    byte[] buffer = new byte[8192];
+    try (OutputStream out = compress(format, merged)) {
+      for (byte[] payload : payloads) {
+        if (format == ProvPayloadFormat.NTRIPLES_GZIP || format == ProvPayloadFormat.NTRIPLES_ZSTD) {
+          try (InputStream in = decompress(format, new ByteArrayInputStream(payload))) {
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+              out.write(buffer, 0, read);
+            }
+          }
+        } else {
+          out.write(payload);
+          if (format != ProvPayloadFormat.RDF_THRIFT && payload.length > 0 && payload[payload.length - 1] != '\n') {
+            out.write('\n');
+          }
+        }
+      }
+    }
+    return merged.toByteArray();
+  }
+
+  @SneakyThrows
+  private byte[] encode(Buffer rdf, Lang lang) {
+
+    ProvPayloadFormat format = provProperties.getFormat();
+    if (format == ProvPayloadFormat.TURTLE || (format == ProvPayloadFormat.NTRIPLES && lang == Lang.NTRIPLES)) {
+      return rdf.toByteArray();
+    }
+
+    Buffer payload = borrow(PAYLOAD_BUFFER);
+    try (OutputStream out = compress(format, payload)) {
+      if (format != ProvPayloadFormat.RDF_THRIFT && lang == Lang.NTRIPLES) {
+        rdf.writeTo(out);
+      } else {
+        StreamRDF writer = StreamRDFWriter.getWriterStream(out,
+            format == ProvPayloadFormat.RDF_THRIFT ? Lang.RDFTHRIFT : Lang.NTRIPLES);
+        writer.start();
+        RDFParser.create().source(rdf.toInputStream()).lang(lang).parse(writer);
+        writer.finish();
+      }
+    }
+    return payload.toByteArray();
+  }
+
+  private static Buffer borrow(ThreadLocal<Buffer> buffers) {
+    Buffer buffer = buffers.get();
+    if (buffer.capacity() > MAX_RETAINED_BUFFER_BYTES) {
+      buffer = new Buffer();
+      buffers.set(buffer);
+    }
+    buffer.reset();
+    return buffer;
+  }
+
+  private static OutputStream compress(ProvPayloadFormat format, OutputStream out) throws IOException {
+    switch (format) {
+    case NTRIPLES_GZIP:
+      return new GZIPOutputStream(out);
+    case NTRIPLES_ZSTD:
+      return new ZstdOutputStream(out);
+    default:
+      return out;
+    }
+  }
+
+  private static InputStream decompress(ProvPayloadFormat format, InputStream in) throws IOException {
+    switch (format) {
+    case NTRIPLES_GZIP:
+      return new GZIPInputStream(in);
+    case NTRIPLES_ZSTD:
+      return new ZstdInputStream(in);
+    default:
+      return in;
+    }
+  }
+
+  private static DatatypeFactory newDatatypeFactory() {
+    try {
+      return DatatypeFactory.newInstance();
+    } catch (DatatypeConfigurationException dce) {
+      throw new IllegalStateException(dce);
+    }
+  }
+
+  /**
+   * Exposes the written bytes for reading without copying them.
+   */
+  private static class Buffer extends ByteArrayOutputStream {
+
+    Buffer() {
+      super(8192);
+    }
+
+    int capacity() {
+      return buf.length;
+    }
+
+    InputStream toInputStream() {
+      return new ByteArrayInputStream(buf, 0, count);
+    }
+  }
+}
@@ -0,0 +1,9 @@
+package com.emorozov.swl.repo;
+
+/**
+ * Encodings of the PROV payloads on the prov topic. The SPARQL sink has to be
+ * configured with the same format through sparql.payload.format.
+ */
+public enum ProvPayloadFormat {
+  TURTLE, NTRIPLES, NTRIPLES_GZIP, NTRIPLES_ZSTD, RDF_THRIFT
+}
@@ -0,0 +1,35 @@
+package com.emorozov.swl.repo;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import lombok.Data;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "swl.prov")
+public class ProvProperties {
+
+  private ProvPayloadFormat format = ProvPayloadFormat.TURTLE;
+
+  // Writes PROV straight from the event templates instead of through ProvToolbox
+  private boolean templates = false;
+
+  private Delta delta = new Delta();
+
+  @Data
+  public static class Delta {
+
+    // Leaves descriptions of agents and entities that are the same in every
+    // event out of the payload once they have been published
+    private boolean enabled = false;
+
+    // Resources remembered as published, the least recently used are forgotten
+    // and published again first
+    private int maxResources = 100000;
+
+    // Published again after this long, so that descriptions lost with an
+    // aborted transaction or a replaced graph come back
+    private long republishMs = 600000;
+  }
+}
@@ -0,0 +1,160 @@
+package com.emorozov.swl.repo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The PROV-O triples of one fixed event shape written as N-Triples, with
+ * numbered placeholders such as <code>{0}</code> for the values that change
+ * from event to event. IRIs in the template may use the <code>swl:</code>,
+ * <code>prov:</code>, <code>rdf:</code>, <code>rdfs:</code> and
+ * <code>xsd:</code> prefixes, which are expanded when it is compiled.
+ * Placeholders inside a literal are escaped as string content, placeholders
+ * inside an IRI are checked to be valid IRI characters.
+ */
+public final class ProvTemplate {
+
+  private static final Map<String, String> PREFIXES = new LinkedHashMap<>();
+
+  static {
+    PREFIXES.put("swl", EventProcessorConfiguration.SWL_NAMESPACE);
+    PREFIXES.put("prov", "http://www.w3.org/ns/prov#");
+    PREFIXES.put("rdfs", "http://www.w3.org/2000/01/rdf-schema#");
+    PREFIXES.put("rdf", "http://www.w3.org/1999/02/22-rdf-syntax-ns#");
+    PREFIXES.put("xsd", "http://www.w3.org/2001/XMLSchema#");
+  }
+
+  // constants[i] is written before slot i, the last constant after all slots
+  private final byte[][] constants;
+
+  private final int[] slots;
+
+  private final boolean[] literals;
+
+  private ProvTemplate(byte[][] constants, int[] slots, boolean[] literals) {
+    this.constants = constants;
+    this.slots = slots;
+    this.literals = literals;
+  }
+
+  public static ProvTemplate compile(String... triples) {
+
+    String template = expandPrefixes(String.join("\n", triples) + "\n");
+
+    List<byte[]> constants = new ArrayList<>();
+    List<Integer> slots = new ArrayList<>();
+    List<Boolean> literals = new ArrayList<>();
+
+    boolean inLiteral = false;
+    int constantStart = 0;
+    for (int i = 0; i < template.length(); i++) {
+      char c = template.charAt(i);
+      if (c == '"' && (i == 0 || template.charAt(i - 1) != '\\')) {
+        inLiteral = !inLiteral;
+      } else if (c == '{') {
+        int end = template.indexOf('}', i);
+        if (end < 0) {
+          throw new IllegalArgumentException(String.format("Unterminated placeholder at %s in template", i));
+        }
+        constants.add(template.substring(constantStart, i).getBytes(StandardCharsets.UTF_8));
+        slots.add(Integer.parseInt(template.substring(i + 1, end)));
+        literals.add(inLiteral);
+        i = end;
+        constantStart = end + 1;
+      }
+    }
+    constants.add(template.substring(constantStart).getBytes(StandardCharsets.UTF_8));
+
+    boolean[] literalFlags = new boolean[literals.size()];
+    for (int i = 0; i < literalFlags.length; i++) {
+      literalFlags[i] = literals.get(i);
+    }
+    return new ProvTemplate(constants.toArray(new byte[0][]), slots.stream().mapToInt(Integer::intValue).toArray(),
+        literalFlags);
+  }
+
+  public void render(OutputStream out, Object... values) {
+    try {
+      for (int i = 0; i < slots.length; i++) {
+        out.write(constants[i]);
+        if (slots[i] >= values.length) {
+          throw new IllegalArgumentException(
+              String.format("Template needs value {%s} but only %s were given", slots[i], values.length));
+        }
+        String value = String.valueOf(values[slots[i]]);
+        if (literals[i]) {
+          writeLiteral(out, value);
+        } else {
+          writeIri(out, value);
+        }
+      }
+      out.write(constants[slots.length]);
+    } catch (IOException ioe) {
+      throw new UncheckedIOException(ioe);
+    }
+  }
+
+  private static String expandPrefixes(String template) {
+    for (Map.Entry<String, String> prefix : PREFIXES.entrySet()) {
+      template = template.replace("<" + prefix.getKey() + ":", "<" + prefix.getValue());
+    }
+    return template;
+  }
+
+  private static void writeLiteral(OutputStream out, String value) throws IOException {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+      case '"':
+        out.write('\\');
+        out.write('"');
+        break;
+      case '\\':
+        out.write('\\');
+        out.write('\\');
+        break;
+      case '\n':
+        out.write('\\');
+        out.write('n');
+        break;
+      case '\r':
+        out.write('\\');
+        out.write('r');
+        break;
+      default:
+        i = writeChar(out, value, i);
+      }
+    }
+  }
+
+  private static void writeIri(OutputStream out, String value) throws IOException {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c <= ' ' || "<>\"{}|^`\\".indexOf(c) >= 0) {
+        throw new IllegalArgumentException(String.format("Value '%s' is not allowed in an IRI", value));
+      }
+      i = writeChar(out, value, i);
+    }
+  }
+
+  /**
+   * Writes the character at the index as UTF-8, returning the index of its last
+   * char so that surrogate pairs are written as one code point.
+   */
+  private static int writeChar(OutputStream out, String value, int i) throws IOException {
+    char c = value.charAt(i);
+    if (c < 0x80) {
+      out.write(c);
+      return i;
+    }
+    int end = Character.isHighSurrogate(c) && i + 1 < value.length() ? i + 2 : i + 1;
+    out.write(value.substring(i, end).getBytes(StandardCharsets.UTF_8));
+    return end - 1;
+  }
+}
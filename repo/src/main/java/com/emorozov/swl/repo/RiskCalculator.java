@@ -1,18 +1,15 @@
 package com.emorozov.swl.repo;
 
-import java.io.ByteArrayOutputStream;
 import java.time.OffsetDateTime;
-import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
-import javax.xml.datatype.DatatypeFactory;
+import javax.annotation.PostConstruct;
 import javax.xml.datatype.XMLGregorianCalendar;
 
-import org.openprovenance.prov.interop.Formats;
-import org.openprovenance.prov.interop.InteropFramework;
 import org.openprovenance.prov.model.Activity;
 import org.openprovenance.prov.model.Agent;
 import org.openprovenance.prov.model.Document;
@@ -28,7 +25,10 @@ import org.openprovenance.prov.model.WasStartedBy;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import lombok.SneakyThrows;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
@@ -37,6 +37,32 @@ public class RiskCalculator {
 
   private static final DateTimeFormatter DEFAULT_FORMATTER = DateTimeFormatter.ofPattern("HH:mm:SS");
 
+  private static final String PROV_SOURCE = "risk";
+
+  private static final char RISK_INPUT_SEPARATOR = '\n';
+
+  // Same triples as createProvDocument, with the description of the agent in a
+  // template of its own so that it can be left out: {0} trade version, {1}
+  // counterparty version, {2} xsd:dateTime and {3} display time
+  private static final ProvTemplate RISK_CALCULATOR_TEMPLATE = ProvTemplate.compile(
+      "<swl:risk-calculator-1> <rdf:type> <prov:Agent> .",
+      "<swl:risk-calculator-1> <rdfs:label> \"Risk calculator\" .");
+
+  private static final ProvTemplate PROV_TEMPLATE = ProvTemplate.compile(
+      "<swl:risk-{0}-{1}> <rdf:type> <prov:Entity> .",
+      "<swl:risk-{0}-{1}> <rdfs:label> \"Risk for trade version {0} counterparty version {1} at {3}\" .",
+      "<swl:risk-calculation-{0}-{1}> <rdf:type> <prov:Activity> .",
+      "<swl:risk-calculation-{0}-{1}> <prov:startedAtTime> \"{2}\"^^<xsd:dateTime> .",
+      "<swl:risk-calculation-{0}-{1}> <prov:endedAtTime> \"{2}\"^^<xsd:dateTime> .",
+      "<swl:risk-calculation-{0}-{1}> <rdfs:label> \"Risk RR 10M FNMA 7.125 01-15-30 trade version {0} counterparty version {1} at {3}\" .",
+      "<swl:risk-calculation-{0}-{1}> <prov:used> <swl:trade-{0}> .",
+      "<swl:risk-calculation-{0}-{1}> <prov:used> <swl:cpty-{1}> .",
+      "<swl:risk-{0}-{1}> <prov:wasGeneratedBy> <swl:risk-calculation-{0}-{1}> .",
+      "<swl:risk-calculation-{0}-{1}> <prov:wasStartedBy> <swl:risk-calculator-1> .",
+      "<swl:risk-calculation-{0}-{1}> <prov:wasEndedBy> <swl:risk-calculator-1> .",
+      "<swl:risk-{0}-{1}> <prov:wasDerivedFrom> <swl:trade-{0}> .",
+      "<swl:risk-{0}-{1}> <prov:wasDerivedFrom> <swl:cpty-{1}> .");
+
   @Autowired
   private Namespace ns;
 
@@ -44,18 +70,123 @@ public class RiskCalculator {
   private ProvFactory provFactory;
 
   @Autowired
-  private InteropFramework interopFramework;
+  private ProvEmitter provEmitter;
+
+  @Autowired
+  private LineageIndex lineageIndex;
+
+  @Autowired
+  private MeterRegistry meterRegistry;
+
+  private Counter completeJoins;
+
+  private Counter incompleteJoins;
+
+  private Timer calculations;
+
+  private Timer failedCalculations;
+
+  @PostConstruct
+  public void registerMeters() {
+    completeJoins = Counter.builder("swl.risk.joins")
+        .description("Trade and counterparty updates joined into a risk input").tag("result", "complete")
+        .register(meterRegistry);
+    incompleteJoins = Counter.builder("swl.risk.joins")
+        .description("Trade and counterparty updates joined into a risk input").tag("result", "incomplete")
+        .register(meterRegistry);
+    // Failed calculations are the records written to the risk errors topic
+    calculations = Timer.builder("swl.risk.calculation").description("Time to calculate risk and its provenance")
+        .tag("outcome", "success").register(meterRegistry);
+    failedCalculations = Timer.builder("swl.risk.calculation")
+        .description("Time to calculate risk and its provenance").tag("outcome", "failure").register(meterRegistry);
+  }
+
+  /**
+   * Pairs the latest trade and counterparty payloads as the input of a risk
+   * calculation, or returns null while either is missing. Kept as a plain
+   * string so that inputs can be buffered cheaply before calculating.
+   */
+  public String joinRiskInput(String trade, String counterparty) {
+
+    if (trade == null || counterparty == null) {
+      log.warn("Could not process update for trade {} and counterparty {}", trade, counterparty);
+      incompleteJoins.increment();
+      return null;
+    }
+    completeJoins.increment();
+    return trade + RISK_INPUT_SEPARATOR + counterparty;
+  }
+
+  /**
+   * Calculates risk for a joined input. Failures are returned rather than
+   * thrown so that they go to the risk errors topic instead of stopping the
+   * stream.
+   */
+  public RiskResult calculateRisk(String riskInput) {
+    int separator = riskInput.indexOf(RISK_INPUT_SEPARATOR);
+    long start = System.nanoTime();
+    try {
+      RiskResult result = calculate(riskInput.substring(0, separator), riskInput.substring(separator + 1));
+      calculations.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+      return result;
+    } catch (RuntimeException re) {
+      log.error("Could not calculate risk for input {}", riskInput, re);
+      failedCalculations.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+      return RiskResult.failed(new RiskError(riskInput, re.toString(), System.currentTimeMillis()));
+    }
+  }
 
-  @SneakyThrows
-  public String calculateRiskAndRecordProvenance(String trade, String counterparty) {
+  public byte[] calculateRiskAndRecordProvenance(String trade, String counterparty) {
 
     if (trade == null || counterparty == null) {
-      return String.format("ERROR: Could not process update for trade %s and counterparty %s", trade, counterparty);
+      log.warn("Could not process update for trade {} and counterparty {}", trade, counterparty);
+      return null;
     }
+    return calculate(trade, counterparty).getProv();
+  }
+
+  private RiskResult calculate(String trade, String counterparty) {
+
+    // The calculation happens, in event time, as soon as its later input is known
+    OffsetDateTime odt = latest(EventPayload.eventTime(trade), EventPayload.eventTime(counterparty));
+    String tradeVersion = EventPayload.versionId(trade);
+    String counterpartyVersion = EventPayload.versionId(counterparty);
+
+    log.info("Calculating risk for trade {} counterparty {} at {}", tradeVersion, counterpartyVersion, odt);
+
+    RiskRecord risk = new RiskRecord(String.format("risk-%s-%s", tradeVersion, counterpartyVersion), tradeVersion,
+        counterpartyVersion, odt.toInstant().toEpochMilli());
+    byte[] prov = provEmitter.build(PROV_SOURCE, () -> createProvMessage(tradeVersion, counterpartyVersion, odt));
+    if (lineageIndex.isEnabled()) {
+      recordLineage(risk.getRiskId(), tradeVersion, counterpartyVersion);
+    }
+    return RiskResult.calculated(risk, prov);
+  }
 
-    OffsetDateTime odt = OffsetDateTime.now();
+  private void recordLineage(String riskId, String trade, String counterparty) {
 
-    log.info("Calculating risk for trade {} counterparty {} at {}", trade, counterparty, odt);
+    String tradeVersion = String.format("trade-%s", trade);
+    String counterpartyVersion = String.format("cpty-%s", counterparty);
+    String riskCalculation = String.format("risk-calculation-%s-%s", trade, counterparty);
+    lineageIndex.record(new LineageIndex.Edge(riskId, LineageIndex.Relation.WAS_DERIVED_FROM, tradeVersion),
+        new LineageIndex.Edge(riskId, LineageIndex.Relation.WAS_DERIVED_FROM, counterpartyVersion),
+        new LineageIndex.Edge(riskId, LineageIndex.Relation.WAS_GENERATED_BY, riskCalculation),
+        new LineageIndex.Edge(riskCalculation, LineageIndex.Relation.USED, tradeVersion),
+        new LineageIndex.Edge(riskCalculation, LineageIndex.Relation.USED, counterpartyVersion));
+  }
+
+  byte[] createProvMessage(String trade, String counterparty, OffsetDateTime odt) {
+
+    if (provEmitter.isTemplates()) {
+      List<ProvTemplate> templates = Arrays.asList(
+          provEmitter.describe(PROV_SOURCE, "risk-calculator-1", RISK_CALCULATOR_TEMPLATE), PROV_TEMPLATE);
+      return provEmitter.emit(templates, trade, counterparty, provEmitter.toXmlDateTime(odt),
+          odt.format(DEFAULT_FORMATTER));
+    }
+    return provEmitter.emit(createProvDocument(trade, counterparty, odt));
+  }
+
+  Document createProvDocument(String trade, String counterparty, OffsetDateTime odt) {
 
     QualifiedName riskQn = qn(String.format("risk-%s-%s", trade, counterparty));
     QualifiedName tradeVersionQn = qn(String.format("trade-%s", trade));
@@ -66,15 +197,12 @@ public class RiskCalculator {
     Entity risk = provFactory.newEntity(riskQn,
         String.format("Risk for trade version %s counterparty version %s at %s", trade, counterparty, odt.format(DEFAULT_FORMATTER)));
 
-    GregorianCalendar gcStartTime = GregorianCalendar.from(odt.atZoneSameInstant(ZoneId.of("Z")));
-    XMLGregorianCalendar xmlgcStartTime = DatatypeFactory.newInstance().newXMLGregorianCalendar(gcStartTime);
-    GregorianCalendar gcEndTime = GregorianCalendar.from(odt.atZoneSameInstant(ZoneId.of("Z")));
-    XMLGregorianCalendar xmlgcEndTime = DatatypeFactory.newInstance().newXMLGregorianCalendar(gcEndTime);
+    XMLGregorianCalendar xmlgcTime = provEmitter.toXmlGregorianCalendar(odt);
 
     // This is a bit of magic to make search look nicer. In reall application we'll
     // be dealing with
     // full-fledged trades and counterparties and so can extract the data
-    Activity riskCalculation = provFactory.newActivity(riskCalculationQn, xmlgcStartTime, xmlgcEndTime,
+    Activity riskCalculation = provFactory.newActivity(riskCalculationQn, xmlgcTime, xmlgcTime,
         Collections.emptyList());
     provFactory.addLabel(riskCalculation,
         String.format("Risk RR 10M FNMA 7.125 01-15-30 trade version %s counterparty version %s at %s", trade, counterparty,
@@ -93,17 +221,16 @@ public class RiskCalculator {
     WasDerivedFrom tradeVersionDerivationFromCounterparty = provFactory.newWasDerivedFrom(null, riskQn,
         counterpartyVersionQn);
 
-    Document repoEventProvDocument = provFactory.newDocument();
-    repoEventProvDocument.getStatementOrBundle()
-        .addAll(Arrays.asList(risk, riskCalculation, riskCalculationUsedTrade, riskCalculationUsedCounterparty,
-            newRiskWasGeneratedBy, riskCalculator, wasStartedBy, wasEndedBy, tradeVersionDerivationFromTrade,
-            tradeVersionDerivationFromCounterparty));
-    repoEventProvDocument.setNamespace(ns);
-
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    interopFramework.writeDocument(baos, Formats.ProvFormat.TURTLE, repoEventProvDocument);
+    return provEmitter.newDocument(risk, riskCalculation, riskCalculationUsedTrade, riskCalculationUsedCounterparty,
+        newRiskWasGeneratedBy, provEmitter.describe(PROV_SOURCE, "risk-calculator-1", riskCalculator), wasStartedBy,
+        wasEndedBy, tradeVersionDerivationFromTrade, tradeVersionDerivationFromCounterparty);
+  }
 
-    return baos.toString();
+  private static OffsetDateTime latest(OffsetDateTime tradeTime, OffsetDateTime counterpartyTime) {
+    if (tradeTime == null || counterpartyTime == null) {
+      return tradeTime != null ? tradeTime : counterpartyTime != null ? counterpartyTime : OffsetDateTime.now();
+    }
+    return tradeTime.isAfter(counterpartyTime) ? tradeTime : counterpartyTime;
   }
 
   public QualifiedName qn(String name) {
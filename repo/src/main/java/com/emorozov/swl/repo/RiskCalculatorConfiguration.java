@@ -1,16 +1,29 @@
 package com.emorozov.swl.repo;
 
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.common.config.TopicConfig;
 import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.common.utils.Bytes;
+import org.apache.kafka.streams.KeyValue;
 import org.apache.kafka.streams.StreamsBuilder;
 import org.apache.kafka.streams.StreamsConfig;
+import org.apache.kafka.streams.kstream.Grouped;
 import org.apache.kafka.streams.kstream.KStream;
 import org.apache.kafka.streams.kstream.KTable;
-import org.apache.kafka.streams.processor.WallclockTimestampExtractor;
+import org.apache.kafka.streams.kstream.Materialized;
+import org.apache.kafka.streams.kstream.Produced;
+import org.apache.kafka.streams.kstream.Suppressed;
+import org.apache.kafka.streams.kstream.Suppressed.BufferConfig;
+import org.apache.kafka.streams.state.KeyValueStore;
+import org.apache.kafka.streams.state.Stores;
+import org.springframework.boot.actuate.health.HealthIndicator;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.kafka.annotation.KafkaStreamsDefaultConfiguration;
@@ -23,8 +36,15 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class RiskCalculatorConfiguration {
 
+  public static final String RISK_TOPIC = "risk";
+
+  public static final String RISK_ERRORS_TOPIC = "risk-errors";
+
+  // Latest joined input per trade, and the topic repartitioning them by trade
+  public static final String RISK_INPUTS = "risk-inputs";
+
   @Bean(name = KafkaStreamsDefaultConfiguration.DEFAULT_STREAMS_CONFIG_BEAN_NAME)
-  public KafkaStreamsConfiguration kStreamsConfigs() {
+  public KafkaStreamsConfiguration kStreamsConfigs(StreamsProperties streamsProperties) {
 
     // Spring does not support all of the propersites, for example
     // DEFAULT_KEY_SERDE_CLASS_CONFIG, DEFAULT_VALUE_SERDE_CLASS_CONFIG,
@@ -33,40 +53,136 @@ public class RiskCalculatorConfiguration {
     final Map<String, Object> props = new HashMap<>();
     props.put(StreamsConfig.BOOTSTRAP_SERVERS_CONFIG, "kafka:9092");
     props.put(StreamsConfig.APPLICATION_ID_CONFIG, "risk");
-    props.put(StreamsConfig.POLL_MS_CONFIG, 100);
-    props.put(StreamsConfig.CACHE_MAX_BYTES_BUFFERING_CONFIG, 0);
+    props.put(StreamsConfig.POLL_MS_CONFIG, streamsProperties.getPollMs());
+    props.put(StreamsConfig.CACHE_MAX_BYTES_BUFFERING_CONFIG, streamsProperties.getCacheMaxBytesBuffering());
+    props.put(StreamsConfig.COMMIT_INTERVAL_MS_CONFIG, streamsProperties.getCommitIntervalMs());
+    props.put(StreamsConfig.NUM_STREAM_THREADS_CONFIG, streamsProperties.getNumStreamThreads());
+    props.put(StreamsConfig.NUM_STANDBY_REPLICAS_CONFIG, streamsProperties.getNumStandbyReplicas());
+    props.put(StreamsConfig.producerPrefix(ProducerConfig.COMPRESSION_TYPE_CONFIG),
+        streamsProperties.getCompressionType());
+    props.put(StreamsConfig.ROCKSDB_CONFIG_SETTER_CLASS_CONFIG, BoundedRocksDBConfigSetter.class.getName());
+    StreamsProperties.RocksDb rocksDb = streamsProperties.getRocksdb();
+    props.put(BoundedRocksDBConfigSetter.BLOCK_CACHE_BYTES_CONFIG, rocksDb.getBlockCacheBytes());
+    props.put(BoundedRocksDBConfigSetter.WRITE_BUFFER_BYTES_CONFIG, rocksDb.getWriteBufferBytes());
+    props.put(BoundedRocksDBConfigSetter.MAX_WRITE_BUFFERS_CONFIG, rocksDb.getMaxWriteBuffers());
+    props.put(BoundedRocksDBConfigSetter.COMPRESSION_TYPE_CONFIG, rocksDb.getCompressionType());
     props.put(StreamsConfig.DEFAULT_KEY_SERDE_CLASS_CONFIG, Serdes.String().getClass().getName());
     props.put(StreamsConfig.DEFAULT_VALUE_SERDE_CLASS_CONFIG, Serdes.String().getClass().getName());
-    props.put(StreamsConfig.DEFAULT_TIMESTAMP_EXTRACTOR_CLASS_CONFIG, WallclockTimestampExtractor.class.getName());
+    props.put(StreamsConfig.DEFAULT_TIMESTAMP_EXTRACTOR_CLASS_CONFIG, PayloadTimestampExtractor.class.getName());
     props.put(StreamsConfig.REPLICATION_FACTOR_CONFIG, 1);
     props.put(StreamsConfig.producerPrefix(TopicConfig.MIN_IN_SYNC_REPLICAS_CONFIG), 1);
-    props.put(StreamsConfig.producerPrefix(ProducerConfig.ACKS_CONFIG), "1");
+    // Exactly once needs acks=all, which Streams then sets on its producers
+    props.put(StreamsConfig.PROCESSING_GUARANTEE_CONFIG, StreamsConfig.EXACTLY_ONCE);
 
     return new KafkaStreamsConfiguration(props);
   }
 
   @Bean
-  public StreamsBuilderFactoryBeanCustomizer customizer() {
-    return fb -> fb.setStateListener((newState, oldState) -> {
-      log.info("State transition from {} to {}", oldState, newState);
+  public StreamsBuilderFactoryBeanCustomizer customizer(KafkaStreamsState kafkaStreamsState) {
+    return fb -> fb.setStateListener(kafkaStreamsState);
+  }
+
+  /**
+   * In the readiness health group, see application.yml, out of service until
+   * Kafka Streams is running.
+   */
+  @Bean
+  public HealthIndicator kafkaStreamsReadinessHealthIndicator(KafkaStreamsState kafkaStreamsState) {
+    return kafkaStreamsState::readiness;
+  }
+
+  /**
+   * In the liveness health group, down once Kafka Streams failed or shut down.
+   */
+  @Bean
+  public HealthIndicator kafkaStreamsLivenessHealthIndicator(KafkaStreamsState kafkaStreamsState) {
+    return kafkaStreamsState::liveness;
+  }
+
+  /**
+   * Workers for asynchronous risk calculation, shared by all stream tasks.
+   * Threads are only started once the first calculation is submitted.
+   */
+  @Bean(destroyMethod = "shutdownNow")
+  public ExecutorService riskCalculatorExecutor(StreamsProperties streamsProperties) {
+    StreamsProperties.Async async = streamsProperties.getAsync();
+    if (async.isVirtualThreads()) {
+      try {
+        // Looked up reflectively so that the app still runs on JVMs without
+        // virtual threads
+        return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (ReflectiveOperationException roe) {
+        log.debug("Virtual threads not available, using {} risk calculator workers", async.getWorkers());
+      }
+    }
+    AtomicInteger threadCount = new AtomicInteger();
+    return Executors.newFixedThreadPool(async.getWorkers(), r -> {
+      Thread thread = new Thread(r, String.format("risk-calculator-%s", threadCount.incrementAndGet()));
+      thread.setDaemon(true);
+      return thread;
     });
   }
 
   @Bean
-  public KStream<String, String> provKStream(StreamsBuilder kStreamBuilder, RiskCalculator riskCalculator) {
-
-    // In this simple app just join two KTable to simulate calculation of
-    // counterparty risk. Ignore more complex topology required to emit two
-    // different messages on different topics, and just record the provenance so
-    // that we can visualize it.
-    // Will also need to deal with the case where either trade or counterparty does
-    // not yet exist for the counterparty
-    KTable<String, String> counterparties = kStreamBuilder.table("counterparties");
-    KTable<String, String> trades = kStreamBuilder.table("trades");
-    KStream<String, String> prov = trades.outerJoin(counterparties,
-        (trade, counterparty) -> riskCalculator.calculateRiskAndRecordProvenance(trade, counterparty))
-        .filterNot((k, v) -> v.startsWith("ERROR")).toStream();
-    prov.to("prov");
+  public KStream<String, byte[]> provKStream(StreamsBuilder kStreamBuilder, RiskCalculator riskCalculator,
+      ProvEmitter provEmitter, StreamsProperties streamsProperties, ExecutorService riskCalculatorExecutor) {
+
+    // In this simple app just join trades with their counterparties to simulate
+    // calculation of counterparty risk, and record the provenance so that we can
+    // visualize it. Both topics are keyed by counterparty, so the join is local
+    // to each task, and the joined inputs are then repartitioned by trade so that
+    // the calculation spreads over all partitions however skewed the
+    // counterparties are. Will also need to deal with the case where either
+    // trade or counterparty does not yet exist for the counterparty
+    kStreamBuilder.addStateStore(Stores.keyValueStoreBuilder(
+        Stores.persistentKeyValueStore(RiskInputJoiner.TRADES_STORE), Serdes.String(), Serdes.String())
+        .withCachingEnabled());
+    kStreamBuilder.addStateStore(Stores.keyValueStoreBuilder(
+        Stores.persistentKeyValueStore(RiskInputJoiner.COUNTERPARTIES_STORE), Serdes.String(), Serdes.String())
+        .withCachingEnabled());
+    KStream<String, String> tradeInputs = kStreamBuilder.<String, String>stream("trades").transform(
+        () -> new RiskInputJoiner(RiskInputJoiner.Side.TRADE, riskCalculator), RiskInputJoiner.TRADES_STORE,
+        RiskInputJoiner.COUNTERPARTIES_STORE);
+    KStream<String, String> counterpartyInputs = kStreamBuilder.<String, String>stream("counterparties").transform(
+        () -> new RiskInputJoiner(RiskInputJoiner.Side.COUNTERPARTY, riskCalculator), RiskInputJoiner.TRADES_STORE,
+        RiskInputJoiner.COUNTERPARTIES_STORE);
+    KTable<String, String> riskInputs = tradeInputs.merge(counterpartyInputs)
+        .groupByKey(Grouped.with(RISK_INPUTS, Serdes.String(), Serdes.String()))
+        .reduce((previous, latest) -> latest,
+            Materialized.<String, String, KeyValueStore<Bytes, byte[]>>as(RISK_INPUTS));
+    if (streamsProperties.getRecalculationIntervalMs() > 0) {
+      // Only the latest inputs per key in each interval are calculated, which
+      // collapses bursts and catch-up after lag into one calculation
+      riskInputs = riskInputs.suppress(
+          Suppressed.untilTimeLimit(Duration.ofMillis(streamsProperties.getRecalculationIntervalMs()),
+              BufferConfig.maxRecords(streamsProperties.getRecalculationBufferRecords()).emitEarlyWhenFull()));
+    }
+    KStream<String, String> completeRiskInputs = riskInputs.toStream().filter((k, v) -> v != null);
+    KStream<String, RiskResult> results;
+    if (streamsProperties.getAsync().isEnabled()) {
+      kStreamBuilder.addStateStore(Stores.keyValueStoreBuilder(
+          Stores.persistentKeyValueStore(AsyncRiskTransformer.PENDING_STORE), Serdes.Long(), Serdes.String()));
+      results = completeRiskInputs.transform(
+          () -> new AsyncRiskTransformer(riskCalculator, riskCalculatorExecutor,
+              streamsProperties.getAsync().getMaxPending(), streamsProperties.getAsync().getPunctuateMs()),
+          AsyncRiskTransformer.PENDING_STORE);
+    } else {
+      results = completeRiskInputs.mapValues(riskInput -> riskCalculator.calculateRisk(riskInput));
+    }
+
+    // Risk and its provenance go to separate topics, failed calculations to
+    // their own so that one bad input does not stop the stream. Provenance is
+    // keyed by the risk it generated, like that of the trade and counterparty
+    // versions, or by the first risk of a batch when they are aggregated.
+    @SuppressWarnings("unchecked")
+    KStream<String, RiskResult>[] outcomes = results.branch((k, v) -> !v.isFailed(), (k, v) -> v.isFailed());
+    outcomes[0].mapValues(RiskResult::getRisk).to(RISK_TOPIC, Produced.with(Serdes.String(), RiskRecord.SERDE));
+    KStream<String, byte[]> prov = ProvAggregator.aggregate(kStreamBuilder, outcomes[0]
+        .map((tradeId, result) -> KeyValue.pair(result.getRisk().getRiskId(), result.getProv())), "risk", provEmitter,
+        streamsProperties);
+    prov.to(EventPublisher.PROV_TOPIC, Produced.with(Serdes.String(), Serdes.ByteArray()));
+    outcomes[1].mapValues(RiskResult::getError)
+        .to(RISK_ERRORS_TOPIC, Produced.with(Serdes.String(), RiskError.SERDE));
     return prov;
   }
 }
\ No newline at end of file
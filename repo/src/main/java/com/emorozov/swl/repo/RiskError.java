@@ -0,0 +1,43 @@
+package com.emorozov.swl.repo;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Risk calculation that failed, written to the risk errors topic with the
+ * input needed to replay it instead of stopping the stream.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RiskError {
+
+  public static final Schema SCHEMA = AvroSerde.loadSchema("RiskError");
+
+  public static final AvroSerde<RiskError> SERDE = new AvroSerde<>(SCHEMA, RiskError::toAvro, RiskError::fromAvro);
+
+  private String riskInput;
+
+  private String error;
+
+  // Epoch millis
+  private long failureTime;
+
+  private GenericRecord toAvro() {
+    GenericRecord record = new GenericData.Record(SCHEMA);
+    record.put("riskInput", riskInput);
+    record.put("error", error);
+    record.put("failureTime", failureTime);
+    return record;
+  }
+
+  private static RiskError fromAvro(GenericRecord record) {
+    return new RiskError(record.get("riskInput").toString(), record.get("error").toString(),
+        (Long) record.get("failureTime"));
+  }
+}
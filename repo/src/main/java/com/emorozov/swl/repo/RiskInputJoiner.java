@@ -0,0 +1,95 @@
+package com.emorozov.swl.repo;
+
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.kstream.Transformer;
+import org.apache.kafka.streams.processor.ProcessorContext;
+import org.apache.kafka.streams.state.KeyValueIterator;
+import org.apache.kafka.streams.state.KeyValueStore;
+
+/**
+ * Joins trades with the counterparties they are booked against, one side of
+ * the join per instance. Both topics are keyed by counterparty id and have the
+ * same number of partitions, so a task sees every trade of the counterparties
+ * it owns along with their updates. Trades are stored per counterparty and
+ * trade id, so that a counterparty update is joined with every trade booked
+ * against it rather than with whichever trade came last, which is all a table
+ * keyed by counterparty could keep. Joined inputs are keyed by trade id.
+ *
+ * A trade has to stay booked against the same counterparty, as a trade moved
+ * to another counterparty would be left behind in the store of the first.
+ */
+public class RiskInputJoiner implements Transformer<String, String, KeyValue<String, String>> {
+
+  public static final String TRADES_STORE = "risk-trades";
+
+  public static final String COUNTERPARTIES_STORE = "risk-counterparties";
+
+  // Does not occur in counterparty ids, so the keys starting with the id and
+  // the separator are the trades of that counterparty alone
+  private static final char KEY_SEPARATOR = '/';
+
+  public enum Side {
+    TRADE, COUNTERPARTY
+  }
+
+  private final Side side;
+
+  private final RiskCalculator riskCalculator;
+
+  private ProcessorContext context;
+
+  private KeyValueStore<String, String> trades;
+
+  private KeyValueStore<String, String> counterparties;
+
+  public RiskInputJoiner(Side side, RiskCalculator riskCalculator) {
+    this.side = side;
+    this.riskCalculator = riskCalculator;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void init(ProcessorContext context) {
+    this.context = context;
+    trades = (KeyValueStore<String, String>) context.getStateStore(TRADES_STORE);
+    counterparties = (KeyValueStore<String, String>) context.getStateStore(COUNTERPARTIES_STORE);
+  }
+
+  @Override
+  public KeyValue<String, String> transform(String counterpartyId, String payload) {
+    if (payload == null) {
+      return null;
+    }
+    return side == Side.TRADE ? joinTrade(counterpartyId, payload) : joinCounterparty(counterpartyId, payload);
+  }
+
+  @Override
+  public void close() {
+  }
+
+  private KeyValue<String, String> joinTrade(String counterpartyId, String trade) {
+    String tradeId = EventPayload.entityId(trade);
+    trades.put(counterpartyId + KEY_SEPARATOR + tradeId, trade);
+    String riskInput = riskCalculator.joinRiskInput(trade, counterparties.get(counterpartyId));
+    return riskInput == null ? null : KeyValue.pair(tradeId, riskInput);
+  }
+
+  private KeyValue<String, String> joinCounterparty(String counterpartyId, String counterparty) {
+    counterparties.put(counterpartyId, counterparty);
+    String prefix = counterpartyId + KEY_SEPARATOR;
+    boolean joined = false;
+    try (KeyValueIterator<String, String> booked = trades.range(prefix, prefix + Character.MAX_VALUE)) {
+      while (booked.hasNext()) {
+        KeyValue<String, String> trade = booked.next();
+        context.forward(trade.key.substring(prefix.length()), riskCalculator.joinRiskInput(trade.value, counterparty));
+        joined = true;
+      }
+    }
+    if (!joined) {
+      // Counted as an incomplete join like an update for a counterparty
+      // without trades always was
+      riskCalculator.joinRiskInput(null, counterparty);
+    }
+    return null;
+  }
+}
@@ -0,0 +1,46 @@
+package com.emorozov.swl.repo;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Risk calculated for a trade version and a counterparty version, written to
+ * the risk topic next to its provenance on the prov topic.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RiskRecord {
+
+  public static final Schema SCHEMA = AvroSerde.loadSchema("RiskRecord");
+
+  public static final AvroSerde<RiskRecord> SERDE = new AvroSerde<>(SCHEMA, RiskRecord::toAvro, RiskRecord::fromAvro);
+
+  private String riskId;
+
+  private String tradeVersion;
+
+  private String counterpartyVersion;
+
+  // Epoch millis
+  private long calculationTime;
+
+  private GenericRecord toAvro() {
+    GenericRecord record = new GenericData.Record(SCHEMA);
+    record.put("riskId", riskId);
+    record.put("tradeVersion", tradeVersion);
+    record.put("counterpartyVersion", counterpartyVersion);
+    record.put("calculationTime", calculationTime);
+    return record;
+  }
+
+  private static RiskRecord fromAvro(GenericRecord record) {
+    return new RiskRecord(record.get("riskId").toString(), record.get("tradeVersion").toString(),
+        record.get("counterpartyVersion").toString(), (Long) record.get("calculationTime"));
+  }
+}
@@ -0,0 +1,32 @@
+package com.emorozov.swl.repo;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Outcome of one risk calculation, either the risk with its provenance or the
+ * error it failed with.
+ */
+@Getter
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public final class RiskResult {
+
+  private final RiskRecord risk;
+
+  private final byte[] prov;
+
+  private final RiskError error;
+
+  public static RiskResult calculated(RiskRecord risk, byte[] prov) {
+    return new RiskResult(risk, prov, null);
+  }
+
+  public static RiskResult failed(RiskError error) {
+    return new RiskResult(null, null, error);
+  }
+
+  public boolean isFailed() {
+    return error != null;
+  }
+}
@@ -0,0 +1,35 @@
+package com.emorozov.swl.repo;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import lombok.Data;
+
+/**
+ * How long startup waits for Kafka before Kafka Streams and the producers are
+ * started, see {@link KafkaReadiness}.
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "swl.startup")
+public class StartupProperties {
+
+  // Topics that have to exist before the risk calculator and the producers start
+  private List<String> topics = Arrays.asList(TradeEventProcessor.COMMANDS_TOPIC,
+      CounterpartyEventProcessor.COMMANDS_TOPIC, "trades", "counterparties", RiskCalculatorConfiguration.RISK_TOPIC,
+      RiskCalculatorConfiguration.RISK_ERRORS_TOPIC, EventPublisher.PROV_TOPIC);
+
+  // Startup fails once Kafka has not been ready for this long
+  private long timeoutMs = 120000;
+
+  // Time allowed for each attempt to list the topics
+  private long requestTimeoutMs = 5000;
+
+  // Doubled after each failed attempt up to the maximum
+  private long initialBackoffMs = 100;
+
+  private long maxBackoffMs = 5000;
+}
@@ -0,0 +1,89 @@
+package com.emorozov.swl.repo;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import lombok.Data;
+
+/**
+ * Tuning of the risk calculator topology, set per profile in application.yml.
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "swl.streams")
+public class StreamsProperties {
+
+  // Coalesces updates to the same key between commits, 0 forwards every update
+  private long cacheMaxBytesBuffering = 10 * 1024 * 1024L;
+
+  private long commitIntervalMs = 100;
+
+  private long pollMs = 100;
+
+  // More threads than input partitions leaves the extra threads idle
+  private int numStreamThreads = 1;
+
+  private int numStandbyReplicas = 0;
+
+  // Compression of the changelog and output topics written by Streams
+  private String compressionType = "lz4";
+
+  // Calculates risk at most once per trade and counterparty key in this much
+  // event time, 0 calculates on every update
+  private long recalculationIntervalMs = 0;
+
+  // Pending calculations held back before they are emitted early
+  private long recalculationBufferRecords = 100000;
+
+  private Async async = new Async();
+
+  private ProvBatch provBatch = new ProvBatch();
+
+  private RocksDb rocksdb = new RocksDb();
+
+  @Data
+  public static class Async {
+
+    // Calculates risk on a worker pool instead of the stream threads
+    private boolean enabled = false;
+
+    private int workers = 4;
+
+    // Uses a virtual thread per calculation instead of the workers where the
+    // JVM supports them
+    private boolean virtualThreads = true;
+
+    // Calculations pending per task before the stream thread waits for them
+    private int maxPending = 1000;
+
+    private long punctuateMs = 10;
+  }
+
+  @Data
+  public static class ProvBatch {
+
+    // Writes the PROV of many events of a task as one record on prov
+    private boolean enabled = false;
+
+    private int maxEvents = 100;
+
+    private int maxBytes = 262144;
+
+    // Wall clock time payloads wait at most before they are written
+    private long maxDelayMs = 100;
+  }
+
+  @Data
+  public static class RocksDb {
+
+    // Shared by all state stores of the instance
+    private long blockCacheBytes = 64 * 1024 * 1024L;
+
+    private long writeBufferBytes = 16 * 1024 * 1024L;
+
+    private int maxWriteBuffers = 3;
+
+    // none, snappy, lz4 or zstd
+    private String compressionType = "lz4";
+  }
+}
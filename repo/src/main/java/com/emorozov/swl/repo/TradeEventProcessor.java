@@ -2,8 +2,6 @@ package com.emorozov.swl.repo;
 
 import org.springframework.stereotype.Component;
 import org.springframework.scheduling.annotation.Scheduled;
-import org.openprovenance.prov.interop.Formats;
-import org.openprovenance.prov.interop.InteropFramework;
 import org.openprovenance.prov.model.Activity;
 import org.openprovenance.prov.model.Agent;
 import org.openprovenance.prov.model.Document;
@@ -18,31 +16,62 @@ import org.openprovenance.prov.model.WasStartedBy;
 import org.openprovenance.prov.model.WasEndedBy;
 import org.openprovenance.prov.model.WasGeneratedBy;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.kafka.core.KafkaTemplate;
 
-import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
-import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.OffsetDateTime;
-import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.GregorianCalendar;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
 
-import javax.xml.datatype.DatatypeFactory;
 import javax.xml.datatype.XMLGregorianCalendar;
 
 @Component
 @Slf4j
 public class TradeEventProcessor {
 
+  public static final String COMMANDS_TOPIC = "trade-corrections";
+
+  private static final String PROV_SOURCE = "trade";
+
   private static final DateTimeFormatter DEFAULT_FORMATTER = DateTimeFormatter.ofPattern("HH:mm:SS");
 
+  // Same triples as createProvDocument, with the descriptions of the trade and
+  // the agents in templates of their own so that they can be left out: {0}
+  // trade id, {1} old version, {2} new version, {3} event id, {4} xsd:dateTime
+  // and {5} display time
+  private static final ProvTemplate TRADE_TEMPLATE = ProvTemplate.compile(
+      "<swl:trade-{0}> <rdf:type> <prov:Entity> .",
+      "<swl:trade-{0}> <rdfs:label> \"RR 10M FNMA 7.125 01-15-30\" .");
+
+  private static final ProvTemplate TRADER_TEMPLATE = ProvTemplate.compile(
+      "<swl:johnsmith> <rdf:type> <prov:Agent> .",
+      "<swl:johnsmith> <rdfs:label> \"John Smith\" .");
+
+  private static final ProvTemplate TRADE_EVENT_PROCESSOR_TEMPLATE = ProvTemplate.compile(
+      "<swl:trade-event-processor> <rdf:type> <prov:Agent> .",
+      "<swl:trade-event-processor> <rdfs:label> \"Trade Event Processor\" .");
+
+  private static final ProvTemplate PROV_TEMPLATE = ProvTemplate.compile(
+      "<swl:trade-{0}-{2}> <rdf:type> <prov:Entity> .",
+      "<swl:trade-{0}-{2}> <rdfs:label> \"RR 10M FNMA 7.125 01-15-30 version {2}\" .",
+      "<swl:trade-{0}-{2}> <prov:specializationOf> <swl:trade-{0}> .",
+      "<swl:activity-{3}> <rdf:type> <prov:Activity> .",
+      "<swl:activity-{3}> <prov:startedAtTime> \"{4}\"^^<xsd:dateTime> .",
+      "<swl:activity-{3}> <prov:endedAtTime> \"{4}\"^^<xsd:dateTime> .",
+      "<swl:activity-{3}> <rdfs:label> \"Correction for trade {0} on {5}\" .",
+      "<swl:trade-{0}-{2}> <prov:wasGeneratedBy> <swl:activity-{3}> .",
+      "<swl:activity-{3}> <prov:wasStartedBy> <swl:johnsmith> .",
+      "<swl:activity-{3}> <prov:wasEndedBy> <swl:johnsmith> .",
+      "<swl:activity-{3}> <prov:wasAssociatedWith> <swl:trade-event-processor> .",
+      "<swl:trade-{0}-{2}> <prov:wasDerivedFrom> <swl:trade-{0}-{1}> .");
+
   @Autowired
-  private KafkaTemplate<String, String> kafkaTemplate;
+  private EventPublisher eventPublisher;
 
   @Autowired
   private Namespace ns;
@@ -51,28 +80,69 @@ public class TradeEventProcessor {
   private ProvFactory provFactory;
 
   @Autowired
-  private InteropFramework interopFramework;
+  private ProvEmitter provEmitter;
 
-  private String tradeId = UUID.randomUUID().toString();
+  @Autowired
+  private LoadProperties loadProperties;
 
-  private int tradeVersionCounter = 0;
+  @Autowired
+  private LineageIndex lineageIndex;
+
+  private String tradeId = UUID.randomUUID().toString();
 
   @Scheduled(fixedDelay = 30000, initialDelay = 30000)
   public void sendMessage() {
+    // The load generator drives the processor instead
+    if (!loadProperties.isEnabled()) {
+      sendTradeCorrection(tradeId, "bank-x");
+    }
+  }
 
-    String counterpartyId = "bank-x";
-    String eventId = UUID.randomUUID().toString();
-    OffsetDateTime odt = OffsetDateTime.now();
+  /**
+   * Requests the next version of the trade, booked against the counterparty.
+   * The version is assigned and the correction and its provenance are sent by
+   * the version assigner, so that numbering survives restarts. Safe to call
+   * from several threads.
+   */
+  public void sendTradeCorrection(String tradeId, String counterpartyId) {
 
-    int oldTradeVersionNumber = tradeVersionCounter;
-    int newTradeVersionNumber = ++tradeVersionCounter;
+    String command = EventPayload.format(counterpartyId, OffsetDateTime.now());
+    eventPublisher.publish(COMMANDS_TOPIC, tradeId, command.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Creates the correction to the trade for a command, with the version number
+   * assigned by the version assigner, keyed by the counterparty it is booked
+   * against.
+   */
+  public VersionedEvent createTradeCorrection(String tradeId, String command, int oldTradeVersionNumber,
+      int newTradeVersionNumber) {
+
+    // UUID.randomUUID would contend on one SecureRandom across the stream threads
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    String eventId = new UUID(random.nextLong(), random.nextLong()).toString();
+    String counterpartyId = EventPayload.versionId(command);
+    OffsetDateTime commandTime = EventPayload.eventTime(command);
+    OffsetDateTime odt = commandTime != null ? commandTime : OffsetDateTime.now();
 
     String tradeMessage = createTradeMessage(tradeId, oldTradeVersionNumber, newTradeVersionNumber, eventId, odt);
-    String provMessage = createProvMessage(tradeId, oldTradeVersionNumber, newTradeVersionNumber, eventId, odt);
+    byte[] provMessage = provEmitter.build(PROV_SOURCE,
+        () -> createProvMessage(tradeId, oldTradeVersionNumber, newTradeVersionNumber, eventId, odt));
+    if (lineageIndex.isEnabled()) {
+      recordLineage(tradeId, oldTradeVersionNumber, newTradeVersionNumber, eventId);
+    }
+    return new VersionedEvent(counterpartyId, tradeMessage.getBytes(StandardCharsets.UTF_8), provMessage,
+        String.format("trade-%s-%s", tradeId, newTradeVersionNumber));
+  }
+
+  private void recordLineage(String tradeId, int oldTradeVersionNumber, int newTradeVersionNumber, String eventId) {
 
-    // Ignores transactions in this simple example
-    this.kafkaTemplate.send("trades", counterpartyId, tradeMessage);
-    this.kafkaTemplate.send("prov", provMessage);
+    String newTradeVersion = String.format("trade-%s-%s", tradeId, newTradeVersionNumber);
+    lineageIndex.record(
+        new LineageIndex.Edge(newTradeVersion, LineageIndex.Relation.WAS_DERIVED_FROM,
+            String.format("trade-%s-%s", tradeId, oldTradeVersionNumber)),
+        new LineageIndex.Edge(newTradeVersion, LineageIndex.Relation.WAS_GENERATED_BY,
+            String.format("activity-%s", eventId)));
   }
 
   private String createTradeMessage(String tradeId, int oldTradeVersionNumber, int newTradeVersionNumber,
@@ -80,11 +150,25 @@ public class TradeEventProcessor {
 
     log.info("Correction {} for trade {} at {} (version {} -> {})", eventId, tradeId, odt.format(DEFAULT_FORMATTER),
         oldTradeVersionNumber, newTradeVersionNumber);
-    return String.format("%s-%s", tradeId, newTradeVersionNumber);
+    return EventPayload.format(String.format("%s-%s", tradeId, newTradeVersionNumber), odt);
   }
 
-  @SneakyThrows
-  private String createProvMessage(String tradeId, int oldTradeVersionNumber, int newTradeVersionNumber, String eventId,
+  byte[] createProvMessage(String tradeId, int oldTradeVersionNumber, int newTradeVersionNumber, String eventId,
+      OffsetDateTime odt) {
+
+    if (provEmitter.isTemplates()) {
+      List<ProvTemplate> templates = Arrays.asList(
+          provEmitter.describe(PROV_SOURCE, String.format("trade-%s", tradeId), TRADE_TEMPLATE),
+          provEmitter.describe(PROV_SOURCE, "johnsmith", TRADER_TEMPLATE),
+          provEmitter.describe(PROV_SOURCE, "trade-event-processor", TRADE_EVENT_PROCESSOR_TEMPLATE), PROV_TEMPLATE);
+      return provEmitter.emit(templates, tradeId, oldTradeVersionNumber, newTradeVersionNumber, eventId,
+          provEmitter.toXmlDateTime(odt), odt.format(DEFAULT_FORMATTER));
+    }
+    return provEmitter
+        .emit(createProvDocument(tradeId, oldTradeVersionNumber, newTradeVersionNumber, eventId, odt));
+  }
+
+  Document createProvDocument(String tradeId, int oldTradeVersionNumber, int newTradeVersionNumber, String eventId,
       OffsetDateTime odt) {
 
     QualifiedName tradeQn = qn(String.format("trade-%s", tradeId));
@@ -99,12 +183,9 @@ public class TradeEventProcessor {
         String.format("RR 10M FNMA 7.125 01-15-30 version %s", newTradeVersionNumber));
     SpecializationOf newTradeVersionSpecializationOf = provFactory.newSpecializationOf(newTradeVersionQn, tradeQn);
 
-    GregorianCalendar gcStartTime = GregorianCalendar.from(odt.atZoneSameInstant(ZoneId.of("Z")));
-    XMLGregorianCalendar xmlgcStartTime = DatatypeFactory.newInstance().newXMLGregorianCalendar(gcStartTime);
-    GregorianCalendar gcEndTime = GregorianCalendar.from(odt.atZoneSameInstant(ZoneId.of("Z")));
-    XMLGregorianCalendar xmlgcEndTime = DatatypeFactory.newInstance().newXMLGregorianCalendar(gcEndTime);
+    XMLGregorianCalendar xmlgcTime = provEmitter.toXmlGregorianCalendar(odt);
 
-    Activity tradeCorrection = provFactory.newActivity(tradeCorrectionQn, xmlgcStartTime, xmlgcEndTime,
+    Activity tradeCorrection = provFactory.newActivity(tradeCorrectionQn, xmlgcTime, xmlgcTime,
         Collections.emptyList());
     provFactory.addLabel(tradeCorrection,
         String.format("Correction for trade %s on %s", tradeId, odt.format(DEFAULT_FORMATTER)));
@@ -122,17 +203,11 @@ public class TradeEventProcessor {
 
     WasDerivedFrom tradeVersionDerivation = provFactory.newWasDerivedFrom(null, newTradeVersionQn, oldTradeVersionQn);
 
-    Document repoEventProvDocument = provFactory.newDocument();
-    repoEventProvDocument.getStatementOrBundle()
-        .addAll(Arrays.asList(trade, newTradeVersion, newTradeVersionSpecializationOf, tradeCorrection, trader,
-            tradeEventProcessor, wasStartedBy, wasEndedBy, wasAssociatedWith, tradeVersionDerivation,
-            newTradeVersionWasGeneratedBy));
-    repoEventProvDocument.setNamespace(ns);
-
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    interopFramework.writeDocument(baos, Formats.ProvFormat.TURTLE, repoEventProvDocument);
-
-    return baos.toString();
+    return provEmitter.newDocument(provEmitter.describe(PROV_SOURCE, String.format("trade-%s", tradeId), trade),
+        newTradeVersion, newTradeVersionSpecializationOf, tradeCorrection,
+        provEmitter.describe(PROV_SOURCE, "johnsmith", trader),
+        provEmitter.describe(PROV_SOURCE, "trade-event-processor", tradeEventProcessor), wasStartedBy, wasEndedBy,
+        wasAssociatedWith, tradeVersionDerivation, newTradeVersionWasGeneratedBy);
   }
 
   public QualifiedName qn(String name) {
@@ -0,0 +1,23 @@
+package com.emorozov.swl.repo;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import lombok.Data;
+
+/**
+ * Batching of business and PROV events into Kafka transactions, used when
+ * spring.kafka.producer.transaction-id-prefix makes the producer transactional.
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "swl.transactions")
+public class TransactionProperties {
+
+  private int maxBatchEvents = 500;
+
+  private long maxBatchDelayMs = 20;
+
+  // Publishing blocks once this many events are waiting to be committed
+  private int queueCapacity = 10000;
+}
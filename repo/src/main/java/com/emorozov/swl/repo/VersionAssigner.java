@@ -0,0 +1,52 @@
+package com.emorozov.swl.repo;
+
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.kstream.Transformer;
+import org.apache.kafka.streams.processor.ProcessorContext;
+import org.apache.kafka.streams.state.KeyValueStore;
+
+/**
+ * Assigns the next version number to an entity for each command keyed by its
+ * id. The latest version of every entity is kept in a persistent state store,
+ * so numbering carries on across restarts and rebalances, and as each entity
+ * is only ever handled by the task owning its partition the increment is
+ * atomic across threads and instances.
+ */
+public class VersionAssigner implements Transformer<String, String, KeyValue<String, VersionedEvent>> {
+
+  @FunctionalInterface
+  public interface EventFactory {
+
+    VersionedEvent create(String entityId, String command, int oldVersion, int newVersion);
+  }
+
+  private final String storeName;
+
+  private final EventFactory eventFactory;
+
+  private KeyValueStore<String, Integer> versions;
+
+  public VersionAssigner(String storeName, EventFactory eventFactory) {
+    this.storeName = storeName;
+    this.eventFactory = eventFactory;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void init(ProcessorContext context) {
+    versions = (KeyValueStore<String, Integer>) context.getStateStore(storeName);
+  }
+
+  @Override
+  public KeyValue<String, VersionedEvent> transform(String entityId, String command) {
+    Integer current = versions.get(entityId);
+    int oldVersion = current == null ? 0 : current;
+    int newVersion = oldVersion + 1;
+    versions.put(entityId, newVersion);
+    return KeyValue.pair(entityId, eventFactory.create(entityId, command, oldVersion, newVersion));
+  }
+
+  @Override
+  public void close() {
+  }
+}
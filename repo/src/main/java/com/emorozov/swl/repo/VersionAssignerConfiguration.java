@@ -0,0 +1,63 @@
+package com.emorozov.swl.repo;
+
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.StreamsBuilder;
+import org.apache.kafka.streams.kstream.KStream;
+import org.apache.kafka.streams.kstream.Produced;
+import org.apache.kafka.streams.state.Stores;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Turns trade correction and counterparty update commands into new versions on
+ * the trades and counterparties topics, with their provenance on prov. Runs in
+ * the risk calculator's Kafka Streams application, so with exactly once
+ * processing the new version, its provenance and the version store are
+ * committed together.
+ */
+@Configuration
+public class VersionAssignerConfiguration {
+
+  public static final String TRADE_VERSIONS_STORE = "trade-versions";
+
+  public static final String COUNTERPARTY_VERSIONS_STORE = "counterparty-versions";
+
+  @Bean
+  public KStream<String, VersionedEvent> tradeVersionKStream(StreamsBuilder kStreamBuilder,
+      TradeEventProcessor tradeEventProcessor, ProvEmitter provEmitter, StreamsProperties streamsProperties) {
+    return assignVersions(kStreamBuilder, TradeEventProcessor.COMMANDS_TOPIC, TRADE_VERSIONS_STORE,
+        tradeEventProcessor::createTradeCorrection, "trades", "trade", provEmitter, streamsProperties);
+  }
+
+  @Bean
+  public KStream<String, VersionedEvent> counterpartyVersionKStream(StreamsBuilder kStreamBuilder,
+      CounterpartyEventProcessor counterpartyEventProcessor, ProvEmitter provEmitter,
+      StreamsProperties streamsProperties) {
+    return assignVersions(kStreamBuilder, CounterpartyEventProcessor.COMMANDS_TOPIC, COUNTERPARTY_VERSIONS_STORE,
+        counterpartyEventProcessor::createCounterpartyUpdate, "counterparties", "counterparty", provEmitter,
+        streamsProperties);
+  }
+
+  private static KStream<String, VersionedEvent> assignVersions(StreamsBuilder kStreamBuilder, String commandsTopic,
+      String storeName, VersionAssigner.EventFactory eventFactory, String eventsTopic, String provSource,
+      ProvEmitter provEmitter, StreamsProperties streamsProperties) {
+
+    // Cached so that bursts of commands for the same entity write its latest
+    // version to the changelog once per commit
+    kStreamBuilder.addStateStore(Stores
+        .keyValueStoreBuilder(Stores.persistentKeyValueStore(storeName), Serdes.String(), Serdes.Integer())
+        .withCachingEnabled());
+
+    KStream<String, String> commands = kStreamBuilder.stream(commandsTopic);
+    KStream<String, VersionedEvent> events = commands.transform(() -> new VersionAssigner(storeName, eventFactory),
+        storeName);
+    events.map((entityId, event) -> KeyValue.pair(event.getKey(), event.getValue()))
+        .to(eventsTopic, Produced.with(Serdes.String(), Serdes.ByteArray()));
+    ProvAggregator.aggregate(kStreamBuilder,
+        events.map((entityId, event) -> KeyValue.pair(event.getProvKey(), event.getProv())), provSource,
+        provEmitter, streamsProperties)
+        .to(EventPublisher.PROV_TOPIC, Produced.with(Serdes.String(), Serdes.ByteArray()));
+    return events;
+  }
+}
@@ -0,0 +1,21 @@
+package com.emorozov.swl.repo;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * New version of an entity as a business event keyed for its topic, together
+ * with its provenance keyed by the local name of the new version.
+ */
+@Getter
+@AllArgsConstructor
+public final class VersionedEvent {
+
+  private final String key;
+
+  private final byte[] value;
+
+  private final byte[] prov;
+
+  private final String provKey;
+}
@@ -0,0 +1,34 @@
+package com.emorozov.swl.repo;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Samples indexes 0 to n - 1 with the probability of index i proportional to
+ * 1 / (i + 1)^exponent, so that a few keys get most of the events. An exponent
+ * of 0 samples uniformly.
+ */
+class ZipfDistribution {
+
+  private final double[] cumulative;
+
+  ZipfDistribution(int n, double exponent) {
+    if (n <= 0) {
+      throw new IllegalArgumentException(String.format("Need at least one key, got %s", n));
+    }
+    cumulative = new double[n];
+    double sum = 0;
+    for (int i = 0; i < n; i++) {
+      sum += 1 / Math.pow(i + 1, exponent);
+      cumulative[i] = sum;
+    }
+    for (int i = 0; i < n; i++) {
+      cumulative[i] /= sum;
+    }
+  }
+
+  int sample(Random random) {
+    int i = Arrays.binarySearch(cumulative, random.nextDouble());
+    return Math.min(i >= 0 ? i : -i - 1, cumulative.length - 1);
+  }
+}
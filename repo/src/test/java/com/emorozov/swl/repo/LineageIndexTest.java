@@ -0,0 +1,73 @@
+package com.emorozov.swl.repo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class LineageIndexTest {
+
+  private final LineageProperties lineageProperties = new LineageProperties();
+
+  private final LineageIndex lineageIndex = new LineageIndex();
+
+  @BeforeEach
+  void setUp() {
+    lineageProperties.setMaxEdges(3);
+    ReflectionTestUtils.setField(lineageIndex, "lineageProperties", lineageProperties);
+    lineageIndex.init();
+    lineageIndex.record(new LineageIndex.Edge("risk-1", LineageIndex.Relation.WAS_DERIVED_FROM, "trade-1"),
+        new LineageIndex.Edge("risk-1", LineageIndex.Relation.WAS_DERIVED_FROM, "cpty-1"),
+        new LineageIndex.Edge("risk-1", LineageIndex.Relation.WAS_GENERATED_BY, "calculation-1"),
+        new LineageIndex.Edge("calculation-1", LineageIndex.Relation.USED, "trade-1"),
+        new LineageIndex.Edge("calculation-1", LineageIndex.Relation.USED, "cpty-1"));
+  }
+
+  @Test
+  void recordsEveryEdgeOfTheEvent() {
+    LineageIndex.Lineage lineage = lineageIndex.downstream("trade-1", 16);
+    assertEquals(Arrays.asList(new LineageIndex.Edge("risk-1", LineageIndex.Relation.WAS_DERIVED_FROM, "trade-1"),
+        new LineageIndex.Edge("calculation-1", LineageIndex.Relation.USED, "trade-1"),
+        new LineageIndex.Edge("risk-1", LineageIndex.Relation.WAS_GENERATED_BY, "calculation-1")),
+        lineage.getEdges());
+    assertFalse(lineage.isTruncated());
+  }
+
+  @Test
+  void truncatesAtMaxEdges() {
+    LineageIndex.Lineage lineage = lineageIndex.upstream("risk-1", 16);
+    assertEquals(3, lineage.getEdges().size());
+    assertTrue(lineage.isTruncated());
+  }
+
+  @Test
+  void growsUpToMaxNodes() {
+    LineageProperties growing = new LineageProperties();
+    growing.setMaxNodes(1500);
+    LineageIndex index = new LineageIndex();
+    ReflectionTestUtils.setField(index, "lineageProperties", growing);
+    index.init();
+    assertEquals(1024, ((String[]) ReflectionTestUtils.getField(index, "names")).length);
+
+    for (int i = 0; i < 1000; i++) {
+      index.record(new LineageIndex.Edge("risk-" + i, LineageIndex.Relation.WAS_DERIVED_FROM, "trade-" + i));
+    }
+
+    assertEquals(1500, ((String[]) ReflectionTestUtils.getField(index, "names")).length);
+    assertFalse(index.contains("risk-0"));
+    assertEquals(Arrays.asList(new LineageIndex.Edge("risk-999", LineageIndex.Relation.WAS_DERIVED_FROM, "trade-999")),
+        index.upstream("risk-999", 16).getEdges());
+  }
+
+  @Test
+  void ignoresEdgesWhenDisabled() {
+    lineageProperties.setEnabled(false);
+    lineageIndex.record(new LineageIndex.Edge("risk-2", LineageIndex.Relation.WAS_DERIVED_FROM, "trade-2"));
+    assertFalse(lineageIndex.contains("risk-2"));
+  }
+}
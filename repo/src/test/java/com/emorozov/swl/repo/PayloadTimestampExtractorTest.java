@@ -0,0 +1,47 @@
+package com.emorozov.swl.repo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.OffsetDateTime;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.junit.jupiter.api.Test;
+
+class PayloadTimestampExtractorTest {
+
+  private static final long RECORD_TIME = 1604570000000L;
+
+  private static final long PARTITION_TIME = 1604560000000L;
+
+  private final PayloadTimestampExtractor extractor = new PayloadTimestampExtractor();
+
+  @Test
+  void usesEventTimeOfPayload() {
+    OffsetDateTime eventTime = OffsetDateTime.parse("2020-11-05T10:15:30.123Z");
+    assertEquals(eventTime.toInstant().toEpochMilli(),
+        extractor.extract(record(EventPayload.format("bank-x-3", eventTime), RECORD_TIME), PARTITION_TIME));
+  }
+
+  @Test
+  void fallsBackToRecordTimestampWithoutEventTime() {
+    assertEquals(RECORD_TIME, extractor.extract(record("bank-x-3", RECORD_TIME), PARTITION_TIME));
+  }
+
+  @Test
+  void fallsBackToRecordTimestampForInvalidEventTime() {
+    assertEquals(RECORD_TIME, extractor.extract(record("bank-x-3@yesterday", RECORD_TIME), PARTITION_TIME));
+  }
+
+  @Test
+  void fallsBackToPartitionTimeForInvalidRecordTimestamp() {
+    assertEquals(PARTITION_TIME, extractor.extract(record("bank-x-3", -1L), PARTITION_TIME));
+  }
+
+  private static ConsumerRecord<Object, Object> record(String payload, long timestamp) {
+    return new ConsumerRecord<Object, Object>("counterparties", 0, 0L, timestamp,
+        timestamp < 0 ? TimestampType.NO_TIMESTAMP_TYPE : TimestampType.CREATE_TIME, (Long) null, -1, -1, "bank-x",
+        payload, new RecordHeaders());
+  }
+}
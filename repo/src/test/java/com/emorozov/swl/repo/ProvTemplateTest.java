@@ -0,0 +1,154 @@
+package com.emorozov.swl.repo;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.OffsetDateTime;
+import java.util.Collections;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFParser;
+import org.apache.jena.sparql.graph.GraphFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.kafka.core.DefaultKafkaProducerFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+
+import com.github.luben.zstd.ZstdInputStream;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * The templates have to write the same graph as the ProvToolbox documents they
+ * replace, for every event shape and payload format.
+ */
+class ProvTemplateTest {
+
+  private static final String TRADE_ID = "8c1ba8a4-7e5b-4d2f-9d3e-6f3b7b0c2a11";
+
+  private static final String COUNTERPARTY_ID = "bank-x";
+
+  private static final String EVENT_ID = "0f6d3c52-1b7a-4a8e-b5e2-3c9a4d7e8f10";
+
+  private static final OffsetDateTime EVENT_TIME = OffsetDateTime.parse("2020-11-05T10:15:30.123+01:00");
+
+  private AnnotationConfigApplicationContext context;
+
+  @AfterEach
+  void tearDown() {
+    if (context != null) {
+      context.close();
+    }
+  }
+
+  @ParameterizedTest
+  @EnumSource(ProvPayloadFormat.class)
+  void tradeCorrection(ProvPayloadFormat format) {
+    TradeEventProcessor tradeEventProcessor = context().getBean(TradeEventProcessor.class);
+    assertConforms(format, () -> tradeEventProcessor.createProvMessage(TRADE_ID, 1, 2, EVENT_ID, EVENT_TIME));
+  }
+
+  @ParameterizedTest
+  @EnumSource(ProvPayloadFormat.class)
+  void counterpartyUpdate(ProvPayloadFormat format) {
+    CounterpartyEventProcessor counterpartyEventProcessor = context().getBean(CounterpartyEventProcessor.class);
+    assertConforms(format,
+        () -> counterpartyEventProcessor.createProvMessage(COUNTERPARTY_ID, 1, 2, EVENT_ID, EVENT_TIME));
+  }
+
+  @ParameterizedTest
+  @EnumSource(ProvPayloadFormat.class)
+  void riskCalculation(ProvPayloadFormat format) {
+    RiskCalculator riskCalculator = context().getBean(RiskCalculator.class);
+    assertConforms(format,
+        () -> riskCalculator.createProvMessage(TRADE_ID + "-2", COUNTERPARTY_ID + "-1", EVENT_TIME));
+  }
+
+  @Test
+  void literalsAreEscaped() {
+
+    String value = "quote \" backslash \\ tab \t newline \n return \r accent \u00e9 clef \ud834\udd1e";
+    ProvTemplate template = ProvTemplate.compile("<swl:subject-{0}> <rdfs:label> \"Label {1} of {0}\" .");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    template.render(out, "\u00e9t\u00e9", value);
+
+    Graph expected = GraphFactory.createDefaultGraph();
+    expected.add(Triple.create(NodeFactory.createURI(EventProcessorConfiguration.SWL_NAMESPACE + "subject-\u00e9t\u00e9"),
+        NodeFactory.createURI("http://www.w3.org/2000/01/rdf-schema#label"),
+        NodeFactory.createLiteral("Label " + value + " of \u00e9t\u00e9")));
+    Graph actual = parse(out.toByteArray(), ProvPayloadFormat.NTRIPLES);
+    assertTrue(expected.isIsomorphicWith(actual), () -> String.format("Expected %s but got %s", expected, actual));
+  }
+
+  /**
+   * The PROV beans without Kafka, scheduling or Spring Boot auto-configuration.
+   */
+  private AnnotationConfigApplicationContext context() {
+    context = new AnnotationConfigApplicationContext();
+    context.register(EventProcessorConfiguration.class, ProvProperties.class, LoadProperties.class,
+        TransactionProperties.class, LineageProperties.class, ProvEmitter.class, EventPublisher.class,
+        LineageIndex.class, RiskCalculator.class, TradeEventProcessor.class, CounterpartyEventProcessor.class);
+    // Only used to build payloads, the producer is never created
+    context.registerBean(MeterRegistry.class, SimpleMeterRegistry::new);
+    context.registerBean(KafkaTemplate.class,
+        () -> new KafkaTemplate<>(new DefaultKafkaProducerFactory<>(Collections.emptyMap())));
+    context.refresh();
+    return context;
+  }
+
+  private void assertConforms(ProvPayloadFormat format, Supplier<byte[]> message) {
+    ProvProperties provProperties = context.getBean(ProvProperties.class);
+    provProperties.setFormat(format);
+    provProperties.setTemplates(false);
+    Graph expected = parse(message.get(), format);
+    provProperties.setTemplates(true);
+    Graph actual = parse(message.get(), format);
+    assertTrue(expected.isIsomorphicWith(actual), () -> String.format("%s template does not match ProvToolbox: "
+        + "expected %s but got %s", format, expected, actual));
+  }
+
+  private static Graph parse(byte[] payload, ProvPayloadFormat format) {
+    Graph graph = GraphFactory.createDefaultGraph();
+    try (InputStream in = decompress(payload, format)) {
+      RDFParser.create().source(in).lang(lang(format)).parse(graph);
+    } catch (IOException ioe) {
+      throw new IllegalStateException(ioe);
+    }
+    return graph;
+  }
+
+  private static InputStream decompress(byte[] payload, ProvPayloadFormat format) throws IOException {
+    InputStream in = new ByteArrayInputStream(payload);
+    switch (format) {
+    case NTRIPLES_GZIP:
+      return new GZIPInputStream(in);
+    case NTRIPLES_ZSTD:
+      return new ZstdInputStream(in);
+    default:
+      return in;
+    }
+  }
+
+  private static Lang lang(ProvPayloadFormat format) {
+    switch (format) {
+    case TURTLE:
+      return Lang.TURTLE;
+    case RDF_THRIFT:
+      return Lang.RDFTHRIFT;
+    default:
+      return Lang.NTRIPLES;
+    }
+  }
+}
@@ -0,0 +1,156 @@
+package com.emorozov.swl.repo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.streams.StreamsConfig;
+import org.apache.kafka.streams.Topology;
+import org.apache.kafka.streams.TopologyTestDriver;
+import org.apache.kafka.streams.test.ConsumerRecordFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Joins of trades with the counterparties they are booked against, see
+ * {@link RiskInputJoiner}.
+ */
+class RiskInputJoinTest {
+
+  private static final OffsetDateTime START = OffsetDateTime.parse("2020-11-05T10:00:00Z");
+
+  private final ConsumerRecordFactory<String, String> records = new ConsumerRecordFactory<>(new StringSerializer(),
+      new StringSerializer());
+
+  @TempDir
+  Path stateDir;
+
+  private ExecutorService executor;
+
+  private Topology topology;
+
+  private TopologyTestDriver driver;
+
+  private int seconds;
+
+  @BeforeEach
+  void setUp() {
+    StreamsProperties streamsProperties = new StreamsProperties();
+    executor = new RiskCalculatorConfiguration().riskCalculatorExecutor(streamsProperties);
+    topology = RiskTopologies.topology(streamsProperties, RiskTopologies.riskCalculator(new SimpleMeterRegistry()),
+        executor);
+    Properties config = RiskTopologies.streamsConfig(streamsProperties, "dummy:9092", stateDir);
+    config.put(StreamsConfig.PROCESSING_GUARANTEE_CONFIG, StreamsConfig.AT_LEAST_ONCE);
+    driver = new TopologyTestDriver(topology, config);
+  }
+
+  @AfterEach
+  void tearDown() {
+    driver.close();
+    executor.shutdownNow();
+  }
+
+  @Test
+  void counterpartyUpdateJoinsEveryBookedTrade() {
+
+    trade("bank-1", "t-a-1");
+    trade("bank-1", "t-b-1");
+    trade("bank-1", "t-c-1");
+    // Nothing to join with before the counterparty is known
+    assertEquals(map(), risks());
+
+    counterparty("bank-1", "bank-1-1");
+    assertEquals(map("t-a", "risk-t-a-1-bank-1-1", "t-b", "risk-t-b-1-bank-1-1", "t-c", "risk-t-c-1-bank-1-1"),
+        risks());
+
+    counterparty("bank-1", "bank-1-2");
+    assertEquals(map("t-a", "risk-t-a-1-bank-1-2", "t-b", "risk-t-b-1-bank-1-2", "t-c", "risk-t-c-1-bank-1-2"),
+        risks());
+
+    trade("bank-1", "t-b-2");
+    assertEquals(map("t-b", "risk-t-b-2-bank-1-2"), risks());
+  }
+
+  @Test
+  void counterpartiesWithCommonPrefixStayApart() {
+
+    trade("bank-1", "t-a-1");
+    trade("bank-10", "t-b-1");
+    counterparty("bank-10", "bank-10-1");
+    assertEquals(map("t-b", "risk-t-b-1-bank-10-1"), risks());
+
+    counterparty("bank-1", "bank-1-1");
+    assertEquals(map("t-a", "risk-t-a-1-bank-1-1"), risks());
+
+    counterparty("bank-10", "bank-10-2");
+    assertEquals(map("t-b", "risk-t-b-1-bank-10-2"), risks());
+  }
+
+  @Test
+  void joinedInputsAreRekeyedByTrade() {
+
+    // Repartitioned by trade id before the calculation
+    String description = topology.describe().toString();
+    assertTrue(description.contains(RiskCalculatorConfiguration.RISK_INPUTS + "-repartition"), description);
+
+    counterparty("bank-1", "bank-1-1");
+    trade("bank-1", "t-a-1");
+    trade("bank-1", "t-b-1");
+    trade("bank-1", "t-a-2");
+    assertEquals(map("t-a", "risk-t-a-2-bank-1-1", "t-b", "risk-t-b-1-bank-1-1"), risks());
+
+    Map<String, String> riskInputs = new LinkedHashMap<>();
+    driver.<String, String>getKeyValueStore(RiskCalculatorConfiguration.RISK_INPUTS).all()
+        .forEachRemaining(riskInput -> riskInputs.put(riskInput.key, riskInput.value));
+    assertEquals(new HashSet<>(Arrays.asList("t-a", "t-b")), riskInputs.keySet());
+  }
+
+  private void trade(String counterpartyId, String versionId) {
+    pipe("trades", counterpartyId, versionId);
+  }
+
+  private void counterparty(String counterpartyId, String versionId) {
+    pipe("counterparties", counterpartyId, versionId);
+  }
+
+  private void pipe(String topic, String counterpartyId, String versionId) {
+    driver.pipeInput(
+        records.create(topic, counterpartyId, EventPayload.format(versionId, START.plusSeconds(seconds++))));
+  }
+
+  /**
+   * The latest risk per trade calculated since last read.
+   */
+  private Map<String, String> risks() {
+    Map<String, String> risks = new LinkedHashMap<>();
+    ProducerRecord<String, RiskRecord> risk;
+    while ((risk = driver.readOutput(RiskCalculatorConfiguration.RISK_TOPIC, new StringDeserializer(),
+        RiskRecord.SERDE.deserializer())) != null) {
+      risks.put(risk.key(), risk.value().getRiskId());
+    }
+    return risks;
+  }
+
+  private static Map<String, String> map(String... keysAndValues) {
+    Map<String, String> map = new LinkedHashMap<>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      map.put(keysAndValues[i], keysAndValues[i + 1]);
+    }
+    return map;
+  }
+}
@@ -0,0 +1,82 @@
+package com.emorozov.swl.repo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.streams.StreamsConfig;
+import org.apache.kafka.streams.TopologyTestDriver;
+import org.apache.kafka.streams.test.ConsumerRecordFactory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * A burst of updates to one trade is calculated once per recalculation
+ * interval of event time, or on every update without one.
+ */
+class RiskRecalculationTest {
+
+  private static final OffsetDateTime START = OffsetDateTime.parse("2020-11-05T10:00:00Z");
+
+  @TempDir
+  Path stateDir;
+
+  @Test
+  void calculatesEveryUpdateWithoutInterval() {
+    assertEquals(6, calculatedRisks(0L).size());
+  }
+
+  @Test
+  void calculatesLatestUpdateOncePerInterval() {
+    // The updates within the first minute are buffered, and the sixth both
+    // replaces them and moves event time past the interval, so only it is
+    // calculated
+    List<String> risks = calculatedRisks(60000L);
+    assertEquals(1, risks.size());
+    assertEquals("risk-t-6-bank-x-1", risks.get(0));
+  }
+
+  private List<String> calculatedRisks(long recalculationIntervalMs) {
+
+    StreamsProperties streamsProperties = new StreamsProperties();
+    streamsProperties.setRecalculationIntervalMs(recalculationIntervalMs);
+    RiskCalculator riskCalculator = RiskTopologies.riskCalculator(new SimpleMeterRegistry());
+    RiskCalculatorConfiguration configuration = new RiskCalculatorConfiguration();
+    ExecutorService executor = configuration.riskCalculatorExecutor(streamsProperties);
+
+    Properties config = RiskTopologies.streamsConfig(streamsProperties, "dummy:9092", stateDir);
+    config.put(StreamsConfig.PROCESSING_GUARANTEE_CONFIG, StreamsConfig.AT_LEAST_ONCE);
+    ConsumerRecordFactory<String, String> records = new ConsumerRecordFactory<>(new StringSerializer(),
+        new StringSerializer());
+    List<String> risks = new ArrayList<>();
+    try (TopologyTestDriver driver = new TopologyTestDriver(
+        RiskTopologies.topology(streamsProperties, riskCalculator, executor), config)) {
+
+      driver.pipeInput(records.create("counterparties", "bank-x", EventPayload.format("bank-x-1", START)));
+      for (int version = 1; version <= 5; version++) {
+        driver.pipeInput(records.create("trades", "bank-x",
+            EventPayload.format("t-" + version, START.plusSeconds(version))));
+      }
+      driver.pipeInput(records.create("trades", "bank-x", EventPayload.format("t-6", START.plusMinutes(2))));
+
+      ProducerRecord<String, RiskRecord> risk;
+      while ((risk = driver.readOutput(RiskCalculatorConfiguration.RISK_TOPIC, new StringDeserializer(),
+          RiskRecord.SERDE.deserializer())) != null) {
+        risks.add(risk.value().getRiskId());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return risks;
+  }
+}
@@ -0,0 +1,235 @@
+package com.emorozov.swl.repo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.kafka.clients.admin.NewTopic;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.streams.KafkaStreams;
+import org.apache.kafka.streams.Topology;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
+import org.springframework.kafka.core.DefaultKafkaProducerFactory;
+import org.springframework.kafka.test.EmbeddedKafkaBroker;
+import org.springframework.kafka.test.condition.EmbeddedKafkaCondition;
+import org.springframework.kafka.test.context.EmbeddedKafka;
+import org.springframework.kafka.test.utils.KafkaTestUtils;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Instances sharing the risk application id split the tasks between them, and
+ * each risk is still produced once. Every run books its trades against
+ * counterparties of its own and reads the risk topic from where the previous
+ * run left it, so the runs share the broker and the committed offsets of the
+ * application like instances that are scaled up one after another.
+ */
+@EmbeddedKafka(brokerProperties = { "transaction.state.log.replication.factor=1", "transaction.state.log.min.isr=1" })
+class RiskScalingTest {
+
+  private static final int PARTITIONS = 6;
+
+  private static final int COUNTERPARTIES = 12;
+
+  private static final int TRADES_PER_COUNTERPARTY = 5;
+
+  private static final Duration TIMEOUT = Duration.ofSeconds(60);
+
+  private static final OffsetDateTime START = OffsetDateTime.parse("2020-11-05T10:00:00Z");
+
+  @TempDir
+  Path stateDir;
+
+  /**
+   * Created here rather than in the annotation, which leaves them with the
+   * default number of partitions.
+   */
+  @BeforeAll
+  static void createTopics() {
+    EmbeddedKafkaCondition.getBroker().addTopics(
+        Stream.of("trades", "counterparties", RiskCalculatorConfiguration.RISK_TOPIC,
+            RiskCalculatorConfiguration.RISK_ERRORS_TOPIC, EventPublisher.PROV_TOPIC)
+            .map(topic -> new NewTopic(topic, PARTITIONS, (short) 1)).toArray(NewTopic[]::new));
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = { 1, 2, 3 })
+  void spreadsTasksAndProducesEachRiskOnce(int instances) throws Exception {
+
+    EmbeddedKafkaBroker broker = EmbeddedKafkaCondition.getBroker();
+    StreamsProperties streamsProperties = new StreamsProperties();
+    ExecutorService executor = new RiskCalculatorConfiguration().riskCalculatorExecutor(streamsProperties);
+    Map<TopicPartition, Long> riskOffsets = endOffsets(broker);
+    List<KafkaStreams> streams = new ArrayList<>();
+    try {
+      Topology topology = null;
+      for (int instance = 0; instance < instances; instance++) {
+        topology = RiskTopologies.topology(streamsProperties,
+            RiskTopologies.riskCalculator(new SimpleMeterRegistry()), executor);
+        KafkaStreams kafkaStreams = new KafkaStreams(topology, RiskTopologies.streamsConfig(streamsProperties,
+            broker.getBrokersAsString(), Files.createDirectory(stateDir.resolve("instance-" + instance))));
+        kafkaStreams.start();
+        streams.add(kafkaStreams);
+      }
+      int tasks = topology.describe().subtopologies().size() * PARTITIONS;
+      await(() -> spread(streams, tasks), () -> String.format("%s tasks not spread over %s instances: %s", tasks,
+          instances, activeTasks(streams)));
+
+      String run = "run-" + instances;
+      Set<String> expected = new HashSet<>();
+      List<String> risks = new ArrayList<>();
+      try (Producer<String, String> producer = producer(broker);
+          Consumer<String, RiskRecord> consumer = riskConsumer(broker, riskOffsets)) {
+        // Whether a trade or its counterparty is processed first, the trade is
+        // calculated once with the first version of the counterparty
+        expected.addAll(send(producer, run, 1, TRADES_PER_COUNTERPARTY));
+        read(consumer, risks, expected.size());
+        // and once more when the counterparty is updated
+        expected.addAll(send(producer, run, 2, 0));
+        read(consumer, risks, expected.size());
+        // Anything produced twice would follow the last expected risk
+        consumer.poll(Duration.ofSeconds(2)).forEach(risk -> risks.add(risk.value().getRiskId()));
+      }
+      assertEquals(expected, new HashSet<>(risks));
+      assertEquals(expected.size(), risks.size(), "Risks produced more than once");
+    } finally {
+      streams.forEach(KafkaStreams::close);
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Whether every instance is running with active tasks of its own, and all
+   * tasks are active on exactly one instance.
+   */
+  private static boolean spread(List<KafkaStreams> streams, int tasks) {
+    List<Set<String>> activeTasks = activeTasks(streams);
+    Set<String> all = new HashSet<>();
+    for (int instance = 0; instance < streams.size(); instance++) {
+      if (streams.get(instance).state() != KafkaStreams.State.RUNNING || activeTasks.get(instance).isEmpty()) {
+        return false;
+      }
+      for (String task : activeTasks.get(instance)) {
+        assertTrue(all.add(task), () -> String.format("Task %s active on more than one instance", task));
+      }
+    }
+    return all.size() == tasks;
+  }
+
+  private static List<Set<String>> activeTasks(List<KafkaStreams> streams) {
+    return streams.stream()
+        .map(kafkaStreams -> kafkaStreams.localThreadsMetadata().stream()
+            .flatMap(thread -> thread.activeTasks().stream()).map(task -> task.taskId()).collect(Collectors.toSet()))
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Sends a version of every counterparty of the run, followed by the trades
+   * to book against it, and returns the risks they produce.
+   */
+  private static Set<String> send(Producer<String, String> producer, String run, int counterpartyVersion,
+      int trades) {
+    Set<String> risks = new HashSet<>();
+    OffsetDateTime eventTime = START.plusHours(counterpartyVersion);
+    for (int counterparty = 0; counterparty < COUNTERPARTIES; counterparty++) {
+      String counterpartyId = String.format("%s-bank-%s", run, counterparty);
+      String counterpartyVersionId = counterpartyId + "-" + counterpartyVersion;
+      eventTime = eventTime.plusSeconds(1);
+      producer.send(new ProducerRecord<>("counterparties", counterpartyId,
+          EventPayload.format(counterpartyVersionId, eventTime)));
+      for (int trade = 0; trade < TRADES_PER_COUNTERPARTY; trade++) {
+        String tradeVersionId = String.format("%s-trade-%s-%s-1", run, counterparty, trade);
+        if (trade < trades) {
+          eventTime = eventTime.plusSeconds(1);
+          producer.send(new ProducerRecord<>("trades", counterpartyId, EventPayload.format(tradeVersionId, eventTime)));
+        }
+        risks.add(String.format("risk-%s-%s", tradeVersionId, counterpartyVersionId));
+      }
+    }
+    producer.flush();
+    return risks;
+  }
+
+  /**
+   * Adds the risks read until there are as many as expected, or the timeout.
+   */
+  private static void read(Consumer<String, RiskRecord> consumer, List<String> risks, int expected) {
+    long deadline = System.currentTimeMillis() + TIMEOUT.toMillis();
+    while (risks.size() < expected && System.currentTimeMillis() < deadline) {
+      consumer.poll(Duration.ofMillis(100)).forEach(risk -> risks.add(risk.value().getRiskId()));
+    }
+  }
+
+  private static Producer<String, String> producer(EmbeddedKafkaBroker broker) {
+    return new DefaultKafkaProducerFactory<>(KafkaTestUtils.producerProps(broker), new StringSerializer(),
+        new StringSerializer()).createProducer();
+  }
+
+  private static Map<TopicPartition, Long> endOffsets(EmbeddedKafkaBroker broker) {
+    try (Consumer<String, RiskRecord> consumer = consumer(broker, "risk-offsets")) {
+      List<TopicPartition> partitions = partitions(consumer);
+      return consumer.endOffsets(partitions);
+    }
+  }
+
+  /**
+   * Reads the committed risks produced since the offsets.
+   */
+  private static Consumer<String, RiskRecord> riskConsumer(EmbeddedKafkaBroker broker,
+      Map<TopicPartition, Long> offsets) {
+    Consumer<String, RiskRecord> consumer = consumer(broker, "risk-reader");
+    consumer.assign(partitions(consumer));
+    offsets.forEach(consumer::seek);
+    return consumer;
+  }
+
+  private static Consumer<String, RiskRecord> consumer(EmbeddedKafkaBroker broker, String group) {
+    Map<String, Object> consumerProps = KafkaTestUtils.consumerProps(group, "false", broker);
+    consumerProps.put(ConsumerConfig.ISOLATION_LEVEL_CONFIG, "read_committed");
+    return new DefaultKafkaConsumerFactory<>(consumerProps, new StringDeserializer(),
+        RiskRecord.SERDE.deserializer()).createConsumer();
+  }
+
+  private static List<TopicPartition> partitions(Consumer<?, ?> consumer) {
+    List<TopicPartition> partitions = new ArrayList<>();
+    for (PartitionInfo partition : consumer.partitionsFor(RiskCalculatorConfiguration.RISK_TOPIC)) {
+      partitions.add(new TopicPartition(partition.topic(), partition.partition()));
+    }
+    return partitions;
+  }
+
+  private static void await(BooleanSupplier condition, Supplier<String> message)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT.toMillis();
+    while (!condition.getAsBoolean()) {
+      assertFalse(System.currentTimeMillis() > deadline, message);
+      Thread.sleep(100);
+    }
+  }
+}
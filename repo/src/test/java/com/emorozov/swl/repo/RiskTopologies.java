@@ -0,0 +1,67 @@
+package com.emorozov.swl.repo;
+
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.kafka.streams.StreamsBuilder;
+import org.apache.kafka.streams.StreamsConfig;
+import org.apache.kafka.streams.Topology;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Builds the risk calculator topology the way the application does, with the
+ * beans it needs wired by hand. PROV is written from the templates, so no
+ * ProvToolbox documents are built.
+ */
+final class RiskTopologies {
+
+  private RiskTopologies() {
+  }
+
+  static RiskCalculator riskCalculator(MeterRegistry meterRegistry) {
+
+    ProvProperties provProperties = new ProvProperties();
+    provProperties.setTemplates(true);
+    provProperties.setFormat(ProvPayloadFormat.NTRIPLES);
+    ProvEmitter provEmitter = new ProvEmitter();
+    ReflectionTestUtils.setField(provEmitter, "provProperties", provProperties);
+    ReflectionTestUtils.setField(provEmitter, "meterRegistry", meterRegistry);
+
+    LineageIndex lineageIndex = new LineageIndex();
+    ReflectionTestUtils.setField(lineageIndex, "lineageProperties", new LineageProperties());
+    lineageIndex.init();
+
+    RiskCalculator riskCalculator = new RiskCalculator();
+    ReflectionTestUtils.setField(riskCalculator, "provEmitter", provEmitter);
+    ReflectionTestUtils.setField(riskCalculator, "lineageIndex", lineageIndex);
+    ReflectionTestUtils.setField(riskCalculator, "meterRegistry", meterRegistry);
+    riskCalculator.registerMeters();
+    return riskCalculator;
+  }
+
+  static Topology topology(StreamsProperties streamsProperties, RiskCalculator riskCalculator,
+      ExecutorService executor) {
+    RiskCalculatorConfiguration configuration = new RiskCalculatorConfiguration();
+    StreamsBuilder builder = new StreamsBuilder();
+    ProvEmitter provEmitter = (ProvEmitter) ReflectionTestUtils.getField(riskCalculator, "provEmitter");
+    configuration.provKStream(builder, riskCalculator, provEmitter, streamsProperties, executor);
+    return builder.build();
+  }
+
+  /**
+   * The application's Streams configuration for the bootstrap servers, with
+   * state in the directory and without caching, so that every update reaches
+   * the next processor straight away.
+   */
+  static Properties streamsConfig(StreamsProperties streamsProperties, String bootstrapServers, Path stateDir) {
+    Properties config = new Properties();
+    config.putAll(new RiskCalculatorConfiguration().kStreamsConfigs(streamsProperties).asProperties());
+    config.put(StreamsConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+    config.put(StreamsConfig.STATE_DIR_CONFIG, stateDir.toString());
+    config.put(StreamsConfig.CACHE_MAX_BYTES_BUFFERING_CONFIG, 0);
+    return config;
+  }
+}